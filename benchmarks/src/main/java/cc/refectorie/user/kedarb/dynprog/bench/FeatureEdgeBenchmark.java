@@ -0,0 +1,138 @@
+package cc.refectorie.user.kedarb.dynprog.bench;
+
+import cc.refectorie.user.kedarb.dynprog.types.Hypergraph;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One CRF gradient step on a label chain (edge weights, posteriors and
+ * expected features), with the features of each edge behind a HyperedgeInfo
+ * (infos: getWeight() computes the dot product, setPosterior() adds to the
+ * gradient) against feature edges (features: computeFeatureWeights() and
+ * addFeatureExpectations()).
+ *
+ * @author kedar
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureEdgeBenchmark {
+    @Param({"infos", "features"})
+    public String edges;
+    @Param({"40"})
+    public int length;
+    @Param({"10", "30"})
+    public int numLabels;
+    // Features per edge, out of numParams
+    @Param({"20"})
+    public int numFeatures;
+    @Param({"100000"})
+    public int numParams;
+
+    private double[] params, gradient;
+    private Hypergraph<int[]> H;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random r = new Random(1);
+        params = new double[numParams];
+        for (int j = 0; j < numParams; j++)
+            params[j] = 0.1 * r.nextGaussian();
+        gradient = new double[numParams];
+        H = new Hypergraph<int[]>();
+        H.setMaxKey(length * numLabels);
+        for (int i = 0; i < length; i++)
+            for (int a = 0; a < numLabels; a++)
+                H.addSumNode((long) (i * numLabels + a));
+        int[] ids = new int[numFeatures];
+        for (int i = 0; i < length; i++) {
+            for (int a = 0; a < (i == 0 ? 1 : numLabels); a++) {
+                for (int b = 0; b < numLabels; b++) {
+                    for (int k = 0; k < numFeatures; k++)
+                        ids[k] = r.nextInt(numParams);
+                    long dest = i * numLabels + b;
+                    Hypergraph.AHyperedgeInfo<int[]> info = edges.equals("features")
+                            ? new LabelInfo(i, b) : new WeightInfo(i, b, ids.clone());
+                    int e = i == 0 ? H.addEdge(H.sumStartNode(), dest, info)
+                            : H.addEdge((long) ((i - 1) * numLabels + a), dest, info);
+                    if (edges.equals("features"))
+                        H.setEdgeFeatures(e, ids, null, numFeatures);
+                }
+            }
+        }
+        for (int a = 0; a < numLabels; a++)
+            H.addEdge((long) ((length - 1) * numLabels + a), new Hypergraph.FeatureHyperedgeInfo<int[]>() {
+                public void setPosterior(double prob) {
+                }
+
+                public int[] choose(int[] widget) {
+                    return widget;
+                }
+            });
+        H.compile();
+    }
+
+    private static class LabelInfo implements Hypergraph.FeatureHyperedgeInfo<int[]> {
+        final int i, a;
+
+        LabelInfo(int i, int a) {
+            this.i = i;
+            this.a = a;
+        }
+
+        public void setPosterior(double prob) {
+        }
+
+        public int[] choose(int[] widget) {
+            widget[i] = a;
+            return widget;
+        }
+    }
+
+    private class WeightInfo implements Hypergraph.HyperedgeInfo<int[]> {
+        final int i, a;
+        final int[] ids;
+
+        WeightInfo(int i, int a, int[] ids) {
+            this.i = i;
+            this.a = a;
+            this.ids = ids;
+        }
+
+        public double getWeight() {
+            double weight = 0;
+            for (int id : ids)
+                weight += params[id];
+            return weight;
+        }
+
+        public void setPosterior(double prob) {
+            for (int id : ids)
+                gradient[id] += prob;
+        }
+
+        public int[] choose(int[] widget) {
+            widget[i] = a;
+            return widget;
+        }
+    }
+
+    @Benchmark
+    public double[] weightsAndGradient() {
+        if (edges.equals("features")) {
+            H.computeFeatureWeights(params);
+            H.computePosteriors(false);
+            H.addFeatureExpectations(false, gradient, 1);
+        } else {
+            H.reweight();
+            H.computePosteriors(false);
+            H.fetchPosteriors(false);
+        }
+        return gradient;
+    }
+}
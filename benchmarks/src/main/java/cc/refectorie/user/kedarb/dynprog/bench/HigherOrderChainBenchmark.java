@@ -0,0 +1,131 @@
+package cc.refectorie.user.kedarb.dynprog.bench;
+
+import cc.refectorie.user.kedarb.dynprog.fst.HigherOrderChain;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Higher-order chains with all label n-grams (naive: K^order histories, as a
+ * generic hypergraph would have) against only the n-grams allowed by a
+ * sparse transition structure (each label has numSuccessors successors, as
+ * with BIO labels and TagOptions.sparseTransitions). The number of states
+ * and transitions and the bytes taken by the chain are printed at the end of
+ * each trial; run with -prof gc for the allocation rates.
+ *
+ * @author kedar
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HigherOrderChainBenchmark {
+    @Param({"naive", "sparse"})
+    public String states;
+    // Order 3 with 30 labels doesn't fit in memory without the sparse states
+    @Param({"2"})
+    public int order;
+    @Param({"10", "30"})
+    public int numLabels;
+    @Param({"40"})
+    public int length;
+    @Param({"3"})
+    public int numSuccessors;
+
+    private HigherOrderChain chain;
+    private double[] posteriors;
+    private int[] labels, transitions;
+    private HigherOrderChain.PosteriorSink sink;
+    private final Random random = new Random(1);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random r = new Random(1);
+        List<int[]> grams = null;
+        if (states.equals("sparse")) {
+            boolean[][] allowed = new boolean[numLabels][numLabels];
+            for (int a = 0; a < numLabels; a++)
+                for (int j = 0; j < numSuccessors; j++)
+                    allowed[a][r.nextInt(numLabels)] = true;
+            grams = new ArrayList<int[]>();
+            addGrams(grams, new int[order + 1], 0, allowed);
+        }
+        chain = new HigherOrderChain(numLabels, order, grams);
+        chain.setLength(length);
+        for (int i = 0; i < chain.scores.length; i++)
+            chain.scores[i] = r.nextGaussian();
+        chain.invalidate();
+        posteriors = new double[length * numLabels];
+        labels = new int[length];
+        transitions = new int[length];
+        sink = new HigherOrderChain.PosteriorSink() {
+            public void setTransitionPosterior(int i, int e, double prob) {
+                posteriors[i * numLabels + chain.labelOf(e)] += prob;
+            }
+        };
+    }
+
+    // All (order+1)-grams (BOS-padded at the front) whose consecutive labels
+    // are allowed transitions
+    private void addGrams(List<int[]> grams, int[] gram, int j, boolean[][] allowed) {
+        if (j == gram.length) {
+            grams.add(gram.clone());
+            return;
+        }
+        int prev = j == 0 ? HigherOrderChain.BOS : gram[j - 1];
+        // BOS only before the first label (and not as the last one)
+        if (prev == HigherOrderChain.BOS && j < gram.length - 1) {
+            gram[j] = HigherOrderChain.BOS;
+            addGrams(grams, gram, j + 1, allowed);
+        }
+        for (int y = 0; y < numLabels; y++) {
+            if (prev != HigherOrderChain.BOS && !allowed[prev][y])
+                continue;
+            gram[j] = y;
+            addGrams(grams, gram, j + 1, allowed);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.println("\n" + states + " order=" + order + " K=" + numLabels + ": states=" +
+                chain.numStates() + " transitions=" + chain.numTransitions() + " bytes=" + chain.numBytes());
+    }
+
+    @Benchmark
+    public double insideSum() {
+        chain.invalidate();
+        return chain.computeInside();
+    }
+
+    @Benchmark
+    public double insideMax() {
+        chain.invalidate();
+        return chain.computeMax();
+    }
+
+    @Benchmark
+    public double[] fetchPosteriors() {
+        chain.invalidate();
+        chain.fetchPosteriors(sink);
+        return posteriors;
+    }
+
+    @Benchmark
+    public int[] fetchBestLabels() {
+        chain.invalidate();
+        chain.fetchBestLabels(labels, transitions);
+        return labels;
+    }
+
+    @Benchmark
+    public int[] fetchSampleLabels() {
+        chain.fetchSampleLabels(random, labels, transitions);
+        return labels;
+    }
+}
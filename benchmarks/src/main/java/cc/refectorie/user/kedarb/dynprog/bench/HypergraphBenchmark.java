@@ -0,0 +1,139 @@
+package cc.refectorie.user.kedarb.dynprog.bench;
+
+import cc.refectorie.user.kedarb.dynprog.types.Hypergraph;
+import cc.refectorie.user.kedarb.dynprog.types.Semiring;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of each stage of hypergraph inference, on the synthetic graphs
+ * of Workloads. Each benchmark measures one stage: everything it depends on
+ * is done in a setup method, outside the measurement. Run with -prof gc to
+ * get allocation rates as well (see pom.xml).
+ *
+ * @author kedar
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HypergraphBenchmark {
+    @Param({"chain", "cky", "prod"})
+    public Workloads.Shape shape;
+    @Param({"10", "40"})
+    public int length;
+    @Param({"4", "16"})
+    public int numLabels;
+
+    private Workloads workloads;
+    private Hypergraph<Workloads.Count> H;
+    private final Random random = new Random(1);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workloads = new Workloads(shape, length, numLabels, 1);
+        H = workloads.build();
+        H.compile();
+    }
+
+    // Construction: addNode/addEdge calls only
+    @Benchmark
+    public Hypergraph<Workloads.Count> build() {
+        return workloads.build();
+    }
+
+    // Compilation (topological ordering and layout) of a freshly built graph
+    @State(Scope.Thread)
+    public static class Uncompiled {
+        Hypergraph<Workloads.Count> H;
+
+        @Setup(Level.Invocation)
+        public void setUp(HypergraphBenchmark b) {
+            H = b.workloads.build();
+        }
+    }
+
+    @Benchmark
+    public Hypergraph<Workloads.Count> compile(Uncompiled u) {
+        u.H.compile();
+        return u.H;
+    }
+
+    // The remaining benchmarks reuse one compiled graph
+
+    @Benchmark
+    public double insideSum() {
+        H.resetScores();
+        return H.computeInside(Semiring.LOG_SUM);
+    }
+
+    @Benchmark
+    public double insideMax() {
+        H.resetScores();
+        return H.computeInside(Semiring.MAX_TIMES);
+    }
+
+    // Outside pass: the inside scores are computed beforehand (per call, as
+    // the outside scores are cached otherwise)
+    @State(Scope.Thread)
+    public static class InsideDone {
+        @Setup(Level.Invocation)
+        public void setUp(HypergraphBenchmark b) {
+            b.H.resetScores();
+            b.H.computeInside(Semiring.LOG_SUM);
+        }
+    }
+
+    @Benchmark
+    public double outside(InsideDone insideDone) {
+        H.computePosteriors(false);
+        return H.getLogZ();
+    }
+
+    // Posteriors, expectations and samples: inside and outside scores (and
+    // the sampling tables) are computed once beforehand
+    @State(Scope.Thread)
+    public static class PosteriorsDone {
+        @Setup(Level.Trial)
+        public void setUp(HypergraphBenchmark b) {
+            b.H.resetScores();
+            b.H.computePosteriors(false);
+            b.H.fetchSampleHyperpath(b.random, new Workloads.Count());
+        }
+    }
+
+    @Benchmark
+    public double[] fetchPosteriors(PosteriorsDone posteriorsDone) {
+        H.fetchPosteriors(false);
+        return workloads.posteriors;
+    }
+
+    @Benchmark
+    public double computeELogZEntropy(PosteriorsDone posteriorsDone) {
+        H.computeELogZEntropy(false);
+        return H.getEntropy();
+    }
+
+    @Benchmark
+    public int fetchSampleHyperpath(PosteriorsDone posteriorsDone) {
+        return H.fetchSampleHyperpath(random, new Workloads.Count()).widget.n;
+    }
+
+    @State(Scope.Thread)
+    public static class MaxDone {
+        @Setup(Level.Trial)
+        public void setUp(HypergraphBenchmark b) {
+            b.H.resetScores();
+            b.H.computePosteriors(true);
+        }
+    }
+
+    @Benchmark
+    public int fetchBestHyperpath(MaxDone maxDone) {
+        return H.fetchBestHyperpath(new Workloads.Count()).widget.n;
+    }
+}
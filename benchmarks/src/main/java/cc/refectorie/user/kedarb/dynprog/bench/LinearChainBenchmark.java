@@ -0,0 +1,99 @@
+package cc.refectorie.user.kedarb.dynprog.bench;
+
+import cc.refectorie.user.kedarb.dynprog.fst.LinearChain;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The dense LinearChain engine on the same taggers as the chain shape of
+ * HypergraphBenchmark (length positions, numLabels labels), to compare the
+ * two per stage. Posteriors are added to an array, like Workloads.Info does.
+ *
+ * @author kedar
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinearChainBenchmark {
+    @Param({"10", "40"})
+    public int length;
+    @Param({"4", "16"})
+    public int numLabels;
+
+    private LinearChain chain;
+    private double[] posteriors;
+    private int[] labels;
+    private LinearChain.PosteriorSink sink;
+    private final Random random = new Random(1);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final int K = numLabels;
+        chain = new LinearChain(K, length);
+        Random r = new Random(1);
+        for (int a = 0; a < K; a++)
+            chain.startScores[a] = r.nextGaussian();
+        for (int i = 0; i < (length - 1) * K * K; i++)
+            chain.transitionScores[i] = r.nextGaussian();
+        chain.invalidate();
+        posteriors = new double[(length + 1) * K * K];
+        labels = new int[length];
+        sink = new LinearChain.PosteriorSink() {
+            public void setStartPosterior(int a, double prob) {
+                posteriors[a] += prob;
+            }
+
+            public void setTransitionPosterior(int i, int a, int b, double prob) {
+                posteriors[(i * K + a) * K + b] += prob;
+            }
+        };
+    }
+
+    @Benchmark
+    public double insideSum() {
+        chain.invalidate();
+        return chain.computeInside();
+    }
+
+    @Benchmark
+    public double insideMax() {
+        chain.invalidate();
+        return chain.computeMax();
+    }
+
+    // Forward-backward and posteriors from scratch (Hypergraph: insideSum +
+    // outside + fetchPosteriors)
+    @Benchmark
+    public double[] fetchPosteriors() {
+        chain.invalidate();
+        chain.fetchPosteriors(sink);
+        return posteriors;
+    }
+
+    @State(Scope.Thread)
+    public static class InsideDone {
+        @Setup(Level.Trial)
+        public void setUp(LinearChainBenchmark b) {
+            b.chain.invalidate();
+            b.chain.computeInside();
+            b.chain.computeMax();
+        }
+    }
+
+    @Benchmark
+    public int[] fetchSampleLabels(InsideDone insideDone) {
+        chain.fetchSampleLabels(random, labels);
+        return labels;
+    }
+
+    @Benchmark
+    public int[] fetchBestLabels(InsideDone insideDone) {
+        chain.fetchBestLabels(labels);
+        return labels;
+    }
+}
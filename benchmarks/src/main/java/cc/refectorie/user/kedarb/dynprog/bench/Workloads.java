@@ -0,0 +1,172 @@
+package cc.refectorie.user.kedarb.dynprog.bench;
+
+import cc.refectorie.user.kedarb.dynprog.types.Hypergraph;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic hypergraphs for the benchmarks. Each edge's info records its
+ * posterior in a shared array and counts the edges chosen in a widget, so
+ * the callbacks cost about as much as in a real model.
+ *
+ * chain: linear-chain tagger over length positions and numLabels labels
+ * cky: binary-branching parse chart over length words; each span has
+ * numLabels labels (the right child keeps the parent's label)
+ * prod: chain whose transitions are prod nodes joining the next position
+ * with a separate emission choice (numLabels words per label)
+ *
+ * @author kedar
+ */
+public class Workloads {
+    public enum Shape {
+        chain, cky, prod
+    }
+
+    // Widget: number of edges chosen
+    public static class Count {
+        public int n;
+    }
+
+    public static class Info implements Hypergraph.HyperedgeInfo<Count> {
+        final double weight;
+        final double[] posteriors;
+        final int index;
+
+        Info(double weight, double[] posteriors, int index) {
+            this.weight = weight;
+            this.posteriors = posteriors;
+            this.index = index;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public void setPosterior(double prob) {
+            posteriors[index] += prob;
+        }
+
+        public Count choose(Count widget) {
+            widget.n++;
+            return widget;
+        }
+    }
+
+    private final Shape shape;
+    private final int length, numLabels;
+    // Weights and posteriors of the distinct infos (shared by edges)
+    private final double[] weights;
+    public final double[] posteriors;
+    private final Info[] infos;
+
+    public Workloads(Shape shape, int length, int numLabels, long seed) {
+        this.shape = shape;
+        this.length = length;
+        this.numLabels = numLabels;
+        int numInfos = (length + 1) * numLabels * numLabels;
+        Random random = new Random(seed);
+        weights = new double[numInfos];
+        for (int i = 0; i < numInfos; i++)
+            weights[i] = random.nextGaussian();
+        posteriors = new double[numInfos];
+        infos = new Info[numInfos];
+        for (int i = 0; i < numInfos; i++)
+            infos[i] = new Info(weights[i], posteriors, i);
+    }
+
+    private Info info(int i, int a, int b) {
+        return infos[(i * numLabels + a) * numLabels + b];
+    }
+
+    public Hypergraph<Count> build() {
+        Hypergraph<Count> H = new Hypergraph<Count>();
+        Object start = H.sumStartNode();
+        switch (shape) {
+            case chain:
+                for (int a = 0; a < numLabels; a++)
+                    H.addEdge(start, chainNode(H, 0, a), info(length, 0, a));
+                break;
+            case cky:
+                for (int a = 0; a < numLabels; a++)
+                    H.addEdge(start, spanNode(H, 0, length, a), info(length, 0, a));
+                break;
+            case prod:
+                for (int a = 0; a < numLabels; a++)
+                    H.addEdge(start, prodChainNode(H, 0, a), info(length, 0, a));
+                break;
+        }
+        return H;
+    }
+
+    // The loops below add nodes bottom-up so that deep graphs don't recurse
+
+    private Object chainNode(Hypergraph<Count> H, int i, int a) {
+        for (int j = length - 1; j > i; j--) {
+            for (int b = 0; b < numLabels; b++) {
+                Object node = Arrays.asList(j, b);
+                if (H.addSumNode(node)) {
+                    if (j == length - 1)
+                        H.addEdge(node, info(j, b, 0));
+                    else
+                        for (int c = 0; c < numLabels; c++)
+                            H.addEdge(node, Arrays.asList(j + 1, c), info(j, b, c));
+                }
+            }
+        }
+        Object node = Arrays.asList(i, a);
+        if (H.addSumNode(node)) {
+            if (i == length - 1)
+                H.addEdge(node, info(i, a, 0));
+            else
+                for (int c = 0; c < numLabels; c++)
+                    H.addEdge(node, Arrays.asList(i + 1, c), info(i, a, c));
+        }
+        return node;
+    }
+
+    private Object spanNode(Hypergraph<Count> H, int start, int end, int a) {
+        for (int width = 1; width <= length; width++) {
+            for (int i = 0; i + width <= length; i++) {
+                int j = i + width;
+                for (int b = 0; b < numLabels; b++) {
+                    Object node = Arrays.asList(i, j, b);
+                    if (!H.addSumNode(node))
+                        continue;
+                    if (width == 1)
+                        H.addEdge(node, info(i, b, 0));
+                    else
+                        for (int k = i + 1; k < j; k++)
+                            for (int c = 0; c < numLabels; c++)
+                                H.addEdge(node, Arrays.asList(i, k, c), Arrays.asList(k, j, b), info(k, b, c));
+                }
+            }
+        }
+        return Arrays.asList(start, end, a);
+    }
+
+    private Object prodChainNode(Hypergraph<Count> H, int i, int a) {
+        for (int j = length - 1; j >= i; j--) {
+            for (int b = 0; b < numLabels; b++) {
+                Object emission = Arrays.asList(j, b, "emit");
+                if (H.addSumNode(emission))
+                    for (int w = 0; w < numLabels; w++)
+                        H.addEdge(emission, info(j, w, b));
+                Object node = Arrays.asList(j, b);
+                if (!H.addSumNode(node))
+                    continue;
+                if (j == length - 1)
+                    H.addEdge(node, emission, info(j, b, 0));
+                else
+                    for (int c = 0; c < numLabels; c++) {
+                        Object transition = Arrays.asList(j, b, c);
+                        H.addProdNode(transition);
+                        H.addEdge(transition, emission);
+                        H.addEdge(transition, Arrays.asList(j + 1, c), info(j, b, c));
+                        H.addEdge(node, transition);
+                    }
+            }
+        }
+        return Arrays.asList(i, a);
+    }
+}
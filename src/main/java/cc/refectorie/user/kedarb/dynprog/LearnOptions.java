@@ -14,6 +14,25 @@ public class LearnOptions {
 
     @Opt(gloss = "Number of threads during learning")
     public int numThreads = 1;
+    @Opt(gloss = "Use the threads within the inference of each (very large) hypergraph")
+    public boolean parallelHypergraph = false;
+    @Opt(gloss = "Split examples into this many shards with their own counts (or gradients) during the " +
+            "E-step and the batch objective, summed up in a fixed order so that results don't depend on " +
+            "numThreads; at most this many threads are used. Each shard holds a full copy of the counts " +
+            "(0: one shard per thread)")
+    public int numShards = 0;
+    @Opt(gloss = "Prune hypergraph nodes and edges whose best hyperpath scores more than this " +
+            "below the best one before computing posteriors (Infinity: no pruning)")
+    public double pruneThreshold = Double.POSITIVE_INFINITY;
+    @Opt(gloss = "Also measure the log Z lost to pruning (costs an extra inside pass)")
+    public boolean pruneLogZLoss = false;
+    @Opt(gloss = "Find best widgets (decoding) with best-first search, which stops once the start node " +
+            "is reached; needs edge weights <= 0 (log-probabilities): generative models only")
+    public boolean bestFirstDecoding = false;
+    @Opt(gloss = "Collect hypergraph timers and counters (logged every iteration, exported via JMX)")
+    public boolean hypergraphStats = false;
+    @Opt(gloss = "Also log the hypergraph totals every this many seconds (0: only every iteration)")
+    public int hypergraphStatsLogSeconds = 0;
 
     @Opt(gloss = "Initial temperature for annealing")
     public double initTemperature = 1;
@@ -38,6 +57,12 @@ public class LearnOptions {
     public double smoothing = 1e-3;
     @Opt(gloss = "Regular stepwise EM")
     public boolean convexCombUpdate = false;
+    @Opt(gloss = "Online: update the parameters after mini-batches of this many examples, split " +
+            "among numThreads threads (1: after every example)")
+    public int miniBatchSize = 1;
+    @Opt(gloss = "Online mini-batches: threads update the shared weights without locks instead of " +
+            "summing up their own counts (only if all parameters are dense weight vectors, else ignored)")
+    public boolean hogwild = false;
 
     @Opt(gloss = "Output directory", required = true)
     public String outputDir = null;
@@ -0,0 +1,245 @@
+package cc.refectorie.user.kedarb.dynprog.fst;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary file of featurized sequences, written once and memory-mapped on
+ * later runs. Layout (all ints after the header are varints):
+ *
+ * header: magic, version, key (long), number of sequences (int)
+ * per sequence: length T; T words and T labels (zigzag, since unknown ones
+ * are -1); per token, the number of features and the sorted feature ids
+ * (the first one as is, the others as the gap from the previous one).
+ *
+ * The key ties the file to everything that went into it (feature options,
+ * dictionaries, source files): a file with another key (or version) is
+ * stale and has to be written again. Features are binary (value 1).
+ *
+ * @author kedar
+ */
+public class CorpusCache {
+    public static final int MAGIC = 0x44504343; // "DPCC"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    // 64-bit FNV-1a of the parts
+    public static long key(String... parts) {
+        long h = 0xcbf29ce484222325L;
+        for (String part : parts) {
+            for (int i = 0; i < part.length(); i++) {
+                h ^= part.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= 0xff; // Separator
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Whether file exists and was written with key (by this version)
+    public static boolean isValid(File file, long key) {
+        if (!file.isFile() || file.length() < HEADER_SIZE)
+            return false;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == key;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static class Writer {
+        private final File file, tmpFile;
+        private final long key;
+        private final DataOutputStream out;
+        private int numSequences;
+        private int[] sorted = new int[16];
+
+        public Writer(File file, long key) throws IOException {
+            this.file = file;
+            this.key = key;
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create " + dir);
+            tmpFile = new File(file.getPath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(key);
+            out.writeInt(0); // Number of sequences: set by close()
+        }
+
+        private void writeVarint(int x) throws IOException {
+            while ((x & ~0x7f) != 0) {
+                out.write((x & 0x7f) | 0x80);
+                x >>>= 7;
+            }
+            out.write(x);
+        }
+
+        private void writeZigzag(int x) throws IOException {
+            writeVarint((x << 1) ^ (x >> 31));
+        }
+
+        /**
+         * Appends a sequence: features[i] are the (non-negative) feature ids
+         * of token i, in any order.
+         */
+        public void add(int[] words, int[] labels, int[][] features) throws IOException {
+            int T = words.length;
+            writeVarint(T);
+            for (int i = 0; i < T; i++)
+                writeZigzag(words[i]);
+            for (int i = 0; i < T; i++)
+                writeZigzag(labels[i]);
+            for (int i = 0; i < T; i++) {
+                int n = features[i].length;
+                if (sorted.length < n)
+                    sorted = new int[Math.max(n, 2 * sorted.length)];
+                System.arraycopy(features[i], 0, sorted, 0, n);
+                java.util.Arrays.sort(sorted, 0, n);
+                writeVarint(n);
+                int prev = 0;
+                for (int k = 0; k < n; k++) {
+                    if (sorted[k] < 0)
+                        throw new IllegalArgumentException("Negative feature id: " + sorted[k]);
+                    writeVarint(sorted[k] - prev);
+                    prev = sorted[k];
+                }
+            }
+            numSequences++;
+        }
+
+        // Writes the number of sequences and moves the file in place
+        public void close() throws IOException {
+            out.close();
+            RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+            try {
+                raf.seek(HEADER_SIZE - 4);
+                raf.writeInt(numSequences);
+            } finally {
+                raf.close();
+            }
+            if (file.exists() && !file.delete())
+                throw new IOException("Unable to replace " + file);
+            if (!tmpFile.renameTo(file))
+                throw new IOException("Unable to rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Iterates over the sequences of a mapped file. next() decodes a
+     * sequence into arrays that are reused for the next one, so nothing is
+     * allocated per sequence or token once they are large enough.
+     */
+    public static class Reader {
+        private final MappedByteBuffer buffer;
+        private final int numSequences;
+        private int numRead;
+
+        private int T;
+        private int[] words = new int[64], labels = new int[64];
+        private int[] featureOffsets = new int[65], featureIds = new int[1024];
+
+        public Reader(File file, long key) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("Corpus cache too large to map: " + file);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close(); // The mapping stays valid
+            }
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != key)
+                throw new IOException("Stale corpus cache: " + file);
+            numSequences = buffer.getInt();
+        }
+
+        public int numSequences() {
+            return numSequences;
+        }
+
+        private int readVarint() {
+            int x = 0, shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                x |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return x;
+        }
+
+        private int readZigzag() {
+            int x = readVarint();
+            return (x >>> 1) ^ -(x & 1);
+        }
+
+        public boolean hasNext() {
+            return numRead < numSequences;
+        }
+
+        // Decodes the next sequence
+        public void next() {
+            if (!hasNext())
+                throw new java.util.NoSuchElementException();
+            T = readVarint();
+            if (words.length < T) {
+                words = new int[2 * T];
+                labels = new int[2 * T];
+                featureOffsets = new int[2 * T + 1];
+            }
+            for (int i = 0; i < T; i++)
+                words[i] = readZigzag();
+            for (int i = 0; i < T; i++)
+                labels[i] = readZigzag();
+            int numFeatures = 0;
+            for (int i = 0; i < T; i++) {
+                featureOffsets[i] = numFeatures;
+                int n = readVarint();
+                if (featureIds.length < numFeatures + n) {
+                    int[] newIds = new int[2 * (numFeatures + n)];
+                    System.arraycopy(featureIds, 0, newIds, 0, numFeatures);
+                    featureIds = newIds;
+                }
+                int id = 0;
+                for (int k = 0; k < n; k++) {
+                    id += readVarint();
+                    featureIds[numFeatures++] = id;
+                }
+            }
+            featureOffsets[T] = numFeatures;
+            numRead++;
+        }
+
+        public int length() {
+            return T;
+        }
+
+        public int word(int i) {
+            return words[i];
+        }
+
+        public int label(int i) {
+            return labels[i];
+        }
+
+        public int numFeatures(int i) {
+            return featureOffsets[i + 1] - featureOffsets[i];
+        }
+
+        // k-th (in increasing order) feature id of token i
+        public int feature(int i, int k) {
+            return featureIds[featureOffsets[i] + k];
+        }
+    }
+}
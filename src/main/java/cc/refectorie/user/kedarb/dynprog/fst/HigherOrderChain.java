@@ -0,0 +1,410 @@
+package cc.refectorie.user.kedarb.dynprog.fst;
+
+import cc.refectorie.user.kedarb.tools.utils.NumUtils;
+
+import java.util.*;
+
+/**
+ * Forward-backward, Viterbi and sampling for taggers whose scores depend on
+ * label n-grams (order n: the label at position i and the n labels before
+ * it). A state is the history of the last n labels, padded with BOS at the
+ * beginning of the sequence, and a transition appends one label to it.
+ *
+ * Only the (n+1)-grams that are allowed (e.g., seen in the training data,
+ * as with TagOptions.sparseTransitions) become transitions, and only the
+ * histories reachable from the all-BOS history through them become states,
+ * so time and memory are proportional to the reachable states and
+ * transitions rather than to K^n and K^(n+1). Histories with j real labels
+ * only occur at position j (j < n), so at each position only the states
+ * (and scores) of one level are kept.
+ *
+ * Scores are log-weights, set per position and transition:
+ * scores[scoreIndex(i, e)] for e in [transitionsBegin(i), transitionsEnd(i)).
+ * The label of position i is labelOf(e) and getGram(e, gram) gives the whole
+ * n-gram. Sampling picks transitions the same way as LinearChain.
+ *
+ * @author kedar
+ */
+public class HigherOrderChain {
+    public interface PosteriorSink {
+        public void setTransitionPosterior(int i, int e, double prob);
+    }
+
+    public static final int BOS = -1;
+
+    private final int K, n;
+    // States sorted by level (number of real labels in the history, up to n);
+    // states of level j are [levelOffsets[j], levelOffsets[j + 1])
+    private final long[] stateKeys;
+    private final int[] levelOffsets;
+    // Transitions sorted by source state
+    private final int[] edgeOffsets, sources, dests, labels;
+
+    private int T;
+    public double[] scores;
+    // Per position: offsets of the scores of its transitions and of the
+    // forward/backward values of its source states
+    private int[] scoreOffsets, stateOffsets;
+    private double[] inside, outside, max;
+    private int[] bestEdges;
+    private final double[] cdf;
+    private boolean hasInside, hasOutside, hasMax;
+
+    private double logZ = Double.NaN, elogZ = Double.NaN, entropy = Double.NaN;
+
+    /**
+     * Builds the state space for numLabels labels and histories of order
+     * labels. allowedGrams are the allowed (order+1)-grams of labels, each
+     * with BOS for positions before the beginning (all of them if null).
+     */
+    public HigherOrderChain(int numLabels, int order, Collection<int[]> allowedGrams) {
+        if (order < 1)
+            throw new IllegalArgumentException("Order must be >= 1: " + order);
+        if ((order + 1) * Math.log(numLabels + 1) >= 63 * Math.log(2))
+            throw new IllegalArgumentException("Too many labels for order " + order + ": " + numLabels);
+        this.K = numLabels;
+        this.n = order;
+        HashSet<Long> allowed = null;
+        if (allowedGrams != null) {
+            allowed = new HashSet<Long>();
+            for (int[] gram : allowedGrams) {
+                if (gram.length != n + 1)
+                    throw new IllegalArgumentException("Not an " + (n + 1) + "-gram: " + Arrays.toString(gram));
+                allowed.add(pack(gram));
+            }
+        }
+
+        // Breadth-first from the all-BOS history: level by level
+        HashMap<Long, Integer> stateIds = new HashMap<Long, Integer>();
+        ArrayList<Long> keys = new ArrayList<Long>();
+        ArrayList<int[]> edges = new ArrayList<int[]>(); // source, dest, label
+        levelOffsets = new int[n + 2];
+        long modulus = 1;
+        for (int j = 0; j < n; j++)
+            modulus *= K + 1;
+        keys.add(0L);
+        stateIds.put(0L, 0);
+        for (int s = 0; s < keys.size(); s++) {
+            int level = level(keys.get(s));
+            if (level > 0 && levelOffsets[level] == 0)
+                levelOffsets[level] = s;
+            for (int y = 0; y < K; y++) {
+                long gramKey = keys.get(s) * (K + 1) + y + 1;
+                if (allowed != null && !allowed.contains(gramKey))
+                    continue;
+                long destKey = gramKey % modulus;
+                Integer dest = stateIds.get(destKey);
+                if (dest == null) {
+                    dest = keys.size();
+                    keys.add(destKey);
+                    stateIds.put(destKey, dest);
+                }
+                edges.add(new int[]{s, dest, y});
+            }
+        }
+        int S = keys.size();
+        for (int j = 1; j <= n + 1; j++)
+            if (levelOffsets[j] == 0)
+                levelOffsets[j] = S; // Nothing at this level (and above)
+        stateKeys = new long[S];
+        for (int s = 0; s < S; s++)
+            stateKeys[s] = keys.get(s);
+
+        // Edges were added in order of source
+        int E = edges.size();
+        edgeOffsets = new int[S + 1];
+        sources = new int[E];
+        dests = new int[E];
+        labels = new int[E];
+        for (int e = 0; e < E; e++) {
+            int[] edge = edges.get(e);
+            edgeOffsets[edge[0] + 1]++;
+            sources[e] = edge[0];
+            dests[e] = edge[1];
+            labels[e] = edge[2];
+        }
+        for (int s = 0; s < S; s++)
+            edgeOffsets[s + 1] += edgeOffsets[s];
+        cdf = new double[K];
+    }
+
+    // Pack labels (BOS = -1) in base K + 1, first label most significant
+    private long pack(int[] gram) {
+        long key = 0;
+        for (int y : gram) {
+            if (y < BOS || y >= K)
+                throw new IllegalArgumentException("Bad label: " + y);
+            key = key * (K + 1) + y + 1;
+        }
+        return key;
+    }
+
+    // Number of real labels in a history
+    private int level(long key) {
+        int level = 0;
+        for (int j = 0; j < n && key > 0; j++, key /= K + 1)
+            if (key % (K + 1) != 0)
+                level = j + 1;
+        return level;
+    }
+
+    private int levelAt(int i) {
+        return Math.min(i, n);
+    }
+
+    public int numStates() {
+        return stateKeys.length;
+    }
+
+    public int numTransitions() {
+        return dests.length;
+    }
+
+    public int order() {
+        return n;
+    }
+
+    // Transitions that can be taken at position i
+    public int transitionsBegin(int i) {
+        return edgeOffsets[levelOffsets[levelAt(i)]];
+    }
+
+    public int transitionsEnd(int i) {
+        return edgeOffsets[levelOffsets[levelAt(i) + 1]];
+    }
+
+    public int scoreIndex(int i, int e) {
+        return scoreOffsets[i] + e - transitionsBegin(i);
+    }
+
+    public int labelOf(int e) {
+        return labels[e];
+    }
+
+    // Fills gram[0..n] with the history of e followed by its label
+    public void getGram(int e, int[] gram) {
+        long key = stateKeys[sources[e]];
+        for (int j = n - 1; j >= 0; j--, key /= K + 1)
+            gram[j] = (int) (key % (K + 1)) - 1;
+        gram[n] = labels[e];
+    }
+
+    // Sets the length of the next sequence (growing the arrays if needed)
+    public void setLength(int length) {
+        if (length < 1)
+            throw new IllegalArgumentException("Empty sequence");
+        T = length;
+        if (scoreOffsets == null || scoreOffsets.length < T + 1) {
+            scoreOffsets = new int[T + 1];
+            stateOffsets = new int[T + 2];
+        }
+        for (int i = 0; i < T; i++) {
+            int level = levelAt(i);
+            scoreOffsets[i + 1] = scoreOffsets[i] + transitionsEnd(i) - transitionsBegin(i);
+            stateOffsets[i + 1] = stateOffsets[i] + levelOffsets[level + 1] - levelOffsets[level];
+        }
+        // Values after the last position (all zero)
+        int level = levelAt(T);
+        stateOffsets[T + 1] = stateOffsets[T] + levelOffsets[level + 1] - levelOffsets[level];
+        if (scores == null || scores.length < scoreOffsets[T])
+            scores = new double[scoreOffsets[T]];
+        if (inside == null || inside.length < stateOffsets[T + 1]) {
+            inside = new double[stateOffsets[T + 1]];
+            outside = new double[stateOffsets[T + 1]];
+            max = new double[stateOffsets[T + 1]];
+            bestEdges = new int[stateOffsets[T + 1]];
+        }
+        invalidate();
+    }
+
+    public int length() {
+        return T;
+    }
+
+    // Call after changing scores
+    public void invalidate() {
+        hasInside = hasOutside = hasMax = false;
+        logZ = elogZ = entropy = Double.NaN;
+    }
+
+    public double getLogZ() {
+        return logZ;
+    }
+
+    public double getELogZ() {
+        return elogZ;
+    }
+
+    public double getEntropy() {
+        return entropy;
+    }
+
+    // Index of the value of state s before position i
+    private int at(int i, int s) {
+        return stateOffsets[i] + s - levelOffsets[levelAt(i)];
+    }
+
+    /**
+     * Bytes taken by the state space and the per-position arrays of the
+     * current length (excluding the scratch space of sampling).
+     */
+    public long numBytes() {
+        long bytes = 8L * stateKeys.length + 4L * (levelOffsets.length + edgeOffsets.length + 3 * dests.length);
+        bytes += 8L * scores.length + 4L * (scoreOffsets.length + stateOffsets.length);
+        bytes += (8L * 3 + 4L) * inside.length;
+        return bytes;
+    }
+
+    public double computeInside() {
+        if (hasInside)
+            return logZ;
+        int first = at(T, levelOffsets[levelAt(T)]);
+        Arrays.fill(inside, first, stateOffsets[T + 1], 0);
+        for (int i = T - 1; i >= 0; i--) {
+            int level = levelAt(i), scoreBase = scoreOffsets[i] - transitionsBegin(i), next = at(i + 1, 0);
+            for (int s = levelOffsets[level]; s < levelOffsets[level + 1]; s++) {
+                double score = Double.NEGATIVE_INFINITY;
+                for (int e = edgeOffsets[s]; e < edgeOffsets[s + 1]; e++)
+                    score = NumUtils.logAdd(score, scores[scoreBase + e] + inside[next + dests[e]]);
+                inside[at(i, s)] = score;
+            }
+        }
+        logZ = inside[at(0, 0)];
+        hasInside = true;
+        return logZ;
+    }
+
+    public double computeMax() {
+        if (!hasMax) {
+            int first = at(T, levelOffsets[levelAt(T)]);
+            Arrays.fill(max, first, stateOffsets[T + 1], 0);
+            for (int i = T - 1; i >= 0; i--) {
+                int level = levelAt(i), scoreBase = scoreOffsets[i] - transitionsBegin(i), next = at(i + 1, 0);
+                for (int s = levelOffsets[level]; s < levelOffsets[level + 1]; s++) {
+                    // Keep the first transition with the highest score
+                    int begin = edgeOffsets[s], end = edgeOffsets[s + 1];
+                    int best = begin < end ? begin : -1;
+                    double score = Double.NEGATIVE_INFINITY;
+                    for (int e = begin; e < end; e++) {
+                        double edgeScore = scores[scoreBase + e] + max[next + dests[e]];
+                        if (edgeScore > score) {
+                            score = edgeScore;
+                            best = e;
+                        }
+                    }
+                    max[at(i, s)] = score;
+                    bestEdges[at(i, s)] = best;
+                }
+            }
+            hasMax = true;
+        }
+        return max[at(0, 0)];
+    }
+
+    private void computeOutside() {
+        computeInside();
+        if (hasOutside)
+            return;
+        Arrays.fill(outside, 0, stateOffsets[T + 1], Double.NEGATIVE_INFINITY);
+        outside[at(0, 0)] = 0;
+        for (int i = 0; i < T; i++) {
+            int level = levelAt(i), scoreBase = scoreOffsets[i] - transitionsBegin(i), next = at(i + 1, 0);
+            for (int s = levelOffsets[level]; s < levelOffsets[level + 1]; s++) {
+                double out = outside[at(i, s)];
+                if (inside[at(i, s)] == Double.NEGATIVE_INFINITY || out == Double.NEGATIVE_INFINITY)
+                    continue;
+                for (int e = edgeOffsets[s]; e < edgeOffsets[s + 1]; e++) {
+                    int d = next + dests[e];
+                    outside[d] = NumUtils.logAdd(outside[d], out + scores[scoreBase + e]);
+                }
+            }
+        }
+        hasOutside = true;
+    }
+
+    /**
+     * Sends the posterior of each transition taken at each position (if
+     * non-zero) to sink, and computes E_q[log weight] and the entropy of q.
+     */
+    public void fetchPosteriors(PosteriorSink sink) {
+        computeOutside();
+        double elogZ = 0, entropy = 0;
+        for (int i = 0; i < T; i++) {
+            int level = levelAt(i), scoreBase = scoreOffsets[i] - transitionsBegin(i), next = at(i + 1, 0);
+            for (int s = levelOffsets[level]; s < levelOffsets[level + 1]; s++) {
+                double in = inside[at(i, s)], out = outside[at(i, s)];
+                if (in == Double.NEGATIVE_INFINITY || out == Double.NEGATIVE_INFINITY)
+                    continue; // Dead or unreachable
+                for (int e = edgeOffsets[s]; e < edgeOffsets[s + 1]; e++) {
+                    double weight = scores[scoreBase + e];
+                    double score = weight + inside[next + dests[e]];
+                    double prob = Math.exp(out + score - logZ);
+                    if (prob == 0)
+                        continue;
+                    elogZ += prob * weight;
+                    entropy -= prob * (score - in);
+                    if (sink != null)
+                        sink.setTransitionPosterior(i, e, prob);
+                }
+            }
+        }
+        this.elogZ = elogZ;
+        this.entropy = entropy;
+    }
+
+    /**
+     * Fills labels[0..T) with the best labeling and returns its log-weight.
+     * If transitions is not null, it gets the transition taken at each
+     * position.
+     */
+    public double fetchBestLabels(int[] labels, int[] transitions) {
+        computeMax();
+        double logWeight = 0;
+        int s = 0;
+        for (int i = 0; i < T; i++) {
+            int e = bestEdges[at(i, s)];
+            if (e == -1)
+                throw new IllegalStateException("Unable to choose from: " + stateString(s) + " at " + i);
+            logWeight += scores[scoreIndex(i, e)];
+            labels[i] = this.labels[e];
+            if (transitions != null)
+                transitions[i] = e;
+            s = dests[e];
+        }
+        return logWeight;
+    }
+
+    /**
+     * Fills labels[0..T) with a labeling drawn from the posterior and returns
+     * its log-weight (one uniform per position).
+     */
+    public double fetchSampleLabels(Random random, int[] labels, int[] transitions) {
+        computeInside();
+        double logWeight = 0;
+        int s = 0;
+        for (int i = 0; i < T; i++) {
+            int begin = edgeOffsets[s], end = edgeOffsets[s + 1];
+            int scoreBase = scoreOffsets[i] - transitionsBegin(i), next = at(i + 1, 0);
+            for (int e = begin; e < end; e++)
+                cdf[e - begin] = scores[scoreBase + e] + inside[next + dests[e]];
+            int choice = LinearChain.choose(random, cdf, end - begin);
+            if (choice == -1)
+                throw new IllegalStateException("Unable to choose from: " + stateString(s) + " at " + i);
+            int e = begin + choice;
+            logWeight += scores[scoreBase + e];
+            labels[i] = this.labels[e];
+            if (transitions != null)
+                transitions[i] = e;
+            s = dests[e];
+        }
+        return logWeight;
+    }
+
+    private String stateString(int s) {
+        int[] history = new int[n];
+        long key = stateKeys[s];
+        for (int j = n - 1; j >= 0; j--, key /= K + 1)
+            history[j] = (int) (key % (K + 1)) - 1;
+        return Arrays.toString(history);
+    }
+}
@@ -0,0 +1,434 @@
+package cc.refectorie.user.kedarb.dynprog.fst;
+
+import cc.refectorie.user.kedarb.tools.utils.NumUtils;
+
+import java.util.Random;
+
+/**
+ * Forward-backward, Viterbi and sampling over a dense T x K trellis: the
+ * hypergraph of a first-order tagger (see ATaggingInferState) without the
+ * per-node and per-edge objects. Scores are log-weights:
+ * startScores[a] for label a at position 0, and
+ * transitionScores[transitionIndex(i, a, b)] for label a at position i-1
+ * followed by label b at position i (0 < i < T).
+ *
+ * Allowed starts and transitions (e.g., TagOptions.sparseTransitions) are
+ * kept as sorted lists of successors, so disallowed ones cost nothing;
+ * position-dependent constraints can be given as -Infinity scores instead.
+ *
+ * The inside (backward) and max passes visit edges in the same order as the
+ * Hypergraph built by ATaggingInferState, so log Z, the best labeling (ties
+ * included) and samples drawn with the same Random are the same as with the
+ * Hypergraph; posteriors agree up to rounding. Nothing is allocated after
+ * construction unless a longer sequence comes along.
+ *
+ * @author kedar
+ */
+public class LinearChain {
+    public interface PosteriorSink {
+        public void setStartPosterior(int a, double prob);
+
+        // Label a at position i-1 and label b at position i
+        public void setTransitionPosterior(int i, int a, int b, double prob);
+    }
+
+    private final int K;
+    private int T;
+    public double[] startScores;
+    public double[] transitionScores;
+
+    // Allowed starts and successors of each label (sorted)
+    private int[] starts;
+    private int[] nextOffsets, nexts;
+
+    // [i * K + a]: backward (inside), forward (outside) and max scores, and
+    // the best successor of a at position i
+    private double[] inside, outside, max;
+    private int[] bestNext;
+    private final double[] cdf;
+    private boolean hasInside, hasOutside, hasMax;
+
+    private double logZ = Double.NaN, elogZ = Double.NaN, entropy = Double.NaN;
+
+    public LinearChain(int numLabels, int length) {
+        this.K = numLabels;
+        cdf = new double[K];
+        setAllowed(null, null);
+        setLength(length);
+    }
+
+    /**
+     * Restricts the starts and transitions (null: allow all); the lists of
+     * successors are built once and kept across sequences.
+     */
+    public void setAllowed(boolean[] allowedStarts, boolean[][] allowedTransitions) {
+        int n = 0;
+        for (int a = 0; a < K; a++)
+            if (allowedStarts == null || allowedStarts[a])
+                n++;
+        starts = new int[n];
+        n = 0;
+        for (int a = 0; a < K; a++)
+            if (allowedStarts == null || allowedStarts[a])
+                starts[n++] = a;
+
+        nextOffsets = new int[K + 1];
+        for (int a = 0; a < K; a++) {
+            int count = 0;
+            for (int b = 0; b < K; b++)
+                if (allowedTransitions == null || allowedTransitions[a][b])
+                    count++;
+            nextOffsets[a + 1] = nextOffsets[a] + count;
+        }
+        nexts = new int[nextOffsets[K]];
+        n = 0;
+        for (int a = 0; a < K; a++)
+            for (int b = 0; b < K; b++)
+                if (allowedTransitions == null || allowedTransitions[a][b])
+                    nexts[n++] = b;
+        invalidate();
+    }
+
+    // Sets the length of the next sequence (growing the arrays if needed)
+    public void setLength(int length) {
+        if (length < 1)
+            throw new IllegalArgumentException("Empty sequence");
+        T = length;
+        if (startScores == null)
+            startScores = new double[K];
+        if (inside == null || inside.length < T * K) {
+            transitionScores = new double[Math.max(T - 1, 1) * K * K];
+            inside = new double[T * K];
+            outside = new double[T * K];
+            max = new double[T * K];
+            bestNext = new int[T * K];
+        }
+        invalidate();
+    }
+
+    public int length() {
+        return T;
+    }
+
+    public int numLabels() {
+        return K;
+    }
+
+    // Allowed starts; allowed successors of a are
+    // getNexts()[getNextOffsets()[a] .. getNextOffsets()[a + 1]). Scores of
+    // other starts and transitions are never read. Don't modify.
+
+    public int[] getStarts() {
+        return starts;
+    }
+
+    public int[] getNextOffsets() {
+        return nextOffsets;
+    }
+
+    public int[] getNexts() {
+        return nexts;
+    }
+
+    public int transitionIndex(int i, int a, int b) {
+        return ((i - 1) * K + a) * K + b;
+    }
+
+    /**
+     * Fills in the scores of a model whose transitions don't depend on the
+     * position: emissions[i * K + b] for label b at position i, transitions
+     * [a * K + b] and starts[a].
+     */
+    public void setScores(double[] starts, double[] transitions, double[] emissions) {
+        for (int a = 0; a < K; a++)
+            startScores[a] = starts[a] + emissions[a];
+        for (int i = 1; i < T; i++) {
+            int row = (i - 1) * K * K, emit = i * K;
+            for (int a = 0; a < K; a++)
+                for (int b = 0; b < K; b++)
+                    transitionScores[row + a * K + b] = transitions[a * K + b] + emissions[emit + b];
+        }
+        invalidate();
+    }
+
+    // Call after changing startScores or transitionScores directly
+    public void invalidate() {
+        hasInside = hasOutside = hasMax = false;
+        logZ = elogZ = entropy = Double.NaN;
+    }
+
+    public double getLogZ() {
+        return logZ;
+    }
+
+    public double getELogZ() {
+        return elogZ;
+    }
+
+    public double getEntropy() {
+        return entropy;
+    }
+
+    // Inside score of label b at position i (the end node after the last one)
+    private double insideAt(int i, int b) {
+        return i == T - 1 ? 0 : inside[i * K + b];
+    }
+
+    public double computeInside() {
+        if (hasInside)
+            return logZ;
+        final double[] scores = transitionScores;
+        for (int i = T - 2; i >= 0; i--) {
+            int row = i * K * K, next = (i + 1) * K;
+            boolean last = i == T - 2;
+            for (int a = 0; a < K; a++) {
+                double score = Double.NEGATIVE_INFINITY;
+                int base = row + a * K;
+                for (int e = nextOffsets[a]; e < nextOffsets[a + 1]; e++) {
+                    int b = nexts[e];
+                    score = NumUtils.logAdd(score, scores[base + b] + (last ? 0 : inside[next + b]));
+                }
+                inside[i * K + a] = score;
+            }
+        }
+        double score = Double.NEGATIVE_INFINITY;
+        for (int a : starts)
+            score = NumUtils.logAdd(score, startScores[a] + insideAt(0, a));
+        logZ = score;
+        hasInside = true;
+        return logZ;
+    }
+
+    public double computeMax() {
+        if (hasMax)
+            return bestStartScore();
+        final double[] scores = transitionScores;
+        for (int i = T - 2; i >= 0; i--) {
+            int row = i * K * K, next = (i + 1) * K;
+            boolean last = i == T - 2;
+            for (int a = 0; a < K; a++) {
+                // Keep the first successor with the highest score
+                int begin = nextOffsets[a], end = nextOffsets[a + 1];
+                int best = begin < end ? nexts[begin] : -1;
+                double score = Double.NEGATIVE_INFINITY;
+                int base = row + a * K;
+                for (int e = begin; e < end; e++) {
+                    int b = nexts[e];
+                    double edgeScore = scores[base + b] + (last ? 0 : max[next + b]);
+                    if (edgeScore > score) {
+                        score = edgeScore;
+                        best = b;
+                    }
+                }
+                max[i * K + a] = score;
+                bestNext[i * K + a] = best;
+            }
+        }
+        hasMax = true;
+        return bestStartScore();
+    }
+
+    private double maxAt(int i, int b) {
+        return i == T - 1 ? 0 : max[i * K + b];
+    }
+
+    private int bestStart() {
+        int best = starts.length > 0 ? starts[0] : -1;
+        double score = Double.NEGATIVE_INFINITY;
+        for (int a : starts) {
+            double edgeScore = startScores[a] + maxAt(0, a);
+            if (edgeScore > score) {
+                score = edgeScore;
+                best = a;
+            }
+        }
+        return best;
+    }
+
+    private double bestStartScore() {
+        double score = Double.NEGATIVE_INFINITY;
+        for (int a : starts)
+            score = Math.max(score, startScores[a] + maxAt(0, a));
+        return score;
+    }
+
+    // Outside (forward) scores of positions 0..T-2, skipping dead labels
+    private void computeOutside() {
+        computeInside();
+        if (hasOutside)
+            return;
+        final double[] scores = transitionScores;
+        for (int a = 0; a < K; a++)
+            outside[a] = Double.NEGATIVE_INFINITY;
+        for (int a : starts)
+            outside[a] = startScores[a];
+        for (int i = 0; i < T - 2; i++) {
+            int row = i * K * K, next = (i + 1) * K;
+            for (int b = 0; b < K; b++)
+                outside[next + b] = Double.NEGATIVE_INFINITY;
+            for (int a = 0; a < K; a++) {
+                double out = outside[i * K + a];
+                if (inside[i * K + a] == Double.NEGATIVE_INFINITY || out == Double.NEGATIVE_INFINITY)
+                    continue;
+                int base = row + a * K;
+                for (int e = nextOffsets[a]; e < nextOffsets[a + 1]; e++) {
+                    int b = nexts[e];
+                    outside[next + b] = NumUtils.logAdd(outside[next + b], out + scores[base + b]);
+                }
+            }
+        }
+        hasOutside = true;
+    }
+
+    /**
+     * Sends the posterior of each start and transition with non-zero
+     * probability to sink, and computes E_q[log weight] and the entropy of q
+     * in the same sweep (as Hypergraph.fetchPosteriors does).
+     */
+    public void fetchPosteriors(PosteriorSink sink) {
+        computeOutside();
+        final double[] scores = transitionScores;
+        double elogZ = 0, entropy = 0;
+        for (int a : starts) {
+            double score = startScores[a] + insideAt(0, a);
+            double prob = Math.exp(score - logZ);
+            if (prob == 0)
+                continue;
+            elogZ += prob * startScores[a];
+            entropy -= prob * (score - logZ);
+            if (sink != null)
+                sink.setStartPosterior(a, prob);
+        }
+        for (int i = 0; i < T - 1; i++) {
+            int row = i * K * K;
+            for (int a = 0; a < K; a++) {
+                double in = inside[i * K + a], out = outside[i * K + a];
+                if (in == Double.NEGATIVE_INFINITY || out == Double.NEGATIVE_INFINITY)
+                    continue; // Dead or unreachable
+                int base = row + a * K;
+                for (int e = nextOffsets[a]; e < nextOffsets[a + 1]; e++) {
+                    int b = nexts[e];
+                    double score = scores[base + b] + insideAt(i + 1, b);
+                    double prob = Math.exp(out + score - logZ);
+                    if (prob == 0)
+                        continue;
+                    elogZ += prob * scores[base + b];
+                    entropy -= prob * (score - in);
+                    if (sink != null)
+                        sink.setTransitionPosterior(i + 1, a, b, prob);
+                }
+            }
+        }
+        this.elogZ = elogZ;
+        this.entropy = entropy;
+    }
+
+    // Sets the posteriors of the best labeling to 1 (as Hypergraph does for viterbi)
+    public void fetchBestPosteriors(PosteriorSink sink) {
+        computeMax();
+        int a = bestStart();
+        if (a == -1)
+            throw new IllegalStateException("No allowed start");
+        sink.setStartPosterior(a, 1.0);
+        for (int i = 0; i < T - 1; i++) {
+            int b = bestNext[i * K + a];
+            if (b == -1)
+                throw new IllegalStateException("Unable to choose from: (" + i + ", " + a + ")");
+            sink.setTransitionPosterior(i + 1, a, b, 1.0);
+            a = b;
+        }
+    }
+
+    /**
+     * Fills labels[0..T) with the best labeling and returns its log-weight
+     * (summed in the same order as Hypergraph.fetchBestHyperpath()).
+     */
+    public double fetchBestLabels(int[] labels) {
+        computeMax();
+        int a = bestStart();
+        if (a == -1)
+            throw new IllegalStateException("No allowed start");
+        labels[0] = a;
+        double logWeight = 0;
+        logWeight += startScores[a];
+        for (int i = 0; i < T - 1; i++) {
+            int b = bestNext[i * K + a];
+            if (b == -1)
+                throw new IllegalStateException("Unable to choose from: (" + i + ", " + a + ")");
+            logWeight += transitionScores[transitionIndex(i + 1, a, b)];
+            labels[i + 1] = b;
+            a = b;
+        }
+        return logWeight;
+    }
+
+    /**
+     * Fills labels[0..T) with a labeling drawn from the posterior and returns
+     * its log-weight. Draws one uniform per position and picks an edge the
+     * same way as Hypergraph.fetchSampleHyperpath().
+     */
+    public double fetchSampleLabels(Random random, int[] labels) {
+        computeInside();
+        int n = 0;
+        for (int a : starts)
+            cdf[n++] = startScores[a] + insideAt(0, a);
+        int choice = choose(random, cdf, n);
+        if (choice == -1)
+            throw new IllegalStateException("Unable to choose from: start");
+        int a = starts[choice];
+        labels[0] = a;
+        double logWeight = 0;
+        logWeight += startScores[a];
+        for (int i = 0; i < T - 1; i++) {
+            int base = i * K * K + a * K;
+            int begin = nextOffsets[a];
+            n = nextOffsets[a + 1] - begin;
+            for (int j = 0; j < n; j++) {
+                int b = nexts[begin + j];
+                cdf[j] = transitionScores[base + b] + insideAt(i + 1, b);
+            }
+            choice = choose(random, cdf, n);
+            if (choice == -1)
+                throw new IllegalStateException("Unable to choose from: (" + i + ", " + a + ")");
+            int b = nexts[begin + choice];
+            logWeight += transitionScores[base + b];
+            labels[i + 1] = b;
+            a = b;
+        }
+        return logWeight;
+    }
+
+    // Turns cdf[0..n) from edge scores into running sums of normalized
+    // probabilities (as Hypergraph's sampling tables) and picks one (-1 if
+    // all have zero probability)
+    static int choose(Random random, double[] cdf, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < n; j++)
+            max = Math.max(max, cdf[j]);
+        if (n == 0 || max == Double.NEGATIVE_INFINITY || Double.isNaN(max))
+            return -1;
+        double sum = 0;
+        int last = 0;
+        for (int j = 0; j < n; j++) {
+            double p = Math.exp(cdf[j] - max);
+            if (p > 0)
+                last = j;
+            sum += p;
+            cdf[j] = sum;
+        }
+        for (int j = 0; j < last; j++)
+            cdf[j] /= sum;
+        for (int j = last; j < n; j++)
+            cdf[j] = 1;
+        double u = random.nextDouble();
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (u < cdf[mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,259 @@
+package cc.refectorie.user.kedarb.dynprog.fst;
+
+import cc.refectorie.user.kedarb.dynprog.types.ByteIndexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the sequences of an owpl or uiuc file from a memory-mapped window
+ * that slides over the file, without regexes or Strings: sequences are
+ * groups of lines separated by blank (all whitespace) lines, and fields are
+ * separated by whitespace (the default lineGroupRegex and lineSplitRegex of
+ * TagOptions). Each requested column is interned into a ByteIndexer and
+ * returned as an array of its ids, one per token.
+ *
+ * owpl: one token per line, column j is field j of the line;
+ * uiuc: one column per line, column j is line j of the group.
+ * Negative columns count from the end (as in LbledTokSeq). As with
+ * String.split(), a line that starts with whitespace has an empty first
+ * field, and trailing whitespace is ignored. Only the current window and the
+ * bytes of the current sequence are held in memory. Bytes are taken as UTF-8.
+ * The file is closed at the end, or by close() when stopping early.
+ *
+ * @author kedar
+ */
+public class MappedCorpusReader implements Iterator<int[][]>, Closeable {
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 24;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int pushedBack = -2; // byte read past the end of the last sequence
+
+    private final TagOptions.DataFormat format;
+    private final int[] columns;
+    private final ByteIndexer indexer;
+    private final boolean add;
+
+    // Current sequence: its bytes, and the fields (begin, end) in them
+    private byte[] group = new byte[1 << 12];
+    private int groupSize;
+    private int[] fieldBegins = new int[256], fieldEnds = new int[256];
+    private int numFields, numLines;
+    private int[] lineFields = new int[65]; // first field of each line (and past the last)
+
+    private int[][] next;
+
+    public MappedCorpusReader(File file, TagOptions.DataFormat format, int[] columns,
+                              ByteIndexer indexer, boolean add) throws IOException {
+        this(file, format, columns, indexer, add, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Reads columns of file; new tokens are added to indexer if add is true,
+     * and get id -1 otherwise.
+     */
+    public MappedCorpusReader(File file, TagOptions.DataFormat format, int[] columns,
+                              ByteIndexer indexer, boolean add, int windowSize) throws IOException {
+        if (format != TagOptions.DataFormat.owpl && format != TagOptions.DataFormat.uiuc)
+            throw new IllegalArgumentException("Unsupported data format: " + format);
+        this.format = format;
+        this.columns = columns;
+        this.indexer = indexer;
+        this.add = add;
+        this.windowSize = windowSize;
+        channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            fileSize = channel.size();
+            windowStart = 0;
+            map(0);
+            next = readGroup();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the file (done at the end of it); hasNext() is false afterwards.
+     * The window is unmapped once it is garbage collected.
+     */
+    public void close() throws IOException {
+        next = null;
+        window = null;
+        channel.close();
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, fileSize - start));
+    }
+
+    // Next byte of the file (0-255), -1 at the end
+    private int read() throws IOException {
+        if (pushedBack != -2) {
+            int b = pushedBack;
+            pushedBack = -2;
+            return b;
+        }
+        if (!window.hasRemaining()) {
+            long start = windowStart + window.limit();
+            if (start >= fileSize)
+                return -1;
+            map(start);
+        }
+        return window.get() & 0xff;
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    private void append(int b) {
+        if (groupSize == group.length) {
+            byte[] newGroup = new byte[2 * group.length];
+            System.arraycopy(group, 0, newGroup, 0, groupSize);
+            group = newGroup;
+        }
+        group[groupSize++] = (byte) b;
+    }
+
+    private void addField(int begin, int end) {
+        if (numFields == fieldBegins.length) {
+            fieldBegins = grow(fieldBegins);
+            fieldEnds = grow(fieldEnds);
+        }
+        fieldBegins[numFields] = begin;
+        fieldEnds[numFields] = end;
+        numFields++;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[2 * a.length];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    // Reads lines up to a blank line or the end; null if there are no more
+    private int[][] readGroup() throws IOException {
+        groupSize = numFields = numLines = 0;
+        int b = read();
+        while (b != -1) {
+            // Read one line, splitting it into fields
+            int firstField = numFields, fieldBegin = -1;
+            boolean leadingWhitespace = false;
+            while (b != -1 && b != '\n') {
+                if (isWhitespace(b)) {
+                    if (fieldBegin >= 0) {
+                        addField(fieldBegin, groupSize);
+                        fieldBegin = -1;
+                    } else if (numFields == firstField) {
+                        leadingWhitespace = true;
+                    }
+                } else {
+                    if (fieldBegin < 0) {
+                        if (leadingWhitespace && numFields == firstField)
+                            addField(groupSize, groupSize); // Empty first field
+                        fieldBegin = groupSize;
+                    }
+                    append(b);
+                }
+                b = read();
+            }
+            if (fieldBegin >= 0)
+                addField(fieldBegin, groupSize);
+            if (b == '\n')
+                b = read();
+            if (numFields == firstField) {
+                // Blank line: ends the group (if any)
+                if (numLines > 0) {
+                    pushedBack = b;
+                    break;
+                }
+                continue;
+            }
+            if (numLines + 1 >= lineFields.length)
+                lineFields = grow(lineFields);
+            lineFields[numLines++] = firstField;
+        }
+        if (numLines == 0) {
+            close();
+            return null;
+        }
+        lineFields[numLines] = numFields;
+        return format == TagOptions.DataFormat.owpl ? owplColumns() : uiucColumns();
+    }
+
+    private static int id(int max, int i) {
+        return i >= 0 ? i : max + i;
+    }
+
+    private int indexOf(int field) {
+        return indexer.indexOf(group, fieldBegins[field], fieldEnds[field] - fieldBegins[field], add);
+    }
+
+    private int[][] owplColumns() {
+        int[][] result = new int[columns.length][numLines];
+        for (int line = 0; line < numLines; line++) {
+            int begin = lineFields[line], n = lineFields[line + 1] - begin;
+            for (int c = 0; c < columns.length; c++) {
+                int j = id(n, columns[c]);
+                if (j < 0 || j >= n)
+                    throw new IllegalStateException("No column " + columns[c] + " in line with " + n + " fields");
+                result[c][line] = indexOf(begin + j);
+            }
+        }
+        return result;
+    }
+
+    private int[][] uiucColumns() {
+        int[][] result = new int[columns.length][];
+        for (int c = 0; c < columns.length; c++) {
+            int line = id(numLines, columns[c]);
+            if (line < 0 || line >= numLines)
+                throw new IllegalStateException("No column " + columns[c] + " in group with " + numLines + " lines");
+            int begin = lineFields[line], n = lineFields[line + 1] - begin;
+            result[c] = new int[n];
+            for (int i = 0; i < n; i++)
+                result[c][i] = indexOf(begin + i);
+        }
+        return result;
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    // Ids of the requested columns of the next sequence
+    public int[][] next() {
+        if (next == null)
+            throw new NoSuchElementException();
+        int[][] result = next;
+        try {
+            next = readGroup();
+        } catch (IOException e) {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -21,7 +21,14 @@ public class TagOptions {
     public FeatureMethod featureMethod = FeatureMethod.cora;
     @Opt(gloss = "Only allows transitions seen in training data")
     public boolean sparseTransitions = false;
-    @Opt
+    @Opt(gloss = "Build the hypergraph structure once per sequence length and reuse it")
+    public boolean reuseHypergraphs = true;
+    @Opt(gloss = "Run inference on a dense label trellis instead of a hypergraph (hmm, crf)")
+    public boolean linearChain = false;
+    @Opt(gloss = "Batch CRF training: hyperedges carry their features, so weights and gradients work on the optimizer's parameter array directly")
+    public boolean featureEdges = false;
+    @Opt(gloss = "Factor orders to use: 0 (label per token), 1 (label transitions) and, in the CRF tagger, " +
+            "n > 1 (weights of label (n+1)-grams, inference on a HigherOrderChain)")
     public int[] orders = new int[]{0, 1};
     @Opt
     public String lineGroupRegex = "^\\s*$";
@@ -35,13 +42,21 @@ public class TagOptions {
     public boolean bioEncoding = false;
     @Opt
     public boolean owplDebug = false;
+    @Opt(gloss = "Stream owpl/uiuc files from memory-mapped windows without regexes (readers that only need the word and label columns)")
+    public boolean mappedReader = false;
     @Opt(gloss = "Remove features with fewer occurrences")
     public int featureCutoff = 1;
+    @Opt(gloss = "Directory for binary caches of the featurized corpus and dictionaries (crf, not with signedHashing), reused while the options and data files are unchanged")
+    public String corpusCache = null;
 
     @Opt
     public boolean useHashing = false;
     @Opt
     public int numFeatures = 10000;
+    @Opt(gloss = "Give hashed features a sign from their hash, so that collisions tend to cancel out")
+    public boolean signedHashing = false;
+    @Opt(gloss = "Log the bucket occupancy and collision rate of hashed features")
+    public boolean hashingStats = false;
 
     // types of evaluation
     @Opt(gloss = "Output token labeling accuracy")
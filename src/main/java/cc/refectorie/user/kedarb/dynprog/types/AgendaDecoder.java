@@ -0,0 +1,330 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+import java.util.*;
+
+/**
+ * Finds the best hyperpath without building the whole hypergraph, using
+ * Knuth's generalization of Dijkstra's algorithm (A* if a heuristic is given).
+ * Nodes are finalized in order of decreasing best-known score, and the search
+ * stops as soon as the goal node is finalized.
+ *
+ * The graph is generated bottom-up by a Deducer: whenever a node is finalized
+ * (starting with endNode), the deducer is asked for the edges that node can
+ * take part in, and adds them with addEdge(). Edges are the same as in
+ * Hypergraph: a head (the source in Hypergraph) and two children (tails),
+ * either of which can be endNode. Nodes are sum nodes unless declared with
+ * addProdNode() (before any of their edges), which also gives the number of
+ * edges they have: a prod node is finished once all of them are.
+ *
+ * Correctness requires edge weights <= 0 (log-probabilities; addEdge() throws
+ * an IllegalArgumentException otherwise) and, with a
+ * heuristic, that it never underestimates the best outside score of a node
+ * and is consistent: for each edge, h(tail) >= weight + h(head) + score of the
+ * other tail. The zero heuristic satisfies this when weights are <= 0. Ties
+ * between equally good hyperpaths can be broken differently from Hypergraph.
+ *
+ * @author kedar
+ */
+public class AgendaDecoder<Widget> {
+    public interface Deducer<Widget> {
+        // Add (with agenda.addEdge()) the edges that have node as a tail,
+        // each edge once (e.g., once its last tail is finished)
+        public void deduce(Object node, AgendaDecoder<Widget> agenda);
+    }
+
+    public interface Heuristic {
+        // Upper bound on the score of the best hyperpath from the goal down to
+        // node, not counting node's own score
+        public double outsideBound(Object node);
+    }
+
+    public static final Heuristic ZERO_HEURISTIC = new Heuristic() {
+        public double outsideBound(Object node) {
+            return 0;
+        }
+    };
+
+    private static class Node {
+        final Object key;
+        final double heuristic;
+        double score = Double.NEGATIVE_INFINITY;
+        Edge bestEdge;
+        boolean finished;
+        boolean hasEdges;
+        // Prod nodes: their edges (in the order added), how many there are
+        // and how many of them still have unfinished tails
+        List<Edge> prodEdges;
+        int numProdEdges, numMissingEdges;
+        double prodScore;
+        List<Edge> waitingEdges; // edges that wait for this node to be finished
+
+        Node(Object key, double heuristic) {
+            this.key = key;
+            this.heuristic = heuristic;
+        }
+    }
+
+    private static class Edge {
+        final Node head, tail1, tail2;
+        final Hypergraph.AHyperedgeInfo info;
+        final double weight;
+        int numUnfinishedTails;
+
+        Edge(Node head, Node tail1, Node tail2, Hypergraph.AHyperedgeInfo info, double weight) {
+            this.head = head;
+            this.tail1 = tail1;
+            this.tail2 = tail2;
+            this.info = info;
+            this.weight = weight;
+        }
+    }
+
+    // A node on the agenda; stale once the node is finished or has improved
+    private static class AgendaEntry implements Comparable<AgendaEntry> {
+        final Node node;
+        final double priority;
+        final long order;
+
+        AgendaEntry(Node node, double priority, long order) {
+            this.node = node;
+            this.priority = priority;
+            this.order = order;
+        }
+
+        // Highest priority first, then first pushed
+        public int compareTo(AgendaEntry that) {
+            if (priority != that.priority)
+                return priority > that.priority ? -1 : 1;
+            return order < that.order ? -1 : (order > that.order ? 1 : 0);
+        }
+    }
+
+    private final Deducer<Widget> deducer;
+    private final Heuristic heuristic;
+    private final Map<Object, Node> nodes = new HashMap<Object, Node>();
+    private final PriorityQueue<AgendaEntry> agenda = new PriorityQueue<AgendaEntry>();
+    private long numPushes;
+    private int numEdges, numFinished;
+    private boolean started;
+
+    public final Object endNode = "END";
+    private final Node end;
+
+    public AgendaDecoder(Deducer<Widget> deducer) {
+        this(deducer, ZERO_HEURISTIC);
+    }
+
+    public AgendaDecoder(Deducer<Widget> deducer, Heuristic heuristic) {
+        this.deducer = deducer;
+        this.heuristic = heuristic;
+        end = new Node(endNode, 0);
+        end.score = 0;
+        nodes.put(endNode, end);
+    }
+
+    private static double getWeight(Hypergraph.AHyperedgeInfo info) {
+        if (info instanceof Hypergraph.HyperedgeInfo)
+            return ((Hypergraph.HyperedgeInfo) info).getWeight();
+        else if (info instanceof Hypergraph.ProbHyperedgeInfo)
+            return Math.log(((Hypergraph.ProbHyperedgeInfo) info).getProbability());
+        else
+            throw new RuntimeException("Unknown type of info");
+    }
+
+    private Node getNode(Object key) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(key, heuristic.outsideBound(key));
+            nodes.put(key, node);
+        }
+        return node;
+    }
+
+    /**
+     * Declares node as a product of numEdges edges, which are added later
+     * with addEdge(). Must be called before any edge into node is added.
+     */
+    public void addProdNode(Object node, int numEdges) {
+        if (node == endNode)
+            throw new IllegalArgumentException("endNode can't have edges");
+        Node prod = getNode(node);
+        if (prod.hasEdges || prod.prodEdges != null)
+            throw new IllegalStateException("Node already has edges: " + node);
+        prod.prodEdges = new ArrayList<Edge>(numEdges);
+        prod.numProdEdges = prod.numMissingEdges = numEdges;
+        if (numEdges == 0) {
+            // Empty product
+            prod.score = 0;
+            push(prod);
+        }
+    }
+
+    public void addEdge(Object head, Hypergraph.AHyperedgeInfo<Widget> info) {
+        addEdge(head, endNode, endNode, info);
+    }
+
+    public void addEdge(Object head, Object tail, Hypergraph.AHyperedgeInfo<Widget> info) {
+        addEdge(head, tail, endNode, info);
+    }
+
+    public void addEdge(Object head, Object tail1, Object tail2, Hypergraph.AHyperedgeInfo<Widget> info) {
+        addEdge(head, tail1, tail2, info, getWeight(info));
+    }
+
+    // With the weight given (e.g., already computed), instead of the info's
+    public void addEdge(Object head, Object tail1, Object tail2, Hypergraph.AHyperedgeInfo<Widget> info,
+                        double weight) {
+        if (head == endNode)
+            throw new IllegalArgumentException("endNode can't have edges");
+        if (!(weight <= 0))
+            throw new IllegalArgumentException("Edge weight " + weight + " > 0 into " + head
+                    + ": best-first search needs weights <= 0");
+        Node headNode = getNode(head);
+        Edge edge = new Edge(headNode, getNode(tail1), getNode(tail2), info, weight);
+        headNode.hasEdges = true;
+        if (headNode.prodEdges != null) {
+            if (headNode.prodEdges.size() == headNode.numProdEdges)
+                throw new IllegalStateException("More than " + headNode.numProdEdges + " edges into " + head);
+            headNode.prodEdges.add(edge);
+        }
+        numEdges++;
+        if (!edge.tail1.finished)
+            waitFor(edge, edge.tail1);
+        if (!edge.tail2.finished && edge.tail2 != edge.tail1)
+            waitFor(edge, edge.tail2);
+        if (edge.numUnfinishedTails == 0)
+            relax(edge);
+    }
+
+    private void waitFor(Edge edge, Node tail) {
+        if (tail.waitingEdges == null)
+            tail.waitingEdges = new ArrayList<Edge>(2);
+        tail.waitingEdges.add(edge);
+        edge.numUnfinishedTails++;
+    }
+
+    // All tails of edge are finished: try to improve its head
+    private void relax(Edge edge) {
+        Node head = edge.head;
+        if (head.finished)
+            return; // Can't improve (weights <= 0)
+        double score = edge.weight + edge.tail1.score + edge.tail2.score;
+        if (head.prodEdges != null) {
+            head.prodScore += score;
+            if (--head.numMissingEdges == 0 && head.prodScore > Double.NEGATIVE_INFINITY) {
+                head.score = head.prodScore;
+                push(head);
+            }
+        } else if (score > head.score) {
+            head.score = score;
+            head.bestEdge = edge;
+            push(head);
+        }
+    }
+
+    private void push(Node node) {
+        if (node.heuristic != Double.NEGATIVE_INFINITY)
+            agenda.add(new AgendaEntry(node, node.score + node.heuristic, numPushes++));
+    }
+
+    private void finish(Node node) {
+        node.finished = true;
+        numFinished++;
+        deducer.deduce(node.key, this);
+        List<Edge> waiting = node.waitingEdges;
+        node.waitingEdges = null;
+        if (waiting != null)
+            for (Edge edge : waiting)
+                if (--edge.numUnfinishedTails == 0)
+                    relax(edge);
+    }
+
+    // Pop nodes until goal is finished; false if it can't be reached
+    private boolean search(Object goal) {
+        if (!started) {
+            started = true;
+            finish(end);
+        }
+        Node goalNode = nodes.get(goal);
+        while (goalNode == null || !goalNode.finished) {
+            AgendaEntry entry = agenda.poll();
+            if (entry == null)
+                return false;
+            Node node = entry.node;
+            if (node.finished || entry.priority != node.score + node.heuristic)
+                continue; // Stale
+            finish(node);
+            if (goalNode == null)
+                goalNode = nodes.get(goal);
+        }
+        return true;
+    }
+
+    public boolean isFinished(Object node) {
+        Node n = nodes.get(node);
+        return n != null && n.finished;
+    }
+
+    // Score of the best hyperpath below node, if it's finished (NaN otherwise)
+    public double getScore(Object node) {
+        Node n = nodes.get(node);
+        return n != null && n.finished ? n.score : Double.NaN;
+    }
+
+    /**
+     * Searches until goal is finished and calls choose on each hyperedge of
+     * its best hyperpath, in the same (depth-first, left-to-right) order as
+     * Hypergraph.fetchBestHyperpath(). The search can be resumed for another
+     * goal afterwards.
+     */
+    public Hypergraph.HyperpathResult<Widget> fetchBestHyperpath(Object goal, Widget widget) {
+        if (!search(goal))
+            throw new IllegalStateException("Unable to reach: " + goal);
+        double logWeight = 0;
+        stack = new Edge[16];
+        top = 0;
+        pushBestEdges(nodes.get(goal));
+        while (top > 0) {
+            Edge edge = stack[--top];
+            widget = (Widget) edge.info.choose(widget);
+            logWeight += edge.weight;
+            pushBestEdges(edge.tail2);
+            pushBestEdges(edge.tail1);
+        }
+        stack = null;
+        return new Hypergraph.HyperpathResult<Widget>(widget, logWeight);
+    }
+
+    private Edge[] stack;
+    private int top;
+
+    // Pushes the edges of node's best hyperpath that leave node, so that
+    // they are popped in order
+    private void pushBestEdges(Node node) {
+        if (node == end)
+            return;
+        int n = node.prodEdges != null ? node.prodEdges.size() : 1;
+        if (top + n > stack.length) {
+            Edge[] newStack = new Edge[Math.max(2 * stack.length, top + n)];
+            System.arraycopy(stack, 0, newStack, 0, top);
+            stack = newStack;
+        }
+        if (node.prodEdges != null)
+            for (int k = n - 1; k >= 0; k--)
+                stack[top++] = node.prodEdges.get(k);
+        else
+            stack[top++] = node.bestEdge;
+    }
+
+    public int numNodes() {
+        return nodes.size();
+    }
+
+    public int numEdges() {
+        return numEdges;
+    }
+
+    public int numFinishedNodes() {
+        return numFinished;
+    }
+}
@@ -0,0 +1,142 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Maps byte strings (e.g., UTF-8 tokens read straight from a file) to
+ * consecutive ids without creating a String or any other object per lookup:
+ * the bytes of distinct strings are appended to one array and found with an
+ * open-addressing hash table. The String of an id is decoded the first time
+ * it's asked for, and kept.
+ *
+ * @author kedar
+ */
+public class ByteIndexer {
+
+    private byte[] bytes = new byte[1 << 16];
+    private int numBytes;
+    // Per id: offset of its bytes (the next id's offset is its end), hash and string
+    private int[] offsets = new int[1025];
+    private int[] hashes = new int[1024];
+    private String[] strings = new String[1024];
+    private int size;
+    // Open addressing: id + 1 (0 if empty)
+    private int[] table = new int[2048];
+    private boolean locked;
+
+    public int size() {
+        return size;
+    }
+
+    public void lock() {
+        locked = true;
+    }
+
+    public void unlock() {
+        locked = false;
+    }
+
+    // FNV-1a
+    private static int hash(byte[] buf, int off, int len) {
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++) {
+            h ^= buf[i];
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private boolean matches(int id, byte[] buf, int off, int len) {
+        int begin = offsets[id];
+        if (offsets[id + 1] - begin != len)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (bytes[begin + i] != buf[off + i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Id of buf[off, off + len), which is added if it's new and add is true
+     * (and the indexer isn't locked); -1 otherwise.
+     */
+    public int indexOf(byte[] buf, int off, int len, boolean add) {
+        int h = hash(buf, off, len);
+        int mask = table.length - 1;
+        int slot = h & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == h && matches(id, buf, off, len))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+        if (!add || locked)
+            return -1;
+
+        int id = size++;
+        if (size == hashes.length)
+            growIds();
+        if (numBytes + len > bytes.length) {
+            byte[] newBytes = new byte[Math.max(2 * bytes.length, numBytes + len)];
+            System.arraycopy(bytes, 0, newBytes, 0, numBytes);
+            bytes = newBytes;
+        }
+        System.arraycopy(buf, off, bytes, numBytes, len);
+        numBytes += len;
+        offsets[id + 1] = numBytes;
+        hashes[id] = h;
+        table[slot] = id + 1;
+        if (2 * size > table.length)
+            rehash();
+        return id;
+    }
+
+    public int indexOf(String s, boolean add) {
+        byte[] buf;
+        try {
+            buf = s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        return indexOf(buf, 0, buf.length, add);
+    }
+
+    private void growIds() {
+        int n = 2 * hashes.length;
+        int[] newOffsets = new int[n + 1];
+        System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+        offsets = newOffsets;
+        int[] newHashes = new int[n];
+        System.arraycopy(hashes, 0, newHashes, 0, hashes.length);
+        hashes = newHashes;
+        String[] newStrings = new String[n];
+        System.arraycopy(strings, 0, newStrings, 0, strings.length);
+        strings = newStrings;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+
+    public String get(int id) {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException("Id " + id + " of " + size);
+        String s = strings[id];
+        if (s == null) {
+            try {
+                s = new String(bytes, offsets[id], offsets[id + 1] - offsets[id], "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            strings[id] = s;
+        }
+        return s;
+    }
+}
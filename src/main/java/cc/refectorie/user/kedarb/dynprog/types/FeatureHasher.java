@@ -0,0 +1,247 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+/**
+ * Hashing trick for features that are never built as Strings: a feature is
+ * hashed one char at a time (MurmurHash3 rounds over chars), so templates
+ * mix the pieces of a feature (prefix, cells, separators, numbers) into a
+ * running state with mix(), mixChars() and mixDecimal(), and the result is
+ * the same as hash() of the concatenated String. The finished hash is
+ * mapped to a bucket in [0, numFeatures) and, with signed hashing, to a
+ * sign taken from its top bit.
+ *
+ * Features are written to a per-thread Buffer, one token at a time. When a
+ * token ends, duplicate features are dropped, and features in the same
+ * bucket are merged: their signs are summed with signed hashing (features
+ * that cancel out are dropped), otherwise the bucket just has value 1.
+ *
+ * With collectStats, the first hash seen in each bucket is kept, and each
+ * feature occurrence whose bucket holds another hash counts as a collision.
+ * The stats are approximate when several threads add features at once.
+ *
+ * @author kedar
+ */
+public class FeatureHasher {
+    public static final int SEED = 0x9747b28c;
+
+    public final int numFeatures;
+    public final boolean signed;
+
+    private final int[] owners; // First hash seen per bucket (0 if none)
+    private long numOccurrences, numCollisions;
+    private int numBucketsUsed;
+
+    private final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    public FeatureHasher(int numFeatures, boolean signed, boolean collectStats) {
+        if (numFeatures <= 0)
+            throw new IllegalArgumentException("numFeatures = " + numFeatures);
+        this.numFeatures = numFeatures;
+        this.signed = signed;
+        owners = collectStats ? new int[numFeatures] : null;
+    }
+
+    // Hashing
+
+    public static int mix(int h, int c) {
+        int k = c * 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15) * 0x1b873593;
+        h ^= k;
+        return Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+    }
+
+    public static int mixChars(int h, String s) {
+        for (int i = 0; i < s.length(); i++)
+            h = mix(h, s.charAt(i));
+        return h;
+    }
+
+    // Mixes the chars of Integer.toString(n)
+    public static int mixDecimal(int h, int n) {
+        long x = n;
+        if (x < 0) {
+            h = mix(h, '-');
+            x = -x;
+        }
+        long div = 1;
+        while (div * 10 <= x)
+            div *= 10;
+        for (; div > 0; div /= 10)
+            h = mix(h, (int) ('0' + (x / div) % 10));
+        return h;
+    }
+
+    public static int finish(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    public static int hash(String s) {
+        return finish(mixChars(SEED, s));
+    }
+
+    public int bucketOf(int hash) {
+        return (hash & 0x7fffffff) % numFeatures;
+    }
+
+    public float signOf(int hash) {
+        return signed && hash < 0 ? -1 : 1;
+    }
+
+    // Buffers
+
+    /**
+     * Features of a sequence: those of token t are ids/values in
+     * [begin(t), end(t)), sorted by id. Arrays are reused across sequences.
+     */
+    public final class Buffer {
+        public int[] ids = new int[256];
+        public float[] values = new float[256];
+        private int size;
+        private int[] tokenEnds = new int[64];
+        private int numTokens;
+
+        public void clear() {
+            size = numTokens = 0;
+        }
+
+        public int numTokens() {
+            return numTokens;
+        }
+
+        public int begin(int t) {
+            return t == 0 ? 0 : tokenEnds[t - 1];
+        }
+
+        public int end(int t) {
+            return tokenEnds[t];
+        }
+
+        // Adds a finished hash to the current token
+        public void add(int hash) {
+            if (size == ids.length) {
+                int[] newIds = new int[2 * size];
+                System.arraycopy(ids, 0, newIds, 0, size);
+                ids = newIds;
+                float[] newValues = new float[2 * size];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+            ids[size++] = hash;
+        }
+
+        // Turns the hashes added since the last token into its features
+        public void endToken() {
+            int begin = begin(numTokens);
+            // Drop duplicate hashes
+            sort(ids, null, begin, size);
+            int n = begin;
+            for (int k = begin; k < size; k++)
+                if (k == begin || ids[k] != ids[n - 1])
+                    ids[n++] = ids[k];
+            size = n;
+            if (owners != null)
+                addStats(ids, begin, size);
+            // Hashes to buckets, then merge buckets
+            for (int k = begin; k < size; k++) {
+                values[k] = signOf(ids[k]);
+                ids[k] = bucketOf(ids[k]);
+            }
+            sort(ids, values, begin, size);
+            n = begin;
+            for (int k = begin; k < size; k++) {
+                if (k > begin && ids[k] == ids[n - 1]) {
+                    if (signed) values[n - 1] += values[k];
+                } else {
+                    ids[n] = ids[k];
+                    values[n] = values[k];
+                    n++;
+                }
+            }
+            size = n;
+            if (signed) {
+                n = begin;
+                for (int k = begin; k < size; k++) {
+                    if (values[k] != 0) {
+                        ids[n] = ids[k];
+                        values[n] = values[k];
+                        n++;
+                    }
+                }
+                size = n;
+            }
+            if (numTokens == tokenEnds.length) {
+                int[] newEnds = new int[2 * numTokens];
+                System.arraycopy(tokenEnds, 0, newEnds, 0, numTokens);
+                tokenEnds = newEnds;
+            }
+            tokenEnds[numTokens++] = size;
+        }
+    }
+
+    // Insertion sort of keys[begin, end) (and values along), as tokens have
+    // tens of features
+    private static void sort(int[] keys, float[] values, int begin, int end) {
+        for (int i = begin + 1; i < end; i++) {
+            int key = keys[i];
+            float value = values == null ? 0 : values[i];
+            int j = i - 1;
+            while (j >= begin && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                if (values != null) values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            if (values != null) values[j + 1] = value;
+        }
+    }
+
+    // The calling thread's buffer, cleared
+    public Buffer buffer() {
+        Buffer buffer = buffers.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Stats
+
+    private void addStats(int[] hashes, int begin, int end) {
+        for (int k = begin; k < end; k++) {
+            int hash = hashes[k] == 0 ? 1 : hashes[k];
+            int b = bucketOf(hashes[k]);
+            if (owners[b] == 0) {
+                owners[b] = hash;
+                numBucketsUsed++;
+            } else if (owners[b] != hash) {
+                numCollisions++;
+            }
+            numOccurrences++;
+        }
+    }
+
+    public long numOccurrences() {
+        return numOccurrences;
+    }
+
+    public long numCollisions() {
+        return numCollisions;
+    }
+
+    public int numBucketsUsed() {
+        return numBucketsUsed;
+    }
+
+    public String statsString() {
+        if (owners == null)
+            return "no stats";
+        return String.format("buckets used %d/%d (%.2f%%), feature occurrences %d, collisions %d (%.2f%%)",
+                numBucketsUsed, numFeatures, 100.0 * numBucketsUsed / numFeatures, numOccurrences,
+                numCollisions, numOccurrences == 0 ? 0.0 : 100.0 * numCollisions / numOccurrences);
+    }
+}
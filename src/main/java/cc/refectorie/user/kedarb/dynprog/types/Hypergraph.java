@@ -1,10 +1,10 @@
 package cc.refectorie.user.kedarb.dynprog.types;
 
-import cc.refectorie.user.kedarb.tools.utils.ListUtils;
 import cc.refectorie.user.kedarb.tools.utils.NumUtils;
-import cc.refectorie.user.kedarb.tools.utils.SampleUtils;
+import gnu.trove.TLongIntHashMap;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Provides a module for doing inference over discrete structures such as
@@ -16,8 +16,9 @@ import java.util.*;
  * hyperedges are chosen. The product of all chosen weights on the hyperedges
  * determines the probability of the widget (after appropriate normalization).
  *
- * Notes: - We don't check for cycles. You will get stack overflow if there are
- * cycles. - The children of a product node or the two children of a hyperedge
+ * Notes: - Cycles are detected when the graph is compiled, and reported with an
+ * IllegalStateException. No pass recurses, so graphs can be arbitrarily deep
+ * (e.g., very long chains). - The children of a product node or the two children of a hyperedge
  * should be disjoint. Otherwise, you will get an assertion failed with invalid
  * posterior probability > 1 due to double counting. NOTE: this is unnecessarily
  * restrictive. We should get rid of this, but have to be careful. Updating
@@ -32,8 +33,10 @@ import java.util.*;
  * to compute posterior distribution over hyperpaths computeELogZEntropy():
  * compute some statistics about this inference fetchPosteriors(): call
  * setPosterior on each hyperedge fetchBestHyperpath(widget): call choose on
- * each hyperedge in the best one fetchSampleHyperpath(widget): call choose on
- * each hyperedge in the best one fetchPosteriorHyperpath(widget): call choose
+ * each hyperedge in the best one fetchKBestHyperpaths(k, widgetFactory): same
+ * for each of the k best ones fetchSampleHyperpath(widget): call choose on
+ * each hyperedge in a sampled one fetchSampleHyperpaths(random, n, ...): draw
+ * n samples at once fetchPosteriorHyperpath(widget): call choose
  * on each hyperedge with a weight (TODO: combine it with fetchPosteriors)
  *
  * @author Percy Liang
@@ -44,6 +47,14 @@ import java.util.*;
  * log-probabilities (or weights). We do not use BigDouble as it leads to memory
  * issues.
  *
+ * Once construction is done, the graph is compiled (see compile()) into flat
+ * arrays indexed by topological position: per-node edge offsets, per-edge
+ * child positions and weights, and per-node inside/outside/max scores. All
+ * inference runs over these arrays. The per-edge construction arrays are
+ * dropped; the node lookup maps (nodes, denseKeyIds, keyIds) and nodeKeys are
+ * kept for getNode()-style lookups and debugging, and are shared with graphs
+ * replayed from the same template.
+ *
  * @author kedar
  */
 public class Hypergraph<Widget> {
@@ -66,6 +77,16 @@ public class Hypergraph<Widget> {
         public double getProbability();
     }
 
+    /**
+     * Info of an edge whose weight is the dot product of its features (see
+     * setEdgeFeatures()) with a parameter vector, set by
+     * computeFeatureWeights() (0 until then). Its expected features go to a
+     * gradient with addFeatureExpectations(), which doesn't call
+     * setPosterior().
+     */
+    public interface FeatureHyperedgeInfo<Widget> extends AHyperedgeInfo<Widget> {
+    }
+
     private class NullHyperedgeInfo<Widget> implements HyperedgeInfo<Widget> {
         public double getWeight() {
             // prob = 1, log(prob) = 0
@@ -82,70 +103,117 @@ public class Hypergraph<Widget> {
 
     private final NullHyperedgeInfo<Widget> nullHyperedgeInfo = new NullHyperedgeInfo<Widget>();
 
-    private static class NodeInfo {
-        NodeInfo(Object node, NodeType nodeType) {
-            this.node = node;
-            this.nodeType = nodeType;
-        }
-
-        // Just for visualizing/debugging
-        final Object node;
-        // Can be changed
-        NodeType nodeType;
-        // Children
-        final List<Hyperedge> edges = new ArrayList<Hyperedge>();
-        // Things we compute during inference
-        double insideScore = Double.NaN, outsideScore = Double.NaN,
-                maxScore = Double.NaN;
-
-        public String toString() {
-            return node.toString() + "\t" + edges.toString();
-        }
-    }
-
-    private static class Hyperedge {
-        final NodeInfo dest1, dest2; // Child nodes
-        final AHyperedgeInfo info; // Specifies I/O for the hyperedge
-        final double weight;
-
-        Hyperedge(NodeInfo dest1, NodeInfo dest2, AHyperedgeInfo info) {
-            this.dest1 = dest1;
-            this.dest2 = dest2;
-            this.info = info;
-            if (info instanceof HyperedgeInfo)
-                this.weight = ((HyperedgeInfo) info).getWeight();
-            else if (info instanceof ProbHyperedgeInfo)
-                this.weight = Math.log(((ProbHyperedgeInfo) info)
-                        .getProbability());
-            else
-                throw new RuntimeException("Unknown type of info");
-
-            // XXX Avoid zeros so everything has some positive probability
-            // this.weight = (wt == Double.NEGATIVE_INFINITY
-            // || wt < VERY_SMALL_WEIGHT ? VERY_SMALL_WEIGHT : wt);
-        }
+    private static double getWeight(AHyperedgeInfo info) {
+        if (info instanceof HyperedgeInfo)
+            return ((HyperedgeInfo) info).getWeight();
+        else if (info instanceof ProbHyperedgeInfo)
+            return Math.log(((ProbHyperedgeInfo) info).getProbability());
+        else if (info instanceof FeatureHyperedgeInfo)
+            return 0; // See computeFeatureWeights()
+        else
+            throw new RuntimeException("Unknown type of info");
 
-        public String toString() {
-            return String.format("%s/%s (%s)", dest1.node, dest2.node, weight);
-        }
+        // XXX Avoid zeros so everything has some positive probability
+        // this.weight = (wt == Double.NEGATIVE_INFINITY
+        // || wt < VERY_SMALL_WEIGHT ? VERY_SMALL_WEIGHT : wt);
     }
 
     // Specifies the hypergraph and stores the computations
     public boolean debug = false;
     // Do we allow nodes with no children?
     public boolean allowEmptyNodes = false;
-    private HashMap<Object, NodeInfo> nodes = new HashMap<Object, NodeInfo>();
-    private NodeInfo[] topologicalOrdering;
+    // If set, the inside, max and outside passes process large levels of
+    // nodes in parallel on these threads (see setExecutor())
+    private ExecutorService executor;
+    private int numThreads = 1;
+    private int minParallelLevelSize = 1024;
+
+    // When this was created, if HypergraphStats are enabled (0 otherwise)
+    private final long createdNanos = HypergraphStats.enabled ? System.nanoTime() : 0;
+
+    // Construction: nodes are numbered in the order they are added
+    private HashMap<Object, Integer> nodes = new HashMap<Object, Integer>();
+    // Nodes added with long keys: key -> id + 1 (0 if absent), in an array if
+    // the keys are bounded (see setMaxKey()), else in a hash map
+    private int[] denseKeyIds;
+    private TLongIntHashMap keyIds;
+    private int numNodes = 0;
+    // Just for visualizing/debugging
+    private Object[] nodeKeys = new Object[16];
+    private NodeType[] nodeTypes = new NodeType[16];
+    private int[] nodeNumEdges = new int[16];
+
+    // Construction: edges are numbered in the order they are added
+    private int numEdges = 0;
+    private int[] edgeSources = new int[16];
+    private int[] edgeDests1 = new int[16], edgeDests2 = new int[16];
+    private double[] edgeWeights = new double[16];
+    private AHyperedgeInfo[] edgeInfos = new AHyperedgeInfo[16];
+
+    // Sparse features of edges, by edge id (see setEdgeFeatures()): those of
+    // edge e are [featureOffsets[e], featureOffsets[e+1]) in featureIds and
+    // featureValues, for e < numFeatureEdges. They don't depend on the
+    // layout, so they survive compiling and pruning.
+    private int[] featureOffsets;
+    private boolean[] hasFeatures;
+    private int numFeatureEdges = 0;
+    private int[] featureIds;
+    private double[] featureValues;
+
+    // Construction: results of addNode() calls, kept when recording a template
+    private boolean[] nodeCalls;
+    private int numNodeCalls = 0;
+    // Template being recorded (cache and key to store it under) or replayed
+    private TemplateCache templateCache;
+    private Object templateKey;
+    private Template template;
+
+    // Compiled graph: everything below is indexed by topological position
+    // (start node first) or by edge position (edges of a node are contiguous).
+    // The structure arrays (up to edgeIds) are shared with other graphs built
+    // from the same template and must not be modified.
+    private boolean compiled = false;
+    private int[] topologicalOrdering; // position -> node id
+    private int[] positions; // node id -> position
+    private NodeType[] types;
+    private int[] edgeOffsets; // edges of node i are [edgeOffsets[i], edgeOffsets[i+1])
+    private int[] dests1, dests2; // child positions
+    private double[] weights;
+    private AHyperedgeInfo[] infos;
+    private int[] edgeIds; // edge position -> edge id
+    private int[] edgePositions; // edge id -> edge position
+    // Things we compute during inference
+    private double[] insideScores, outsideScores, maxScores;
+    // Best edge of each sum node, recorded by the max pass (-1 if none)
+    private int[] bestEdges;
+    // Same, recorded by the last best-first search (only for the nodes it
+    // finished; null if none since the weights last changed)
+    private int[] bestFirstEdges;
+    // Sampling tables built from the inside scores: for each sum node, the
+    // cumulative posterior of its edges (null until first needed)
+    private double[] sampleCdfs;
+    // Edge weight changes not yet reflected in the scores (edge positions)
+    private int[] pendingEdges = new int[16];
+    private int numPendingEdges = 0;
+    // Computed when first needed by updates and best-first search: parent
+    // edges of each node and the source of each edge; edges whose children
+    // are all the end node, and prod nodes without edges. Shared with other
+    // graphs built from the same template.
+    private int[] parentOffsets, parentEdges, edgeSourcePositions, leafEdges, emptyProds;
+    // Computed when first needed by parallel passes: nodes grouped by height
+    // (for bottom-up passes) and by depth (for top-down passes)
+    private int[] heightOffsets, heightNodes, depthOffsets, depthNodes;
+    // Work stack for walking hyperpaths
+    private int[] stack = new int[16];
 
     // Start and end nodes
     // use sum or prod versions
     private final Object startNode = addNodeAndReturnIt("START", NodeType.sum);
     public final Object endNode = addNodeAndReturnIt("END", NodeType.sum);
     public final Object invalidNode = "INVALID";
-    private final NodeInfo startNodeInfo = getNodeInfoOrFail(startNode);
-    private final NodeInfo endNodeInfo = getNodeInfoOrFail(endNode);
-    private Hyperedge terminalEdge = new Hyperedge(endNodeInfo, endNodeInfo,
-            nullHyperedgeInfo);
+    private final int startNodeId = getNodeIdOrFail(startNode);
+    private final int endNodeId = getNodeIdOrFail(endNode);
+    private int startPos, endPos;
 
     // Things we're going to compute
     // Normalization constant
@@ -154,6 +222,8 @@ public class Hypergraph<Widget> {
     private double elogZ = Double.NaN;
     // Entropy of the posterior q(z|x)
     private double entropy = Double.NaN;
+    // Whether elogZ and entropy are those of the sum (not max) posterior
+    private boolean hasSumELogZEntropy = false;
 
     public double getLogZ() {
         return logZ;
@@ -177,22 +247,79 @@ public class Hypergraph<Widget> {
         return addNode(node, NodeType.prod);
     }
 
+    /**
+     * Nodes can also be given by long keys (e.g., packed with packKey()),
+     * which avoids allocating and hashing a key object per lookup. Long keys
+     * are separate from object keys (Long objects included); edges between
+     * long-keyed nodes are added with the long versions of addEdge().
+     */
+    public boolean addSumNode(long key) {
+        return addNode(key, NodeType.sum);
+    }
+
+    public boolean addProdNode(long key) {
+        return addNode(key, NodeType.prod);
+    }
+
+    /**
+     * Declares that all long keys are in [0, maxKey), so nodes are looked up
+     * in an array instead of a hash map. Must be called before adding nodes
+     * with long keys; keys outside that range are rejected with an
+     * IllegalArgumentException.
+     */
+    public void setMaxKey(int maxKey) {
+        checkNotCompiled();
+        if (template != null) {
+            // Keys are looked up in the template's array
+            if (denseKeyIds == null || denseKeyIds.length != maxKey)
+                throw new IllegalStateException("Hypergraph doesn't match its template: maxKey " + maxKey);
+            return;
+        }
+        if (keyIds != null)
+            throw new IllegalStateException("Nodes with long keys already added");
+        denseKeyIds = new int[maxKey];
+    }
+
+    public static long packKey(int a, int b) {
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
+
+    // Each of a, b and c must be in [0, 2^21)
+    public static long packKey(int a, int b, int c) {
+        assert (a | b | c) >>> 21 == 0 : "Can't pack " + a + "," + b + "," + c;
+        return ((long) a << 42) | ((long) b << 21) | c;
+    }
+
     public Object sumStartNode() {
-        getNodeInfoOrFail(startNode).nodeType = NodeType.sum;
-        return startNode;
+        return setStartNodeType(NodeType.sum);
     }
 
     public Object prodStartNode() {
-        getNodeInfoOrFail(startNode).nodeType = NodeType.prod;
+        return setStartNodeType(NodeType.prod);
+    }
+
+    private Object setStartNodeType(NodeType nodeType) {
+        checkNotCompiled();
+        if (template != null) {
+            if (template.types[template.startPos] != nodeType)
+                throw new IllegalStateException("Hypergraph doesn't match its template: start node is "
+                        + template.types[template.startPos] + ", not " + nodeType);
+        } else {
+            nodeTypes[startNodeId] = nodeType;
+        }
         return startNode;
     }
 
     public int numEdges(Object node) {
-        return getNodeInfoOrFail(node).edges.size();
+        return nodeNumEdges[getNodeIdOrFail(node)];
+    }
+
+    public int numEdges(long node) {
+        return nodeNumEdges[getNodeIdOrFail(node)];
     }
 
     public int numNodes() {
-        return nodes.size();
+        return numNodes;
     }
 
     public void assertNonEmpty(Object node) {
@@ -200,49 +327,189 @@ public class Hypergraph<Widget> {
                 + " has no children hyperedges (it's empty)";
     }
 
+    public void assertNonEmpty(long node) {
+        assert numEdges(node) > 0 : node
+                + " has no children hyperedges (it's empty)";
+    }
+
     // Add edges
 
-    public void addEdge(Object source) {
-        addEdge(source, endNode, endNode, nullHyperedgeInfo);
+    public int addEdge(Object source) {
+        return addEdge(source, endNode, endNode, nullHyperedgeInfo);
     }
 
-    public void addEdge(Object source, AHyperedgeInfo<Widget> info) {
-        addEdge(source, endNode, endNode, info);
+    public int addEdge(Object source, AHyperedgeInfo<Widget> info) {
+        return addEdge(source, endNode, endNode, info);
     }
 
-    public void addEdge(Object source, Object dest1) {
-        addEdge(source, dest1, endNode, nullHyperedgeInfo);
+    public int addEdge(Object source, Object dest1) {
+        return addEdge(source, dest1, endNode, nullHyperedgeInfo);
     }
 
-    public void addEdge(Object source, Object dest1, AHyperedgeInfo<Widget> info) {
-        addEdge(source, dest1, endNode, info);
+    public int addEdge(Object source, Object dest1, AHyperedgeInfo<Widget> info) {
+        return addEdge(source, dest1, endNode, info);
     }
 
-    public void addEdge(Object source, Object dest1, Object dest2) {
-        addEdge(source, dest1, dest2, nullHyperedgeInfo);
+    public int addEdge(Object source, Object dest1, Object dest2) {
+        return addEdge(source, dest1, dest2, nullHyperedgeInfo);
     }
 
-    public void addEdge(Object source, Object dest1, Object dest2,
-                        AHyperedgeInfo<Widget> info) {
+    // Return the id of the edge (edges are numbered in the order they are
+    // added), or -1 if the edge leads to an invalid node and was dropped
+    public int addEdge(Object source, Object dest1, Object dest2,
+                       AHyperedgeInfo<Widget> info) {
         assert source != invalidNode;
         // if (debug)
         // LogInfo.dbgs("add %s -> %s %s", source, dest1, dest2);
         if (dest1 == invalidNode || dest2 == invalidNode)
-            return;
+            return -1;
+        assert source != dest1 && source != dest2; // Catch obvious loops
+        checkNotCompiled();
+        if (template != null)
+            return replayEdge(info);
+        return addEdge(getNodeIdOrFail(source), getNodeIdOrFail(dest1),
+                getNodeIdOrFail(dest2), info);
+    }
+
+    // Edges between nodes with long keys (the end node for missing children)
+
+    public int addEdge(long source, AHyperedgeInfo<Widget> info) {
+        checkNotCompiled();
+        if (template != null)
+            return replayEdge(info);
+        return addEdge(getNodeIdOrFail(source), endNodeId, endNodeId, info);
+    }
+
+    public int addEdge(long source, long dest1, AHyperedgeInfo<Widget> info) {
+        checkNotCompiled();
+        if (template != null)
+            return replayEdge(info);
+        return addEdge(getNodeIdOrFail(source), getNodeIdOrFail(dest1), endNodeId, info);
+    }
+
+    public int addEdge(long source, long dest1, long dest2, AHyperedgeInfo<Widget> info) {
         assert source != dest1 && source != dest2; // Catch obvious loops
-        getNodeInfoOrFail(source).edges.add(new Hyperedge(
-                getNodeInfoOrFail(dest1), getNodeInfoOrFail(dest2), info));
+        checkNotCompiled();
+        if (template != null)
+            return replayEdge(info);
+        return addEdge(getNodeIdOrFail(source), getNodeIdOrFail(dest1),
+                getNodeIdOrFail(dest2), info);
+    }
+
+    // From an object-keyed node (e.g., the start node) to a long-keyed one
+    public int addEdge(Object source, long dest1, AHyperedgeInfo<Widget> info) {
+        checkNotCompiled();
+        if (template != null)
+            return replayEdge(info);
+        return addEdge(getNodeIdOrFail(source), getNodeIdOrFail(dest1), endNodeId, info);
+    }
+
+    // Structure is known from the template: just store the weight
+    private int replayEdge(AHyperedgeInfo<Widget> info) {
+        int e = numEdges++;
+        if (e == template.numEdges)
+            throw new IllegalStateException("Hypergraph doesn't match its template: too many edges");
+        int k = template.edgePositions[e];
+        weights[k] = getWeight(info);
+        infos[k] = info;
+        nodeNumEdges[template.edgeSources[e]]++;
+        return e;
+    }
+
+    private int addEdge(int src, int dest1, int dest2, AHyperedgeInfo<Widget> info) {
+        int e = numEdges++;
+        if (e == edgeSources.length) {
+            int n = 2 * e;
+            edgeSources = grow(edgeSources, n);
+            edgeDests1 = grow(edgeDests1, n);
+            edgeDests2 = grow(edgeDests2, n);
+            edgeWeights = grow(edgeWeights, n);
+            AHyperedgeInfo[] newInfos = new AHyperedgeInfo[n];
+            System.arraycopy(edgeInfos, 0, newInfos, 0, e);
+            edgeInfos = newInfos;
+        }
+        edgeSources[e] = src;
+        edgeDests1[e] = dest1;
+        edgeDests2[e] = dest2;
+        edgeWeights[e] = getWeight(info);
+        edgeInfos[e] = info;
+        nodeNumEdges[src]++;
+        return e;
     }
 
     // Helpers
     // Return whether a new node was added
 
     private boolean addNode(Object node, NodeType nodeType) {
-        NodeInfo info = nodes.get(node);
-        if (info != null)
-            return false;
-        nodes.put(node, new NodeInfo(node, nodeType));
-        return true;
+        if (template != null) {
+            // Replay what happened when the template was recorded
+            checkNotCompiled();
+            if (numNodeCalls == template.nodeCalls.length)
+                throw new IllegalStateException("Hypergraph doesn't match its template: too many nodes");
+            return template.nodeCalls[numNodeCalls++];
+        }
+        boolean added = false;
+        if (!nodes.containsKey(node)) {
+            checkNotCompiled();
+            int id = addNewNode(node, nodeType);
+            nodes.put(node, id);
+            added = true;
+        }
+        recordNodeCall(added);
+        return added;
+    }
+
+    private boolean addNode(long key, NodeType nodeType) {
+        if (template != null)
+            return addNode(null, nodeType); // Replay
+        boolean added = false;
+        if (denseKeyIds != null) {
+            checkDenseKey(key);
+            if (denseKeyIds[(int) key] == 0) {
+                checkNotCompiled();
+                denseKeyIds[(int) key] = addNewNode(key, nodeType) + 1;
+                added = true;
+            }
+        } else {
+            if (keyIds == null)
+                keyIds = new TLongIntHashMap();
+            if (!keyIds.containsKey(key)) {
+                checkNotCompiled();
+                keyIds.put(key, addNewNode(key, nodeType) + 1);
+                added = true;
+            }
+        }
+        recordNodeCall(added);
+        return added;
+    }
+
+    private void recordNodeCall(boolean added) {
+        if (nodeCalls != null) {
+            if (numNodeCalls == nodeCalls.length) {
+                boolean[] newCalls = new boolean[2 * numNodeCalls];
+                System.arraycopy(nodeCalls, 0, newCalls, 0, numNodeCalls);
+                nodeCalls = newCalls;
+            }
+            nodeCalls[numNodeCalls++] = added;
+        }
+    }
+
+    // Returns the id of the new node; the key is just for debugging
+    private int addNewNode(Object node, NodeType nodeType) {
+        int id = numNodes++;
+        if (id == nodeKeys.length) {
+            int n = 2 * id;
+            Object[] newKeys = new Object[n];
+            System.arraycopy(nodeKeys, 0, newKeys, 0, id);
+            nodeKeys = newKeys;
+            NodeType[] newTypes = new NodeType[n];
+            System.arraycopy(nodeTypes, 0, newTypes, 0, id);
+            nodeTypes = newTypes;
+            nodeNumEdges = grow(nodeNumEdges, n);
+        }
+        nodeKeys[id] = node;
+        nodeTypes[id] = nodeType;
+        return id;
     }
 
     // Return the node that we added
@@ -253,21 +520,64 @@ public class Hypergraph<Widget> {
         return node;
     }
 
-    private NodeInfo getNodeInfoOrFail(Object node) {
-        NodeInfo info = nodes.get(node);
-        assert info != null : "Node doesn't exist in hypergraph (need to add nodes before edges containing them): "
+    private int getNodeIdOrFail(Object node) {
+        Integer id = nodes.get(node);
+        assert id != null : "Node doesn't exist in hypergraph (need to add nodes before edges containing them): "
                 + node;
-        return info;
+        return id;
+    }
+
+    private int getNodeIdOrFail(long key) {
+        int id;
+        if (denseKeyIds != null) {
+            checkDenseKey(key);
+            id = denseKeyIds[(int) key];
+        } else {
+            id = keyIds != null ? keyIds.get(key) : 0;
+        }
+        assert id != 0 : "Node doesn't exist in hypergraph (need to add nodes before edges containing them): "
+                + key;
+        return id - 1;
+    }
+
+    private void checkDenseKey(long key) {
+        if (key < 0 || key >= denseKeyIds.length)
+            throw new IllegalArgumentException("Node key " + key + " is outside [0, "
+                    + denseKeyIds.length + ") declared with setMaxKey()");
+    }
+
+    private static int[] grow(int[] a, int n) {
+        int[] b = new int[n];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static boolean[] grow(boolean[] a, int n) {
+        boolean[] b = new boolean[n];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static double[] grow(double[] a, int n) {
+        double[] b = new double[n];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private void checkNotCompiled() {
+        if (compiled)
+            throw new IllegalStateException(
+                    "Can't modify hypergraph after it has been compiled");
     }
 
     private void checkGraph() {
         // Make sure that all nodes have children (except end of course)
         if (!allowEmptyNodes) {
             int numBadNodes = 0;
-            for (NodeInfo nodeInfo : nodes.values()) {
-                if (nodeInfo.edges.size() == 0 && nodeInfo.node != endNode) {
+            for (int id = 0; id < numNodes; id++) {
+                if (nodeNumEdges[id] == 0 && id != endNodeId) {
                     System.err
-                            .println("Node has no children: " + nodeInfo.node);
+                            .println("Node has no children: " + nodeKeys[id]);
                     numBadNodes++;
                 }
             }
@@ -275,51 +585,369 @@ public class Hypergraph<Widget> {
                 throw new IllegalStateException(numBadNodes + " bad nodes");
         }
 
-        // TODO: check for cycles to be more graceful
-        // Now, we just wait for computeTopologicalOrdering() to stack overflow
+        // Cycles are detected by computeReverseTopologicalOrdering()
     }
 
-    private static class IntRef {
-        public int value;
-
-        public IntRef(int val) {
-            this.value = val;
+    /**
+     * Freezes the graph: computes a topological ordering and lays out nodes and
+     * edges in flat arrays in that order. Called automatically before
+     * inference; no nodes or edges can be added afterwards.
+     */
+    public void compile() {
+        if (compiled)
+            return;
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        if (timed && createdNanos != 0)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.build, createdNanos);
+        compileGraph();
+        if (timed) {
+            HypergraphStats.global.addTime(HypergraphStats.Phase.compile, start);
+            HypergraphStats.global.addGraph(types.length, weights.length);
         }
     }
 
-    private void computeTopologicalOrdering() {
-        if (topologicalOrdering != null)
+    private void compileGraph() {
+        if (template != null) {
+            if (numNodeCalls != template.nodeCalls.length || numEdges != template.numEdges)
+                throw new IllegalStateException("Hypergraph doesn't match its template: "
+                        + numNodeCalls + "/" + template.nodeCalls.length + " nodes, "
+                        + numEdges + "/" + template.numEdges + " edges");
+            compiled = true;
+            allocateScores();
             return;
+        }
         checkGraph();
-        topologicalOrdering = new NodeInfo[nodes.size()];
-        HashSet<NodeInfo> hit = new HashSet<NodeInfo>();
-        IntRef i = new IntRef(nodes.size() - 1);
-        computeReverseTopologicalOrdering(hit, startNodeInfo, i);
-        if (i.value != -1)
-            throw new IllegalStateException(
-                    "Not all nodes reachable from startNode");
-        assert topologicalOrdering[0] == startNodeInfo;
+
+        // Group edges by source node (keeping the order they were added in)
+        int[] idOffsets = new int[numNodes + 1];
+        for (int id = 0; id < numNodes; id++)
+            idOffsets[id + 1] = idOffsets[id] + nodeNumEdges[id];
+        int[] idEdges = new int[numEdges];
+        int[] fill = new int[numNodes];
+        System.arraycopy(idOffsets, 0, fill, 0, numNodes);
+        for (int e = 0; e < numEdges; e++)
+            idEdges[fill[edgeSources[e]]++] = e;
+
+        int[] ordering = computeReverseTopologicalOrdering(idOffsets, idEdges);
+
+        // Lay out nodes and edges by topological position
+        int n = numNodes;
+        positions = new int[n];
+        types = new NodeType[n];
+        edgeOffsets = new int[n + 1];
+        dests1 = new int[numEdges];
+        dests2 = new int[numEdges];
+        weights = new double[numEdges];
+        infos = new AHyperedgeInfo[numEdges];
+        edgeIds = new int[numEdges];
+        edgePositions = new int[numEdges];
+        for (int pos = 0; pos < n; pos++)
+            positions[ordering[pos]] = pos;
+        int k = 0;
+        for (int pos = 0; pos < n; pos++) {
+            int id = ordering[pos];
+            types[pos] = nodeTypes[id];
+            edgeOffsets[pos] = k;
+            for (int j = idOffsets[id]; j < idOffsets[id + 1]; j++, k++) {
+                int e = idEdges[j];
+                dests1[k] = positions[edgeDests1[e]];
+                dests2[k] = positions[edgeDests2[e]];
+                weights[k] = edgeWeights[e];
+                infos[k] = edgeInfos[e];
+                edgeIds[k] = e;
+                edgePositions[e] = k;
+            }
+        }
+        edgeOffsets[n] = k;
+        startPos = positions[startNodeId];
+        endPos = positions[endNodeId];
+        topologicalOrdering = ordering;
+        compiled = true;
+        allocateScores();
+
+        // Drop construction arrays
+        edgeSources = edgeDests1 = edgeDests2 = null;
+        edgeWeights = null;
+        edgeInfos = null;
+
+        assert startPos == 0;
         if (!allowEmptyNodes)
-            assert topologicalOrdering[topologicalOrdering.length - 1] == endNodeInfo;
+            assert endPos == n - 1;
+
+        if (templateCache != null)
+            templateCache.templates.putIfAbsent(templateKey, new Template(this));
     }
 
-    private void computeReverseTopologicalOrdering(HashSet<NodeInfo> hit,
-                                                   NodeInfo nodeInfo, IntRef i) {
-        if (hit.contains(nodeInfo))
+    private void allocateScores() {
+        int n = types.length;
+        insideScores = new double[n];
+        outsideScores = new double[n];
+        maxScores = new double[n];
+        bestEdges = new int[n];
+        resetScores();
+    }
+
+    /**
+     * Forgets everything computed by inference, so that it can be run again
+     * (e.g., after the weights have changed).
+     */
+    public void resetScores() {
+        compile();
+        Arrays.fill(insideScores, Double.NaN);
+        Arrays.fill(outsideScores, Double.NaN);
+        Arrays.fill(maxScores, Double.NaN);
+        Arrays.fill(bestEdges, -1);
+        bestFirstEdges = null;
+        sampleCdfs = null;
+        logZ = elogZ = entropy = Double.NaN;
+        hasSumELogZEntropy = false;
+    }
+
+    /**
+     * Fetches the weight of every hyperedge from its info again and resets
+     * the scores. Lets a graph be reused across iterations when the infos
+     * read the current parameters.
+     */
+    public void reweight() {
+        compile();
+        for (int e = 0; e < weights.length; e++)
+            weights[e] = getWeight(infos[e]);
+        resetScores();
+    }
+
+    // Feature edges
+
+    /**
+     * Sets the features of edge (an id returned by addEdge(), usually with a
+     * FeatureHyperedgeInfo): ids[0, n) and values[0, n) (all 1 if values is
+     * null) are copied. Edges must be given their features in increasing
+     * order of ids, e.g., right after adding each one.
+     */
+    public void setEdgeFeatures(int edge, int[] ids, double[] values, int n) {
+        if (edge < numFeatureEdges)
+            throw new IllegalArgumentException("Features of edge " + edge + " set after those of edge "
+                    + (numFeatureEdges - 1));
+        if (featureOffsets == null) {
+            featureOffsets = new int[17];
+            hasFeatures = new boolean[16];
+            featureIds = new int[64];
+            featureValues = new double[64];
+        }
+        if (edge + 2 > featureOffsets.length) {
+            int m = Math.max(2 * hasFeatures.length, edge + 1);
+            featureOffsets = grow(featureOffsets, m + 1);
+            hasFeatures = grow(hasFeatures, m);
+        }
+        int size = featureOffsets[numFeatureEdges];
+        // Edges in between have no features
+        for (int e = numFeatureEdges + 1; e <= edge; e++)
+            featureOffsets[e] = size;
+        if (size + n > featureIds.length) {
+            int m = Math.max(2 * featureIds.length, size + n);
+            featureIds = grow(featureIds, m);
+            featureValues = grow(featureValues, m);
+        }
+        System.arraycopy(ids, 0, featureIds, size, n);
+        if (values != null)
+            System.arraycopy(values, 0, featureValues, size, n);
+        else
+            Arrays.fill(featureValues, size, size + n, 1.0);
+        featureOffsets[edge + 1] = size + n;
+        hasFeatures[edge] = true;
+        numFeatureEdges = edge + 1;
+    }
+
+    /**
+     * Sets the weight of each edge with features to the dot product of its
+     * features with params, in one pass over the features, and resets the
+     * scores. Other edges keep their weights.
+     */
+    public void computeFeatureWeights(double[] params) {
+        compile();
+        for (int e = 0; e < numFeatureEdges; e++) {
+            if (!hasFeatures[e])
+                continue;
+            int k = edgePositions[e];
+            if (k == -1)
+                continue; // Pruned
+            double weight = 0;
+            for (int j = featureOffsets[e]; j < featureOffsets[e + 1]; j++)
+                weight += params[featureIds[j]] * featureValues[j];
+            weights[k] = weight;
+        }
+        resetScores();
+    }
+
+    // gradient[id] += scale * value for each feature of edge (by id)
+    private void addEdgeFeatures(int edge, double[] gradient, double scale) {
+        if (edge >= numFeatureEdges || !hasFeatures[edge])
             return;
-        for (Hyperedge edge : nodeInfo.edges) {
-            computeReverseTopologicalOrdering(hit, edge.dest1, i);
-            computeReverseTopologicalOrdering(hit, edge.dest2, i);
+        for (int j = featureOffsets[edge]; j < featureOffsets[edge + 1]; j++)
+            gradient[featureIds[j]] += scale * featureValues[j];
+    }
+
+    /**
+     * Adds scale times the expected features to gradient: the features of
+     * each edge times its posterior (with viterbi, those of the edges of the
+     * best hyperpath). No info is called. Like fetchPosteriors(), also
+     * computes E_q[log weight] and the entropy of q (unless viterbi).
+     */
+    public void addFeatureExpectations(boolean viterbi, double[] gradient, double scale) {
+        if (viterbi) {
+            computeMaxScores();
+            HyperpathChooser chooser = new HyperpathChooser();
+            chooser.viterbi = true;
+            chooser.gradient = gradient;
+            chooser.gradientScale = scale;
+            chooser.walk();
+        } else {
+            fetchPosteriorsSum(null, 0, gradient, scale);
         }
-        topologicalOrdering[i.value--] = nodeInfo;
-        hit.add(nodeInfo);
+    }
+
+    // The structure of a compiled hypergraph, with what is needed to replay
+    // its construction without hashing any nodes. The node maps are only
+    // read by replayed graphs (numEdges(), assertNonEmpty()).
+    private static final class Template {
+        final boolean[] nodeCalls; // result of each addNode() call
+        final int numNodes, numEdges;
+        final Object[] nodeKeys; // just for debugging
+        final HashMap<Object, Integer> nodes;
+        final int[] denseKeyIds;
+        final TLongIntHashMap keyIds;
+        final int[] edgeSources; // edge id -> source node id
+        final int[] topologicalOrdering, positions;
+        final NodeType[] types;
+        final int[] edgeOffsets, dests1, dests2, edgeIds, edgePositions;
+        final int startPos, endPos;
+        // Parent index (see computeParents()), computed by the first graph
+        // that needs it
+        volatile int[][] parents;
+
+        Template(Hypergraph graph) {
+            nodeCalls = new boolean[graph.numNodeCalls];
+            System.arraycopy(graph.nodeCalls, 0, nodeCalls, 0, graph.numNodeCalls);
+            numNodes = graph.numNodes;
+            numEdges = graph.numEdges;
+            nodeKeys = graph.nodeKeys;
+            nodes = graph.nodes;
+            denseKeyIds = graph.denseKeyIds;
+            keyIds = graph.keyIds;
+            edgeSources = new int[numEdges];
+            for (int pos = 0; pos < graph.types.length; pos++)
+                for (int k = graph.edgeOffsets[pos]; k < graph.edgeOffsets[pos + 1]; k++)
+                    edgeSources[graph.edgeIds[k]] = graph.topologicalOrdering[pos];
+            topologicalOrdering = graph.topologicalOrdering;
+            positions = graph.positions;
+            types = graph.types;
+            edgeOffsets = graph.edgeOffsets;
+            dests1 = graph.dests1;
+            dests2 = graph.dests2;
+            edgeIds = graph.edgeIds;
+            edgePositions = graph.edgePositions;
+            startPos = graph.startPos;
+            endPos = graph.endPos;
+        }
+    }
+
+    /**
+     * Caches the structure of hypergraphs by a user-supplied shape key (e.g.,
+     * the length of a sentence and the number of labels). The first graph
+     * built for a key is recorded; every later one replays its structure:
+     * addSumNode()/addProdNode() return what they returned the first time
+     * without hashing the node, addEdge() only stores the weight and info,
+     * and compile() does no work. The caller must make exactly the same
+     * sequence of calls for every graph with the same key (only the infos
+     * may differ). Safe to share between threads.
+     */
+    public static class TemplateCache {
+        private final ConcurrentHashMap<Object, Template> templates = new ConcurrentHashMap<Object, Template>();
+
+        public <Widget> Hypergraph<Widget> newHypergraph(Object key) {
+            Template template = templates.get(key);
+            if (template != null)
+                return new Hypergraph<Widget>(template);
+            Hypergraph<Widget> graph = new Hypergraph<Widget>();
+            graph.templateCache = this;
+            graph.templateKey = key;
+            graph.nodeCalls = new boolean[16];
+            return graph;
+        }
+
+        public int size() {
+            return templates.size();
+        }
+
+        public void clear() {
+            templates.clear();
+        }
+    }
+
+    private static final byte UNVISITED = 0, VISITING = 1, VISITED = 2;
+
+    // Depth-first search from the start node, placing each node before all
+    // of its children (same order as a recursive post-order walk). Uses an
+    // explicit stack, so arbitrarily deep graphs (long chains) are fine.
+    private int[] computeReverseTopologicalOrdering(int[] idOffsets, int[] idEdges) {
+        int[] ordering = new int[numNodes];
+        int i = numNodes - 1;
+        byte[] state = new byte[numNodes];
+        // Next child to visit: edge idOffsets[id] + cursor/2, dest1 or dest2
+        int[] cursors = new int[numNodes];
+        int[] path = new int[16];
+        int top = 0;
+        path[top++] = startNodeId;
+        state[startNodeId] = VISITING;
+        while (top > 0) {
+            int id = path[top - 1];
+            int cursor = cursors[id];
+            if (cursor == 2 * (idOffsets[id + 1] - idOffsets[id])) {
+                // All children done
+                top--;
+                ordering[i--] = id;
+                state[id] = VISITED;
+                continue;
+            }
+            cursors[id]++;
+            int e = idEdges[idOffsets[id] + cursor / 2];
+            int child = cursor % 2 == 0 ? edgeDests1[e] : edgeDests2[e];
+            if (state[child] == VISITED)
+                continue;
+            if (state[child] == VISITING)
+                throw new IllegalStateException("Hypergraph has a cycle through node: "
+                        + nodeKeys[child]);
+            if (top == path.length)
+                path = grow(path, 2 * top);
+            path[top++] = child;
+            state[child] = VISITING;
+        }
+        if (i != -1)
+            throw new IllegalStateException(
+                    "Not all nodes reachable from startNode");
+        return ordering;
+    }
+
+    private String nodeToString(int pos) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(nodeKeys[topologicalOrdering[pos]]).append("\t[");
+        for (int e = edgeOffsets[pos]; e < edgeOffsets[pos + 1]; e++) {
+            if (e > edgeOffsets[pos])
+                buf.append(", ");
+            buf.append(edgeToString(e));
+        }
+        return buf.append("]").toString();
+    }
+
+    private String edgeToString(int e) {
+        return String.format("%s/%s (%s)", nodeKeys[topologicalOrdering[dests1[e]]],
+                nodeKeys[topologicalOrdering[dests2[e]]], weights[e]);
     }
 
     public void printTopologicalOrdering() {
-        if (topologicalOrdering == null)
-            computeTopologicalOrdering();
+        compile();
         for (int i = 0; i < topologicalOrdering.length; i++) {
-            System.err.println("[" + i + "] " + topologicalOrdering[i]);
+            System.err.println("[" + i + "] " + nodeToString(i));
         }
     }
 
@@ -328,146 +956,924 @@ public class Hypergraph<Widget> {
     public Hypergraph() {
     }
 
+    private Hypergraph(Template template) {
+        this.template = template;
+        numNodes = template.numNodes;
+        nodeKeys = template.nodeKeys;
+        nodes = template.nodes;
+        denseKeyIds = template.denseKeyIds;
+        keyIds = template.keyIds;
+        nodeNumEdges = new int[numNodes];
+        topologicalOrdering = template.topologicalOrdering;
+        positions = template.positions;
+        types = template.types;
+        edgeOffsets = template.edgeOffsets;
+        dests1 = template.dests1;
+        dests2 = template.dests2;
+        edgeIds = template.edgeIds;
+        edgePositions = template.edgePositions;
+        startPos = template.startPos;
+        endPos = template.endPos;
+        weights = new double[template.numEdges];
+        infos = new AHyperedgeInfo[template.numEdges];
+        edgeSources = edgeDests1 = edgeDests2 = null;
+        edgeWeights = null;
+        edgeInfos = null;
+    }
+
     public void computePosteriors(boolean viterbi) {
-        computeTopologicalOrdering();
-        computeInsideMaxScores(viterbi);
-        if (!viterbi)
+        compile();
+        if (viterbi) {
+            computeMaxScores();
+            this.logZ = maxScores[startPos];
+        } else {
+            computeInsideScores();
             computeOutsideScores();
-        if (viterbi)
-            this.logZ = startNodeInfo.maxScore;
-        else
-            this.logZ = startNodeInfo.insideScore;
+            this.logZ = insideScores[startPos];
+        }
+        if (HypergraphStats.enabled)
+            HypergraphStats.global.addLogZ(logZ);
     }
 
-    // Methods for updating scores
+    /**
+     * Runs an inside pass in the given semiring and returns the value at the
+     * start node. LOG_SUM and MAX_TIMES fill in (and reuse) the inside and max
+     * scores used by the rest of the inference methods.
+     */
+    public double computeInside(Semiring semiring) {
+        compile();
+        if (semiring == Semiring.LOG_SUM) {
+            computeInsideScores();
+            return insideScores[startPos];
+        }
+        if (semiring == Semiring.MAX_TIMES) {
+            computeMaxScores();
+            return maxScores[startPos];
+        }
 
-    private void setScore(NodeInfo nodeInfo, double score, boolean viterbi) {
-        if (viterbi)
-            nodeInfo.maxScore = score;
-        else
-            nodeInfo.insideScore = score;
+        if (semiring == Semiring.COUNTING) {
+            // Log-sum over the edges with non-zero weight
+            double[] edgeWeights = new double[weights.length];
+            for (int e = 0; e < edgeWeights.length; e++)
+                edgeWeights[e] = weights[e] == Double.NEGATIVE_INFINITY ? Double.NEGATIVE_INFINITY : 0;
+            return computeLogSumInside(edgeWeights);
+        }
+        if (semiring == Semiring.BOOLEAN)
+            return computeReachable() ? 1 : 0;
+
+        // Any other semiring: map the weights once, then one loop per node type
+        double zero = semiring.zero(), one = semiring.one();
+        double[] edgeWeights = new double[weights.length];
+        for (int e = 0; e < edgeWeights.length; e++)
+            edgeWeights[e] = semiring.fromLogWeight(weights[e]);
+        double[] scores = new double[types.length];
+        for (int i = scores.length - 1; i >= 0; i--) {
+            if (i == endPos) {
+                scores[i] = one;
+                continue;
+            }
+            int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+            double score;
+            if (types[i] == NodeType.sum) {
+                score = zero;
+                for (int e = begin; e < end; e++)
+                    score = semiring.plus(score, semiring.times(edgeWeights[e],
+                            semiring.times(scores[dests1[e]], scores[dests2[e]])));
+            } else {
+                score = one;
+                for (int e = begin; e < end; e++)
+                    score = semiring.times(score, semiring.times(edgeWeights[e],
+                            semiring.times(scores[dests1[e]], scores[dests2[e]])));
+            }
+            scores[i] = score;
+        }
+        return scores[startPos];
     }
 
-    private boolean updateMaxScore(NodeInfo nodeInfo, double score,
-                                   boolean viterbi) {
-        assert viterbi : "updateMax is only for viterbi updates!";
-        boolean updated = nodeInfo.maxScore < score;
-        nodeInfo.maxScore = Math.max(nodeInfo.maxScore, score);
-
-        return updated;
+    // Inside pass in the log-sum semiring with the given edge weights (by
+    // edge position), into a fresh array; returns the value at the start node
+
+    private double computeLogSumInside(double[] edgeWeights) {
+        double[] scores = new double[types.length];
+        for (int i = scores.length - 1; i >= 0; i--) {
+            if (i == endPos)
+                continue; // 0
+            int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+            double score;
+            if (types[i] == NodeType.sum) {
+                score = Double.NEGATIVE_INFINITY;
+                for (int e = begin; e < end; e++)
+                    score = NumUtils.logAdd(score, edgeWeights[e] + scores[dests1[e]]
+                            + scores[dests2[e]]);
+            } else {
+                score = 0;
+                for (int e = begin; e < end; e++)
+                    score += edgeWeights[e] + scores[dests1[e]] + scores[dests2[e]];
+            }
+            scores[i] = score;
+        }
+        return scores[startPos];
     }
 
-    // Adding in log-space
+    // Whether some hyperpath from the start node has non-zero weight
 
-    private void incrScore(NodeInfo nodeInfo, double score, boolean viterbi) {
-        if (viterbi)
-            nodeInfo.maxScore = NumUtils.logAdd(nodeInfo.maxScore, score);
-        else
-            nodeInfo.insideScore = NumUtils.logAdd(nodeInfo.insideScore, score);
+    private boolean computeReachable() {
+        boolean[] alive = new boolean[types.length];
+        for (int i = alive.length - 1; i >= 0; i--) {
+            if (i == endPos) {
+                alive[i] = true;
+                continue;
+            }
+            int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+            boolean sum = types[i] == NodeType.sum;
+            boolean a = !sum;
+            for (int e = begin; e < end; e++) {
+                boolean edgeAlive = weights[e] != Double.NEGATIVE_INFINITY
+                        && alive[dests1[e]] && alive[dests2[e]];
+                if (edgeAlive == sum) {
+                    a = sum; // found a live edge (sum) or a dead one (prod)
+                    break;
+                }
+            }
+            alive[i] = a;
+        }
+        return alive[startPos];
     }
 
-    // Multiplying in log-space
+    // Inside pass in the log-sum semiring
 
-    private void multScore(NodeInfo nodeInfo, double score, boolean viterbi) {
-        if (viterbi)
-            nodeInfo.maxScore += score;
-        else
-            nodeInfo.insideScore += score;
+    private void computeInsideScores() {
+        compile();
+        applyUpdates();
+        double[] scores = insideScores;
+        if (!Double.isNaN(scores[startPos]))
+            return; // Already computed
+
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        if (executor != null)
+            computeInParallel(INSIDE_PASS);
+        else {
+            for (int i = scores.length - 1; i >= 0; i--) {
+                if (i == endPos) {
+                    // initialize end node's score to 0
+                    scores[i] = 0;
+                    continue;
+                }
+                scores[i] = insideScore(i);
+            }
+        }
+        if (timed) {
+            HypergraphStats.global.addTime(HypergraphStats.Phase.inside, start);
+            int numDeadNodes = 0;
+            for (double score : scores)
+                if (score == Double.NEGATIVE_INFINITY)
+                    numDeadNodes++;
+            HypergraphStats.global.addDeadNodes(numDeadNodes);
+        }
+        assert !Double.isNaN(scores[startPos])
+                && !Double.isInfinite(scores[startPos]) : "Marginal score = "
+                + scores[startPos] + "!!";
     }
 
-    private void computeInsideMaxScores(boolean viterbi) {
-        if (viterbi && !Double.isNaN(this.startNodeInfo.maxScore))
-            return; // Already computed
-        if (!viterbi && !Double.isNaN(this.startNodeInfo.insideScore))
+    // Inside pass in the max-times semiring
+
+    private void computeMaxScores() {
+        compile();
+        applyUpdates();
+        double[] scores = maxScores;
+        if (!Double.isNaN(scores[startPos]))
             return; // Already computed
 
-        for (int i = topologicalOrdering.length - 1; i >= 0; i--) {
-            NodeInfo nodeInfo = topologicalOrdering[i];
-            if (nodeInfo == endNodeInfo) {
-                // initialize end node's score to 0
-                setScore(nodeInfo, 0, viterbi);
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        if (executor != null)
+            computeInParallel(MAX_PASS);
+        else {
+            for (int i = scores.length - 1; i >= 0; i--) {
+                if (i == endPos) {
+                    // initialize end node's score to 0
+                    scores[i] = 0;
+                    continue;
+                }
+                scores[i] = maxScore(i);
+            }
+        }
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.max, start);
+        assert !Double.isNaN(scores[startPos])
+                && !Double.isInfinite(scores[startPos]) : "Max score = "
+                + scores[startPos] + "!!";
+    }
+
+    // Inside score of node i (other than the end node) from its children
+
+    private double insideScore(int i) {
+        double[] scores = insideScores;
+        int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+        double score;
+        if (types[i] == NodeType.sum) {
+            score = Double.NEGATIVE_INFINITY;
+            for (int e = begin; e < end; e++)
+                score = NumUtils.logAdd(score, weights[e] + scores[dests1[e]]
+                        + scores[dests2[e]]);
+        } else {
+            score = 0;
+            for (int e = begin; e < end; e++)
+                score += weights[e] + scores[dests1[e]] + scores[dests2[e]];
+        }
+        return score;
+    }
+
+    // Max score of node i (other than the end node) from its children; also
+    // records its best edge
+
+    private double maxScore(int i) {
+        double[] scores = maxScores;
+        int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+        double score;
+        if (types[i] == NodeType.sum) {
+            // Keep the first edge with the highest score
+            int bestEdge = begin < end ? begin : -1;
+            score = Double.NEGATIVE_INFINITY;
+            for (int e = begin; e < end; e++) {
+                double edgeScore = weights[e] + scores[dests1[e]]
+                        + scores[dests2[e]];
+                if (edgeScore > score) {
+                    score = edgeScore;
+                    bestEdge = e;
+                }
+            }
+            bestEdges[i] = bestEdge;
+        } else {
+            score = 0;
+            for (int e = begin; e < end; e++)
+                score += weights[e] + scores[dests1[e]] + scores[dests2[e]];
+        }
+        return score;
+    }
+
+    // Outside score of node j (other than the start and end nodes) pulled
+    // from its parents. Adds up the same terms in the same order as
+    // computeOutsideScores() pushes them, so gives exactly the same value.
+
+    private double outsideScore(int j) {
+        double score = Double.NEGATIVE_INFINITY;
+        for (int p = parentOffsets[j]; p < parentOffsets[j + 1]; p++) {
+            int e = parentEdges[p], i = edgeSourcePositions[e];
+            if (insideScores[i] == Double.NEGATIVE_INFINITY)
+                continue; // Dead parent
+            int d1 = dests1[e], d2 = dests2[e];
+            double outside = outsideScores[i];
+            if (types[i] == NodeType.sum) {
+                if (d1 == j)
+                    score = NumUtils.logAdd(score, outside + weights[e] + insideScores[d2]);
+                if (d2 == j)
+                    score = NumUtils.logAdd(score, outside + weights[e] + insideScores[d1]);
+            } else {
+                double inside = insideScores[i];
+                if (d1 == j)
+                    score = NumUtils.logAdd(score, outside + inside - insideScores[d1]);
+                if (d2 == j)
+                    score = NumUtils.logAdd(score, outside + inside - insideScores[d2]);
+            }
+        }
+        return score;
+    }
+
+    // Sizes of hypergraphs before and after prune(), summed over calls to add()
+    public static class PruneStats {
+        public int numNodes, numEdges; // before pruning
+        public int numPrunedNodes, numPrunedEdges;
+        // log Z before and after pruning (NaN if not measured)
+        public double logZBefore = Double.NaN, logZAfter = Double.NaN;
+
+        public double logZLoss() {
+            return logZBefore - logZAfter;
+        }
+
+        public void add(PruneStats that) {
+            numNodes += that.numNodes;
+            numEdges += that.numEdges;
+            numPrunedNodes += that.numPrunedNodes;
+            numPrunedEdges += that.numPrunedEdges;
+            logZBefore = (Double.isNaN(logZBefore) ? 0 : logZBefore) + that.logZBefore;
+            logZAfter = (Double.isNaN(logZAfter) ? 0 : logZAfter) + that.logZAfter;
+        }
+
+        public String toString() {
+            return String.format("pruned %d/%d nodes, %d/%d edges, logZ loss %s",
+                    numPrunedNodes, numNodes, numPrunedEdges, numEdges, logZLoss());
+        }
+    }
+
+    /**
+     * Removes every node and edge whose max-marginal (score of the best
+     * hyperpath through it) is more than threshold below the score of the
+     * best hyperpath. The best hyperpath always survives, and so does every
+     * hyperpath within threshold of it; the remaining passes run on the
+     * smaller graph. If measureLogZ, also computes log Z before and after
+     * (the inside scores after pruning are then already computed).
+     * Updates to the weights of pruned edges are ignored.
+     */
+    public PruneStats prune(double threshold, boolean measureLogZ) {
+        compile();
+        PruneStats stats = new PruneStats();
+        stats.numNodes = types.length;
+        stats.numEdges = weights.length;
+        if (measureLogZ) {
+            computeInsideScores();
+            stats.logZBefore = insideScores[startPos];
+        }
+
+        // Max-outside scores: best score of a hyperpath from the start node
+        // down to each node, not counting the node's own subtree
+        computeMaxScores();
+        int n = types.length;
+        double[] maxOutside = new double[n];
+        Arrays.fill(maxOutside, Double.NEGATIVE_INFINITY);
+        maxOutside[startPos] = 0;
+        for (int i = 0; i < n; i++) {
+            if (maxScores[i] == Double.NEGATIVE_INFINITY || i == endPos)
+                continue; // Dead node
+            double outside = maxOutside[i];
+            for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++) {
+                int d1 = dests1[e], d2 = dests2[e];
+                double score1, score2;
+                if (types[i] == NodeType.sum) {
+                    score1 = outside + weights[e] + maxScores[d2];
+                    score2 = outside + weights[e] + maxScores[d1];
+                } else {
+                    score1 = outside + maxScores[i] - maxScores[d1];
+                    score2 = outside + maxScores[i] - maxScores[d2];
+                }
+                maxOutside[d1] = Math.max(maxOutside[d1], score1);
+                maxOutside[d2] = Math.max(maxOutside[d2], score2);
+            }
+        }
+
+        // Keep nodes whose max-marginals are above the cutoff, and the best
+        // hyperpath in any case (rounding can put its max-marginals a hair
+        // below the best score)
+        double cutoff = maxScores[startPos] - threshold;
+        boolean[] keepNode = new boolean[n];
+        for (int i = 0; i < n; i++)
+            keepNode[i] = maxOutside[i] + maxScores[i] >= cutoff;
+        keepNode[endPos] = true;
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = startPos;
+        while (size > 0) {
+            int i = stack[--size];
+            keepNode[i] = true;
+            if (i == endPos)
                 continue;
+            boolean sum = types[i] == NodeType.sum;
+            for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++) {
+                if (sum && e != bestEdges[i])
+                    continue;
+                if (size + 2 > stack.length)
+                    stack = grow(stack, 2 * size + 2);
+                stack[size++] = dests1[e];
+                stack[size++] = dests2[e];
             }
+        }
 
-            // perform sumProduct or maxProduct
-            switch (nodeInfo.nodeType) {
-                case sum:
-                    setScore(nodeInfo, Double.NEGATIVE_INFINITY, viterbi);
-                    for (Hyperedge edge : nodeInfo.edges) {
-                        if (viterbi)
-                            updateMaxScore(nodeInfo, edge.weight
-                                    + edge.dest1.maxScore + edge.dest2.maxScore,
-                                    viterbi);
-                        else
-                            incrScore(nodeInfo, edge.weight
-                                    + edge.dest1.insideScore
-                                    + edge.dest2.insideScore, viterbi);
+        // Keep the edges above the cutoff whose children are kept, bottom-up.
+        // A prod node that lost a child goes too.
+        boolean[] keepEdge = new boolean[weights.length];
+        int numKeptEdges = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            if (!keepNode[i])
+                continue;
+            boolean sum = types[i] == NodeType.sum;
+            for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++) {
+                keepEdge[e] = keepNode[dests1[e]] && keepNode[dests2[e]]
+                        && (!sum || e == bestEdges[i] || maxOutside[i] + weights[e]
+                        + maxScores[dests1[e]] + maxScores[dests2[e]] >= cutoff);
+                if (!sum && !keepEdge[e])
+                    keepNode[i] = false;
+            }
+            if (keepNode[i])
+                for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++)
+                    if (keepEdge[e])
+                        numKeptEdges++;
+        }
+        int[] newPositions = new int[n];
+        int numKeptNodes = 0;
+        for (int i = 0; i < n; i++)
+            if (keepNode[i])
+                newPositions[i] = numKeptNodes++;
+
+        // Lay out the surviving graph (in new arrays: the old ones may be
+        // shared with a template)
+        applyUpdates();
+        int[] newOrdering = new int[numKeptNodes];
+        NodeType[] newTypes = new NodeType[numKeptNodes];
+        int[] newEdgeOffsets = new int[numKeptNodes + 1];
+        int[] newDests1 = new int[numKeptEdges], newDests2 = new int[numKeptEdges];
+        double[] newWeights = new double[numKeptEdges];
+        AHyperedgeInfo[] newInfos = new AHyperedgeInfo[numKeptEdges];
+        int[] newEdgeIds = new int[numKeptEdges];
+        int[] newEdgePositions = new int[edgePositions.length];
+        Arrays.fill(newEdgePositions, -1);
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (!keepNode[i])
+                continue;
+            int pos = newPositions[i];
+            newOrdering[pos] = topologicalOrdering[i];
+            newTypes[pos] = types[i];
+            newEdgeOffsets[pos] = k;
+            for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++) {
+                if (!keepEdge[e])
+                    continue;
+                newDests1[k] = newPositions[dests1[e]];
+                newDests2[k] = newPositions[dests2[e]];
+                newWeights[k] = weights[e];
+                newInfos[k] = infos[e];
+                newEdgeIds[k] = edgeIds[e];
+                newEdgePositions[edgeIds[e]] = k;
+                k++;
+            }
+        }
+        newEdgeOffsets[numKeptNodes] = k;
+        int[] newNodePositions = new int[positions.length];
+        Arrays.fill(newNodePositions, -1);
+        for (int pos = 0; pos < numKeptNodes; pos++)
+            newNodePositions[newOrdering[pos]] = pos;
+        topologicalOrdering = newOrdering;
+        positions = newNodePositions;
+        types = newTypes;
+        edgeOffsets = newEdgeOffsets;
+        dests1 = newDests1;
+        dests2 = newDests2;
+        weights = newWeights;
+        infos = newInfos;
+        edgeIds = newEdgeIds;
+        edgePositions = newEdgePositions;
+        endPos = newPositions[endPos];
+        parentOffsets = parentEdges = edgeSourcePositions = leafEdges = emptyProds = null;
+        heightOffsets = heightNodes = depthOffsets = depthNodes = null;
+        allocateScores();
+
+        stats.numPrunedNodes = n - numKeptNodes;
+        stats.numPrunedEdges = stats.numEdges - numKeptEdges;
+        if (measureLogZ) {
+            computeInsideScores();
+            stats.logZAfter = insideScores[startPos];
+        }
+        return stats;
+    }
+
+    /**
+     * Makes the inside, max and outside passes run on the given threads:
+     * nodes are grouped into levels that don't depend on each other (nodes of
+     * equal height for the bottom-up passes, of equal depth for the outside
+     * pass), and each level with at least minParallelLevelSize nodes is split
+     * into numThreads chunks. Every node is computed exactly as in the
+     * sequential passes (the outside pass pulls from parents instead of
+     * pushing to children, adding the same terms in the same order), so the
+     * scores are bit-for-bit identical. Only worth it for very large graphs
+     * (e.g., CKY charts over long inputs). Pass null to go back to sequential.
+     */
+    public void setExecutor(ExecutorService executor, int numThreads, int minParallelLevelSize) {
+        this.executor = numThreads > 1 ? executor : null;
+        this.numThreads = numThreads;
+        this.minParallelLevelSize = minParallelLevelSize;
+    }
+
+    public void setExecutor(ExecutorService executor, int numThreads) {
+        setExecutor(executor, numThreads, minParallelLevelSize);
+    }
+
+    // Thread pool for setExecutor() whose threads don't keep the JVM alive
+    public static ExecutorService newExecutor(int numThreads) {
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hypergraph");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static final int INSIDE_PASS = 0, MAX_PASS = 1, OUTSIDE_PASS = 2;
+
+    private void computeInParallel(final int pass) {
+        final int[] offsets, levelNodes;
+        if (pass == OUTSIDE_PASS) {
+            if (parentOffsets == null)
+                computeParents();
+            if (depthOffsets == null)
+                computeDepths();
+            offsets = depthOffsets;
+            levelNodes = depthNodes;
+            outsideScores[endPos] = Double.NEGATIVE_INFINITY;
+        } else {
+            if (heightOffsets == null)
+                computeHeights();
+            offsets = heightOffsets;
+            levelNodes = heightNodes;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(numThreads);
+        for (int level = 0; level + 1 < offsets.length; level++) {
+            int begin = offsets[level], end = offsets[level + 1];
+            if (end - begin < minParallelLevelSize) {
+                computeNodes(pass, levelNodes, begin, end);
+                continue;
+            }
+            tasks.clear();
+            for (int t = 0; t < numThreads; t++) {
+                final int chunkBegin = begin + (int) ((long) (end - begin) * t / numThreads);
+                final int chunkEnd = begin + (int) ((long) (end - begin) * (t + 1) / numThreads);
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        computeNodes(pass, levelNodes, chunkBegin, chunkEnd);
+                        return null;
                     }
+                });
+            }
+            try {
+                for (Future<Object> future : executor.invokeAll(tasks))
+                    future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private void computeNodes(int pass, int[] levelNodes, int begin, int end) {
+        for (int k = begin; k < end; k++) {
+            int i = levelNodes[k];
+            switch (pass) {
+                case INSIDE_PASS:
+                    insideScores[i] = i == endPos ? 0 : insideScore(i);
                     break;
-                case prod:
-                    setScore(nodeInfo, 0, viterbi);
-                    for (Hyperedge edge : nodeInfo.edges) {
-                        if (viterbi)
-                            multScore(nodeInfo, edge.weight + edge.dest1.maxScore
-                                    + edge.dest2.maxScore, viterbi);
-                        else
-                            multScore(nodeInfo, edge.weight
-                                    + edge.dest1.insideScore
-                                    + edge.dest2.insideScore, viterbi);
-                    }
+                case MAX_PASS:
+                    maxScores[i] = i == endPos ? 0 : maxScore(i);
+                    break;
+                case OUTSIDE_PASS:
+                    if (i == startPos)
+                        outsideScores[i] = 0;
+                    else if (i != endPos)
+                        outsideScores[i] = outsideScore(i);
                     break;
             }
         }
-        if (viterbi)
-            assert !Double.isNaN(startNodeInfo.maxScore)
-                    && !Double.isInfinite(startNodeInfo.maxScore) : "Max score = "
-                    + startNodeInfo.maxScore + "!!";
-        else
-            assert !Double.isNaN(startNodeInfo.insideScore)
-                    && !Double.isInfinite(startNodeInfo.insideScore) : "Marginal score = "
-                    + startNodeInfo.insideScore + "!!";
+    }
+
+    // Height: 0 for nodes without children, else 1 + the largest height of a
+    // child. Children come after their parents in topological order.
+    private void computeHeights() {
+        int n = types.length;
+        int[] heights = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            int height = 0;
+            for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++)
+                height = Math.max(height, 1 + Math.max(heights[dests1[e]], heights[dests2[e]]));
+            heights[i] = height;
+        }
+        heightNodes = new int[n];
+        heightOffsets = groupByLevel(heights, heightNodes);
+    }
+
+    // Depth: 0 for the start node, else 1 + the largest depth of a parent
+    private void computeDepths() {
+        int n = types.length;
+        int[] depths = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++) {
+                depths[dests1[e]] = Math.max(depths[dests1[e]], depths[i] + 1);
+                depths[dests2[e]] = Math.max(depths[dests2[e]], depths[i] + 1);
+            }
+        }
+        depthNodes = new int[n];
+        depthOffsets = groupByLevel(depths, depthNodes);
+    }
+
+    // Counting sort of nodes by level; returns the offsets of each level
+    private static int[] groupByLevel(int[] levels, int[] levelNodes) {
+        int numLevels = 0;
+        for (int level : levels)
+            numLevels = Math.max(numLevels, level + 1);
+        int[] offsets = new int[numLevels + 1];
+        for (int level : levels)
+            offsets[level + 1]++;
+        for (int level = 0; level < numLevels; level++)
+            offsets[level + 1] += offsets[level];
+        int[] fill = new int[numLevels];
+        System.arraycopy(offsets, 0, fill, 0, numLevels);
+        for (int i = 0; i < levels.length; i++)
+            levelNodes[fill[levels[i]]++] = i;
+        return offsets;
+    }
+
+    /**
+     * Changes the weight of an edge (given by the id returned by addEdge).
+     * Scores that were already computed are brought up to date lazily, the
+     * next time they are needed, by recomputing only the nodes they depend
+     * on: inside and max scores of the ancestors of the changed edges, and
+     * outside scores of the nodes below those. This gives exactly the same
+     * result as recomputing everything.
+     */
+    public void updateEdgeWeight(int edge, double weight) {
+        compile();
+        int k = edgePositions[edge];
+        if (k == -1 || weights[k] == weight)
+            return; // Pruned or unchanged
+        weights[k] = weight;
+        if (numPendingEdges == pendingEdges.length)
+            pendingEdges = grow(pendingEdges, 2 * numPendingEdges);
+        pendingEdges[numPendingEdges++] = k;
+        // These are cheap enough to recompute from scratch
+        bestFirstEdges = null;
+        sampleCdfs = null;
+        logZ = elogZ = entropy = Double.NaN;
+        hasSumELogZEntropy = false;
+    }
+
+    // Same, fetching the new weight from the edge's info
+
+    public void reweightEdge(int edge) {
+        compile();
+        int k = edgePositions[edge];
+        if (k != -1)
+            updateEdgeWeight(edge, getWeight(infos[k]));
+    }
+
+    // Bring inside, max and outside scores up to date with pending edge
+    // weight changes
+
+    private void applyUpdates() {
+        if (numPendingEdges == 0)
+            return;
+        if (parentOffsets == null)
+            computeParents();
+        boolean hasInside = !Double.isNaN(insideScores[startPos]);
+        boolean hasOutside = !Double.isNaN(outsideScores[startPos]);
+        boolean hasMax = !Double.isNaN(maxScores[startPos]);
+        PositionQueue queue = new PositionQueue(types.length);
+
+        // Inside scores: ancestors of changed edges, deepest first. Remember
+        // which nodes changed for the outside scores.
+        int[] changed = new int[16];
+        int numChanged = 0;
+        if (hasInside) {
+            for (int j = 0; j < numPendingEdges; j++)
+                queue.add(-edgeSourcePositions[pendingEdges[j]]);
+            while (!queue.isEmpty()) {
+                int i = -queue.poll();
+                double score = insideScore(i);
+                if (sameScore(score, insideScores[i]))
+                    continue;
+                insideScores[i] = score;
+                if (numChanged == changed.length)
+                    changed = grow(changed, 2 * numChanged);
+                changed[numChanged++] = i;
+                for (int p = parentOffsets[i]; p < parentOffsets[i + 1]; p++)
+                    queue.add(-edgeSourcePositions[parentEdges[p]]);
+            }
+        }
+
+        if (hasMax) {
+            for (int j = 0; j < numPendingEdges; j++)
+                queue.add(-edgeSourcePositions[pendingEdges[j]]);
+            while (!queue.isEmpty()) {
+                int i = -queue.poll();
+                double score = maxScore(i);
+                if (sameScore(score, maxScores[i]))
+                    continue;
+                maxScores[i] = score;
+                for (int p = parentOffsets[i]; p < parentOffsets[i + 1]; p++)
+                    queue.add(-edgeSourcePositions[parentEdges[p]]);
+            }
+        }
+
+        // Outside scores: a node's outside score depends on its parents'
+        // outside and inside scores, the weights of its parent edges and the
+        // inside scores of its siblings. Top-down from there.
+        if (hasOutside && hasInside) {
+            for (int j = 0; j < numPendingEdges; j++) {
+                int e = pendingEdges[j];
+                queueOutside(queue, dests1[e]);
+                queueOutside(queue, dests2[e]);
+            }
+            for (int j = 0; j < numChanged; j++) {
+                int i = changed[j];
+                queueOutsideChildren(queue, i);
+                for (int p = parentOffsets[i]; p < parentOffsets[i + 1]; p++) {
+                    int e = parentEdges[p];
+                    queueOutside(queue, dests1[e]);
+                    queueOutside(queue, dests2[e]);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int i = queue.poll();
+                double score = outsideScore(i);
+                if (sameScore(score, outsideScores[i]))
+                    continue;
+                outsideScores[i] = score;
+                queueOutsideChildren(queue, i);
+            }
+        } else if (hasOutside)
+            Arrays.fill(outsideScores, Double.NaN);
+
+        numPendingEdges = 0;
+    }
+
+    private void queueOutside(PositionQueue queue, int i) {
+        if (i != startPos && i != endPos)
+            queue.add(i);
+    }
+
+    private void queueOutsideChildren(PositionQueue queue, int i) {
+        for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++) {
+            queueOutside(queue, dests1[e]);
+            queueOutside(queue, dests2[e]);
+        }
+    }
+
+    private static boolean sameScore(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    // For each node, the edges it is a child of (in edge order), ignoring the
+    // end node; and the source of each edge
+    private void computeParents() {
+        boolean shared = template != null && edgeOffsets == template.edgeOffsets;
+        if (shared) {
+            int[][] parents = template.parents;
+            if (parents != null) {
+                setParents(parents);
+                return;
+            }
+        }
+        int n = types.length, numEdges = weights.length;
+        edgeSourcePositions = new int[numEdges];
+        parentOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++) {
+                edgeSourcePositions[e] = i;
+                int d1 = dests1[e], d2 = dests2[e];
+                if (d1 != endPos)
+                    parentOffsets[d1 + 1]++;
+                if (d2 != endPos && d2 != d1)
+                    parentOffsets[d2 + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++)
+            parentOffsets[i + 1] += parentOffsets[i];
+        parentEdges = new int[parentOffsets[n]];
+        int[] fill = new int[n];
+        System.arraycopy(parentOffsets, 0, fill, 0, n);
+        for (int e = 0; e < numEdges; e++) {
+            int d1 = dests1[e], d2 = dests2[e];
+            if (d1 != endPos)
+                parentEdges[fill[d1]++] = e;
+            if (d2 != endPos && d2 != d1)
+                parentEdges[fill[d2]++] = e;
+        }
+        int numLeafEdges = 0, numEmptyProds = 0;
+        for (int i = 0; i < n; i++) {
+            if (i != endPos && types[i] == NodeType.prod && edgeOffsets[i] == edgeOffsets[i + 1])
+                numEmptyProds++;
+        }
+        for (int e = 0; e < numEdges; e++) {
+            if (dests1[e] == endPos && dests2[e] == endPos)
+                numLeafEdges++;
+        }
+        leafEdges = new int[numLeafEdges];
+        emptyProds = new int[numEmptyProds];
+        numLeafEdges = numEmptyProds = 0;
+        for (int i = 0; i < n; i++) {
+            if (i != endPos && types[i] == NodeType.prod && edgeOffsets[i] == edgeOffsets[i + 1])
+                emptyProds[numEmptyProds++] = i;
+        }
+        for (int e = 0; e < numEdges; e++) {
+            if (dests1[e] == endPos && dests2[e] == endPos)
+                leafEdges[numLeafEdges++] = e;
+        }
+        if (shared)
+            template.parents = new int[][]{parentOffsets, parentEdges, edgeSourcePositions, leafEdges, emptyProds};
+    }
+
+    private void setParents(int[][] parents) {
+        parentOffsets = parents[0];
+        parentEdges = parents[1];
+        edgeSourcePositions = parents[2];
+        leafEdges = parents[3];
+        emptyProds = parents[4];
+    }
+
+    // Binary heap of distinct positions, smallest first
+    private static final class PositionQueue {
+        private final boolean[] queued;
+        private int[] heap = new int[16];
+        private int size = 0;
+
+        // Add negated positions to get the largest first
+        PositionQueue(int n) {
+            queued = new boolean[n];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(int x) {
+            int i = x < 0 ? -x : x;
+            if (queued[i])
+                return;
+            queued[i] = true;
+            if (size == heap.length)
+                heap = grow(heap, 2 * size);
+            int j = size++;
+            while (j > 0) {
+                int parent = (j - 1) / 2;
+                if (heap[parent] <= x)
+                    break;
+                heap[j] = heap[parent];
+                j = parent;
+            }
+            heap[j] = x;
+        }
+
+        int poll() {
+            int top = heap[0];
+            int x = heap[--size];
+            int j = 0;
+            while (true) {
+                int child = 2 * j + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && heap[child + 1] < heap[child])
+                    child++;
+                if (heap[child] >= x)
+                    break;
+                heap[j] = heap[child];
+                j = child;
+            }
+            heap[j] = x;
+            queued[top < 0 ? -top : top] = false;
+            return top;
+        }
     }
 
     private void computeOutsideScores() {
-        if (!Double.isNaN(startNodeInfo.outsideScore))
+        applyUpdates();
+        if (!Double.isNaN(outsideScores[startPos]))
             return; // Already computed
 
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        if (executor != null)
+            computeInParallel(OUTSIDE_PASS);
+        else
+            computeOutsideScoresSequentially();
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.outside, start);
+    }
+
+    private void computeOutsideScoresSequentially() {
         // Initialize values to zero
-        for (NodeInfo nodeInfo : topologicalOrdering)
-            nodeInfo.outsideScore = Double.NEGATIVE_INFINITY;
+        Arrays.fill(outsideScores, Double.NEGATIVE_INFINITY);
 
-        startNodeInfo.outsideScore = 0;
-        for (int i = 0; i < topologicalOrdering.length; i++) {
-            NodeInfo nodeInfo = topologicalOrdering[i];
-            if (nodeInfo.insideScore == Double.NEGATIVE_INFINITY)
+        outsideScores[startPos] = 0;
+        for (int i = 0; i < outsideScores.length; i++) {
+            if (insideScores[i] == Double.NEGATIVE_INFINITY)
                 continue; // This happens for dead nodes
-            // dbgs("outsideScore(%s) = %s", nodeInfo.node,
-            // nodeInfo.outsideScore);
-            switch (nodeInfo.nodeType) {
+            double outside = outsideScores[i];
+            int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+            switch (types[i]) {
                 case sum:
-                    for (Hyperedge edge : nodeInfo.edges) {
-                        if (edge.dest1 != endNodeInfo)
-                            edge.dest1.outsideScore = NumUtils.logAdd(
-                                    edge.dest1.outsideScore, nodeInfo.outsideScore
-                                            + edge.weight + edge.dest2.insideScore);
-                        if (edge.dest2 != endNodeInfo)
-                            edge.dest2.outsideScore = NumUtils.logAdd(
-                                    edge.dest2.outsideScore, nodeInfo.outsideScore
-                                            + edge.weight + edge.dest1.insideScore);
+                    for (int e = begin; e < end; e++) {
+                        int d1 = dests1[e], d2 = dests2[e];
+                        if (d1 != endPos)
+                            outsideScores[d1] = NumUtils.logAdd(
+                                    outsideScores[d1], outside + weights[e]
+                                            + insideScores[d2]);
+                        if (d2 != endPos)
+                            outsideScores[d2] = NumUtils.logAdd(
+                                    outsideScores[d2], outside + weights[e]
+                                            + insideScores[d1]);
                     }
                     break;
                 case prod:
-                    for (Hyperedge edge : nodeInfo.edges) {
-                        if (edge.dest1 != endNodeInfo)
-                            edge.dest1.outsideScore = NumUtils.logAdd(
-                                    edge.dest1.outsideScore, nodeInfo.outsideScore
-                                            + nodeInfo.insideScore
-                                            - edge.dest1.insideScore);
-                        if (edge.dest2 != endNodeInfo)
-                            edge.dest2.outsideScore = NumUtils.logAdd(
-                                    edge.dest2.outsideScore, nodeInfo.outsideScore
-                                            + nodeInfo.insideScore
-                                            - edge.dest2.insideScore);
+                    double inside = insideScores[i];
+                    for (int e = begin; e < end; e++) {
+                        int d1 = dests1[e], d2 = dests2[e];
+                        if (d1 != endPos)
+                            outsideScores[d1] = NumUtils.logAdd(
+                                    outsideScores[d1], outside + inside
+                                            - insideScores[d1]);
+                        if (d2 != endPos)
+                            outsideScores[d2] = NumUtils.logAdd(
+                                    outsideScores[d2], outside + inside
+                                            - insideScores[d2]);
                     }
                     break;
             }
@@ -483,106 +1889,486 @@ public class Hypergraph<Widget> {
             fetchPosteriorsSum();
     }
 
+    /**
+     * Computes E_q[log weight] and the entropy of q in a single bottom-up sweep
+     * in the first-order expectation semiring, using only the inside scores.
+     * For each node we keep the expected log weight and the entropy of the
+     * distribution over its sub-hyperpaths.
+     */
     public void computeELogZEntropy(boolean viterbi) {
         if (viterbi) { // Easy case: q(z|x) is degenerate
             this.elogZ = this.logZ;
             this.entropy = 0;
+            hasSumELogZEntropy = false;
             return;
         }
 
-        this.elogZ = 0;
-        this.entropy = 0;
-        for (NodeInfo nodeInfo : topologicalOrdering) {
-            // dbg(startNodeInfo.insideScore);
-            double nodeProb = Math.exp(nodeInfo.outsideScore
-                    + nodeInfo.insideScore - startNodeInfo.insideScore);
-            if (nodeProb == 0)
-                continue;
-            switch (nodeInfo.nodeType) {
+        if (hasSumELogZEntropy)
+            return; // Already computed (e.g., while fetching posteriors)
+        computeInsideScores();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        int n = insideScores.length;
+        double[] nodeELogZ = new double[n], nodeEntropy = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double inside = insideScores[i];
+            if (i == endPos || inside == Double.NEGATIVE_INFINITY)
+                continue; // Nothing below or dead node
+            int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+            double elogZ = 0, entropy = 0;
+            switch (types[i]) {
                 case sum:
-                    for (Hyperedge edge : nodeInfo.edges) {
-                        double edgeProb = Math.exp(nodeInfo.outsideScore
-                                + edge.weight + edge.dest1.insideScore
-                                + edge.dest2.insideScore
-                                - startNodeInfo.insideScore);
+                    for (int e = begin; e < end; e++) {
+                        int d1 = dests1[e], d2 = dests2[e];
+                        double logProb = weights[e] + insideScores[d1]
+                                + insideScores[d2] - inside;
+                        double edgeProb = Math.exp(logProb);
                         if (edgeProb == 0)
                             continue;
-                        elogZ += edgeProb * edge.weight;
-                        entropy -= edgeProb * Math.log(edgeProb / nodeProb);
+                        elogZ += edgeProb * (weights[e] + nodeELogZ[d1] + nodeELogZ[d2]);
+                        entropy += edgeProb * (nodeEntropy[d1] + nodeEntropy[d2] - logProb);
                     }
                     break;
                 case prod:
                     // No uncertainty, so no contribution to entropy
-                    for (Hyperedge edge : nodeInfo.edges)
-                        elogZ += nodeProb * edge.weight;
+                    for (int e = begin; e < end; e++) {
+                        int d1 = dests1[e], d2 = dests2[e];
+                        elogZ += weights[e] + nodeELogZ[d1] + nodeELogZ[d2];
+                        entropy += nodeEntropy[d1] + nodeEntropy[d2];
+                    }
                     break;
             }
+            nodeELogZ[i] = elogZ;
+            nodeEntropy[i] = entropy;
         }
+        this.elogZ = nodeELogZ[startPos];
+        this.entropy = nodeEntropy[startPos];
+        hasSumELogZEntropy = true;
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.elogZEntropy, start);
     }
 
     private void fetchPosteriorsSum() {
-        for (NodeInfo nodeInfo : topologicalOrdering) {
-            switch (nodeInfo.nodeType) {
+        fetchPosteriorsSum(null, 0, null, 0);
+    }
+
+    public interface EdgePosteriorSink {
+        // edge is the id returned by addEdge
+        public void setPosterior(int edge, double prob);
+    }
+
+    /**
+     * Sends the posterior of each edge above threshold to sink (instead of
+     * calling setPosterior on the infos). In the same sweep, computes
+     * E_q[log weight] and the entropy of q from the edge posteriors, so
+     * that computeELogZEntropy() is not needed afterwards. Dead and
+     * unreachable nodes are skipped.
+     */
+    public void fetchPosteriors(EdgePosteriorSink sink, double threshold) {
+        fetchPosteriorsSum(sink, threshold, null, 0);
+    }
+
+    // Entropy of q is the expected entropy of the choice at each sum node:
+    // sum over edges of -P(edge) log P(edge | source node). Posteriors go to
+    // the gradient (times scale) if there is one, else to the sink or infos.
+    private void fetchPosteriorsSum(EdgePosteriorSink sink, double threshold,
+                                    double[] gradient, double scale) {
+        computeInsideScores();
+        computeOutsideScores();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        int numZeroEdges = 0, numBadPosteriors = 0;
+        double logZ = insideScores[startPos];
+        double elogZ = 0, entropy = 0;
+        for (int i = 0; i < insideScores.length; i++) {
+            double inside = insideScores[i], outside = outsideScores[i];
+            if (inside == Double.NEGATIVE_INFINITY || outside == Double.NEGATIVE_INFINITY)
+                continue; // Dead or unreachable: all posteriors are zero
+            int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+            switch (types[i]) {
                 case sum:
-                    for (Hyperedge edge : nodeInfo.edges) {
-                        double prob = Math.exp(nodeInfo.outsideScore + edge.weight
-                                + edge.dest1.insideScore + edge.dest2.insideScore
-                                - startNodeInfo.insideScore);
-                        assert prob >= 0 && prob <= 1 + 1e-6 : nodeInfo + " "
-                                + edge + " has invalid posterior probability "
+                    for (int e = begin; e < end; e++) {
+                        double score = weights[e] + insideScores[dests1[e]]
+                                + insideScores[dests2[e]];
+                        double prob = Math.exp(outside + score - logZ);
+                        assert prob >= 0 && prob <= 1 + 1e-6 : nodeToString(i) + " "
+                                + edgeToString(e) + " has invalid posterior probability "
                                 + prob;
-                        // if(prob > 0.1) dbgs("setPosterior sum %s %s", edge,
-                        // Fmt.D(prob));
-                        edge.info.setPosterior(prob);
+                        if (timed && !(prob >= 0 && prob <= 1 + 1e-6))
+                            numBadPosteriors++;
+                        if (prob == 0) {
+                            numZeroEdges++;
+                            continue;
+                        }
+                        elogZ += prob * weights[e];
+                        entropy -= prob * (score - inside);
+                        if (prob > threshold) {
+                            if (gradient != null)
+                                addEdgeFeatures(edgeIds[e], gradient, scale * prob);
+                            else if (sink == null)
+                                infos[e].setPosterior(prob);
+                            else
+                                sink.setPosterior(edgeIds[e], prob);
+                        }
                     }
                     break;
                 case prod:
-                    for (Hyperedge edge : nodeInfo.edges) {
-                        double prob = Math.exp(nodeInfo.outsideScore
-                                + nodeInfo.insideScore - startNodeInfo.insideScore);
-                        assert prob >= 0 && prob <= 1 + 1e-6 : nodeInfo + " "
-                                + edge + " has invalid posterior probability "
-                                + prob;
-                        // if(prob > 0.1) dbgs("setPosterior prod %s %s", edge,
-                        // Fmt.D(prob));
-                        edge.info.setPosterior(prob);
+                    double prob = Math.exp(outside + inside - logZ);
+                    assert prob >= 0 && prob <= 1 + 1e-6 : nodeToString(i)
+                            + " has invalid posterior probability " + prob;
+                    if (timed && !(prob >= 0 && prob <= 1 + 1e-6))
+                        numBadPosteriors++;
+                    if (prob == 0) {
+                        numZeroEdges += end - begin;
+                        continue;
+                    }
+                    for (int e = begin; e < end; e++) {
+                        elogZ += prob * weights[e];
+                        if (prob > threshold) {
+                            if (gradient != null)
+                                addEdgeFeatures(edgeIds[e], gradient, scale * prob);
+                            else if (sink == null)
+                                infos[e].setPosterior(prob);
+                            else
+                                sink.setPosterior(edgeIds[e], prob);
+                        }
                     }
                     break;
             }
         }
+        this.elogZ = elogZ;
+        this.entropy = entropy;
+        hasSumELogZEntropy = true;
+        if (timed) {
+            HypergraphStats.global.addTime(HypergraphStats.Phase.posteriors, start);
+            HypergraphStats.global.addZeroPosteriorEdges(numZeroEdges);
+            HypergraphStats.global.addBadPosteriors(numBadPosteriors);
+        }
     }
 
     private void fetchPosteriorsMax() {
+        int[] best = computeBestEdges();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
         HyperpathChooser chooser = new HyperpathChooser();
         chooser.viterbi = true;
+        chooser.best = best;
         chooser.setPosterior = true;
-        chooser.recurse(startNodeInfo);
+        chooser.walk();
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.posteriors, start);
+    }
+
+    // Best edge of each sum node on the best hyperpath: from the last
+    // best-first search if there was one since the weights last changed,
+    // else from the max pass
+    private int[] computeBestEdges() {
+        compile();
+        if (bestFirstEdges != null)
+            return bestFirstEdges;
+        computeMaxScores();
+        return bestEdges;
     }
 
     // Return the best or a sampled solution
 
     public HyperpathResult<Widget> fetchBestHyperpath(Widget widget) {
-        computeInsideMaxScores(true);
+        int[] best = computeBestEdges();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
         HyperpathChooser chooser = new HyperpathChooser();
         chooser.viterbi = true;
+        chooser.best = best;
         chooser.widget = widget;
         chooser.choose = true;
-        chooser.recurse(startNodeInfo);
+        chooser.walk();
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.best, start);
         return new HyperpathResult(chooser.widget, chooser.logWeight);
     }
 
+    /**
+     * Same as computePosteriors(true), but with best-first search (Knuth's
+     * generalization of Dijkstra's algorithm, as in AgendaDecoder) instead of
+     * computing the max score of every node: nodes are finished bottom-up in
+     * order of decreasing score, and the search stops as soon as the start
+     * node is finished, so nodes scoring below the best hyperpath are never
+     * finished. Needs edge weights <= 0, e.g., log-probabilities (throws
+     * IllegalArgumentException if a relaxed edge has a larger weight; edges
+     * that are never relaxed aren't checked). Sets log Z and the best edges
+     * used by fetchBestHyperpath() and fetchPosteriors(true), but doesn't
+     * touch the max scores. Ties can be broken differently from
+     * computePosteriors(true).
+     */
+    public void computePosteriorsBestFirst() {
+        compile();
+        if (parentOffsets == null)
+            computeParents();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        int n = types.length;
+        double[] scores = new double[n];
+        Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+        int[] best = new int[n];
+        Arrays.fill(best, -1);
+        boolean[] finished = new boolean[n];
+        // Prod nodes: 1 + the number of their edges not relaxed yet (0 until
+        // the first one is); scores[i] sums up the relaxed ones
+        int[] numMissing = new int[n];
+        ScoreQueue queue = new ScoreQueue();
+
+        scores[endPos] = 0;
+        finished[endPos] = true;
+        for (int e : leafEdges)
+            relaxBestFirst(e, scores, best, finished, numMissing, queue);
+        for (int i : emptyProds) {
+            scores[i] = 0;
+            queue.add(i, 0);
+        }
+        while (!finished[startPos]) {
+            if (queue.isEmpty())
+                throw new IllegalStateException("Unable to reach: " + nodeToString(startPos));
+            double priority = queue.topPriority();
+            int j = queue.poll();
+            if (finished[j] || priority != scores[j])
+                continue; // Stale
+            finished[j] = true;
+            // Relax the edges whose other child is finished too
+            for (int p = parentOffsets[j]; p < parentOffsets[j + 1]; p++) {
+                int e = parentEdges[p];
+                int other = dests1[e] == j ? dests2[e] : dests1[e];
+                if (finished[other])
+                    relaxBestFirst(e, scores, best, finished, numMissing, queue);
+            }
+        }
+        bestFirstEdges = best;
+        this.logZ = scores[startPos];
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.max, start);
+        if (HypergraphStats.enabled)
+            HypergraphStats.global.addLogZ(logZ);
+    }
+
+    // All children of edge e are finished: try to improve its source
+    private void relaxBestFirst(int e, double[] scores, int[] best, boolean[] finished, int[] numMissing,
+                                ScoreQueue queue) {
+        int i = edgeSourcePositions[e];
+        if (finished[i])
+            return; // Can't improve (weights <= 0)
+        double weight = weights[e];
+        if (!(weight <= 0))
+            throw new IllegalArgumentException("Edge weight " + weight + " > 0 into " + nodeToString(i)
+                    + ": best-first search needs weights <= 0");
+        double score = weight + scores[dests1[e]] + scores[dests2[e]];
+        if (types[i] == NodeType.prod) {
+            if (numMissing[i] == 0) {
+                numMissing[i] = 1 + edgeOffsets[i + 1] - edgeOffsets[i];
+                scores[i] = 0;
+            }
+            scores[i] += score;
+            if (--numMissing[i] == 1 && scores[i] > Double.NEGATIVE_INFINITY)
+                queue.add(i, scores[i]);
+        } else if (score > scores[i]) {
+            scores[i] = score;
+            best[i] = e;
+            queue.add(i, score);
+        }
+    }
+
+    /**
+     * Same as fetchBestHyperpath(), but finds it with best-first search (see
+     * computePosteriorsBestFirst()).
+     */
+    public HyperpathResult<Widget> fetchBestHyperpathBestFirst(Widget widget) {
+        computePosteriorsBestFirst();
+        return fetchBestHyperpath(widget);
+    }
+
+    // Binary heap of nodes by score, largest first (first added among equal
+    // scores); a node can be in it several times
+    private static final class ScoreQueue {
+        private double[] priorities = new double[16];
+        private int[] nodes = new int[16];
+        private long[] orders = new long[16];
+        private int size = 0;
+        private long numAdded = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double topPriority() {
+            return priorities[0];
+        }
+
+        void add(int node, double priority) {
+            if (size == nodes.length) {
+                priorities = grow(priorities, 2 * size);
+                nodes = grow(nodes, 2 * size);
+                long[] newOrders = new long[2 * size];
+                System.arraycopy(orders, 0, newOrders, 0, size);
+                orders = newOrders;
+            }
+            long order = numAdded++;
+            int j = size++;
+            while (j > 0) {
+                int parent = (j - 1) / 2;
+                if (!before(priority, order, priorities[parent], orders[parent]))
+                    break;
+                set(j, priorities[parent], nodes[parent], orders[parent]);
+                j = parent;
+            }
+            set(j, priority, node, order);
+        }
+
+        int poll() {
+            int top = nodes[0];
+            int j = 0;
+            double priority = priorities[--size];
+            int node = nodes[size];
+            long order = orders[size];
+            while (true) {
+                int child = 2 * j + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && before(priorities[child + 1], orders[child + 1], priorities[child], orders[child]))
+                    child++;
+                if (!before(priorities[child], orders[child], priority, order))
+                    break;
+                set(j, priorities[child], nodes[child], orders[child]);
+                j = child;
+            }
+            set(j, priority, node, order);
+            return top;
+        }
+
+        private static boolean before(double priority1, long order1, double priority2, long order2) {
+            return priority1 > priority2 || (priority1 == priority2 && order1 < order2);
+        }
+
+        private void set(int j, double priority, int node, long order) {
+            priorities[j] = priority;
+            nodes[j] = node;
+            orders[j] = order;
+        }
+    }
+
     public HyperpathResult<Widget> fetchSampleHyperpath(Random random,
                                                         Widget widget) {
-        computeInsideMaxScores(false);
+        computeInsideScores();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        computeSamplingTables();
         HyperpathChooser chooser = new HyperpathChooser();
         chooser.viterbi = false;
         chooser.widget = widget;
         chooser.random = random;
         chooser.choose = true;
-        chooser.recurse(startNodeInfo);
+        chooser.walk();
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.sample, start);
         return new HyperpathResult(chooser.widget, chooser.logWeight);
     }
 
+    /**
+     * Draws n hyperpaths independently from the posterior, each built on a
+     * fresh widget from widgetFactory. The sampling tables are built once, so
+     * each choice at a sum node is a binary search.
+     */
+    public List<HyperpathResult<Widget>> fetchSampleHyperpaths(Random random,
+                                                               int n, WidgetFactory<Widget> widgetFactory) {
+        computeInsideScores();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        computeSamplingTables();
+        List<HyperpathResult<Widget>> results = new ArrayList<HyperpathResult<Widget>>(n);
+        HyperpathChooser chooser = new HyperpathChooser();
+        chooser.viterbi = false;
+        chooser.random = random;
+        chooser.choose = true;
+        for (int s = 0; s < n; s++) {
+            chooser.widget = widgetFactory.newWidget();
+            chooser.logWeight = 0;
+            chooser.walk();
+            results.add(new HyperpathResult<Widget>(chooser.widget, chooser.logWeight));
+        }
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.sample, start);
+        return results;
+    }
+
+    public interface HyperpathSampleSink {
+        // edges[0..numEdges) are the ids of the chosen edges, in the order
+        // choose would be called on them; the array is reused across samples
+        public void sample(int index, int[] edges, int numEdges, double logWeight);
+    }
+
+    /**
+     * Same as above, but streams the chosen edges of each sample to sink
+     * instead of calling choose, without allocating anything per sample.
+     */
+    public void fetchSampleHyperpaths(Random random, int n, HyperpathSampleSink sink) {
+        computeInsideScores();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        computeSamplingTables();
+        HyperpathChooser chooser = new HyperpathChooser();
+        chooser.viterbi = false;
+        chooser.random = random;
+        chooser.chosenEdges = new int[16];
+        for (int s = 0; s < n; s++) {
+            chooser.numChosenEdges = 0;
+            chooser.logWeight = 0;
+            chooser.walk();
+            sink.sample(s, chooser.chosenEdges, chooser.numChosenEdges, chooser.logWeight);
+        }
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.sample, start);
+    }
+
+    // For each sum node, normalize the posteriors of its edges given the node
+    // and store their running sums, so that sampling an edge is a binary
+    // search for a uniform draw
+    private void computeSamplingTables() {
+        computeInsideScores();
+        if (sampleCdfs != null)
+            return; // Already computed
+
+        double[] cdfs = new double[weights.length];
+        for (int i = 0; i < types.length; i++) {
+            if (i == endPos || types[i] != NodeType.sum)
+                continue;
+            int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+            if (begin == end)
+                continue;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int e = begin; e < end; e++) {
+                cdfs[e] = weights[e] + insideScores[dests1[e]] + insideScores[dests2[e]];
+                max = Math.max(max, cdfs[e]);
+            }
+            if (max == Double.NEGATIVE_INFINITY || Double.isNaN(max)) {
+                cdfs[begin] = Double.NaN; // Dead node: can't be chosen from
+                continue;
+            }
+            double sum = 0;
+            int last = begin;
+            for (int e = begin; e < end; e++) {
+                double p = Math.exp(cdfs[e] - max);
+                if (p > 0)
+                    last = e;
+                sum += p;
+                cdfs[e] = sum;
+            }
+            for (int e = begin; e < last; e++)
+                cdfs[e] /= sum;
+            // Guard against rounding: the last edge with non-zero probability
+            // (and any zero ones after it) get everything that is left
+            for (int e = last; e < end; e++)
+                cdfs[e] = 1;
+        }
+        sampleCdfs = cdfs;
+    }
+
     public static class HyperpathResult<Widget> {
         public HyperpathResult(Widget widget, double logWeight) {
             this.widget = widget;
@@ -593,8 +2379,248 @@ public class Hypergraph<Widget> {
         public final double logWeight;
     }
 
+    public interface WidgetFactory<Widget> {
+        public Widget newWidget();
+    }
+
+    /**
+     * Returns up to k best hyperpaths in order of decreasing weight, each
+     * built on a fresh widget from widgetFactory. Derivations are enumerated
+     * lazily on top of the max pass (Huang and Chiang, 2005, Algorithm 3), so
+     * only the nodes needed for the k-th best derivation are ever expanded.
+     * Hyperpaths with zero weight are not returned.
+     */
+    public List<HyperpathResult<Widget>> fetchKBestHyperpaths(int k,
+                                                             WidgetFactory<Widget> widgetFactory) {
+        computeMaxScores();
+        boolean timed = HypergraphStats.enabled;
+        long start = timed ? System.nanoTime() : 0;
+        KBestChooser chooser = new KBestChooser();
+        List<HyperpathResult<Widget>> results = new ArrayList<HyperpathResult<Widget>>();
+        for (int r = 0; r < k; r++) {
+            if (!chooser.ensure(startPos, r + 1))
+                break;
+            Derivation d = chooser.found[startPos].get(r);
+            Widget widget = chooser.choose(d, widgetFactory.newWidget());
+            results.add(new HyperpathResult<Widget>(widget, d.score));
+        }
+        if (timed)
+            HypergraphStats.global.addTime(HypergraphStats.Phase.best, start);
+        return results;
+    }
+
+    // A derivation of a node: its edge (sum nodes; -1 for prod nodes) and the
+    // rank of the derivation used for each tail node
+    private static class Derivation implements Comparable<Derivation> {
+        final int edge;
+        final int[] ranks;
+        final double score;
+
+        Derivation(int edge, int[] ranks, double score) {
+            this.edge = edge;
+            this.ranks = ranks;
+            this.score = score;
+        }
+
+        // Higher scores first; break ties deterministically
+        public int compareTo(Derivation that) {
+            if (score != that.score)
+                return score > that.score ? -1 : 1;
+            if (edge != that.edge)
+                return edge < that.edge ? -1 : 1;
+            for (int j = 0; j < ranks.length; j++)
+                if (ranks[j] != that.ranks[j])
+                    return ranks[j] < that.ranks[j] ? -1 : 1;
+            return 0;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Derivation))
+                return false;
+            Derivation that = (Derivation) o;
+            return edge == that.edge && Arrays.equals(ranks, that.ranks);
+        }
+
+        public int hashCode() {
+            return 31 * edge + Arrays.hashCode(ranks);
+        }
+    }
+
+    private class KBestChooser {
+        // Per node: derivations found so far (in order), candidates for the
+        // next one, and every derivation ever made a candidate
+        final ArrayList<Derivation>[] found = new ArrayList[types.length];
+        final PriorityQueue<Derivation>[] candidates = new PriorityQueue[types.length];
+        final HashSet<Derivation>[] seen = new HashSet[types.length];
+        // Whether the neighbors of the last found derivation are candidates
+        final boolean[] expandedLast = new boolean[types.length];
+        final boolean[] exhausted = new boolean[types.length];
+        // Pending (node, number of derivations needed) requests
+        int[] nodeStack = new int[16], countStack = new int[16];
+
+        int numTails(int i) {
+            if (i == endPos)
+                return 0;
+            if (types[i] == NodeType.sum)
+                return 2;
+            return 2 * (edgeOffsets[i + 1] - edgeOffsets[i]);
+        }
+
+        int tail(int i, Derivation d, int j) {
+            int e = types[i] == NodeType.sum ? d.edge : edgeOffsets[i] + j / 2;
+            return j % 2 == 0 ? dests1[e] : dests2[e];
+        }
+
+        // Score of a neighbor of d; tails must have enough derivations found
+        double score(int i, Derivation d, int[] ranks) {
+            double score;
+            if (types[i] == NodeType.sum)
+                score = weights[d.edge];
+            else {
+                score = 0;
+                for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++)
+                    score += weights[e];
+            }
+            for (int j = 0; j < ranks.length; j++)
+                score += found[tail(i, d, j)].get(ranks[j]).score;
+            return score;
+        }
+
+        void initCandidates(int i) {
+            found[i] = new ArrayList<Derivation>();
+            candidates[i] = new PriorityQueue<Derivation>();
+            seen[i] = new HashSet<Derivation>();
+            int numTails = numTails(i);
+            if (i == endPos || types[i] == NodeType.prod) {
+                addCandidate(i, new Derivation(-1, new int[numTails], maxScores[i]));
+                return;
+            }
+            // The best derivation through each edge
+            for (int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++)
+                addCandidate(i, new Derivation(e, new int[numTails], weights[e]
+                        + maxScores[dests1[e]] + maxScores[dests2[e]]));
+        }
+
+        void addCandidate(int i, Derivation d) {
+            if (seen[i].add(d) && d.score > Double.NEGATIVE_INFINITY)
+                candidates[i].add(d);
+        }
+
+        void request(int top, int i, int count) {
+            if (top == nodeStack.length) {
+                int[] newNodes = new int[2 * top], newCounts = new int[2 * top];
+                System.arraycopy(nodeStack, 0, newNodes, 0, top);
+                System.arraycopy(countStack, 0, newCounts, 0, top);
+                nodeStack = newNodes;
+                countStack = newCounts;
+            }
+            nodeStack[top] = i;
+            countStack[top] = count;
+        }
+
+        // Find (at least) count derivations of node i; return whether there
+        // are that many. Uses an explicit stack of requests rather than
+        // recursing on the tails.
+        boolean ensure(int i, int count) {
+            int top = 0;
+            request(top++, i, count);
+            while (top > 0) {
+                int u = nodeStack[top - 1], needed = countStack[top - 1];
+                if (found[u] == null)
+                    initCandidates(u);
+                if (found[u].size() >= needed || exhausted[u]) {
+                    top--;
+                    continue;
+                }
+
+                int size = found[u].size();
+                if (size > 0 && !expandedLast[u]) {
+                    // Neighbors of the last derivation: advance one tail's rank
+                    Derivation d = found[u].get(size - 1);
+                    boolean ready = true;
+                    for (int j = 0; j < d.ranks.length; j++) {
+                        int t = tail(u, d, j);
+                        if (found[t] == null || (found[t].size() < d.ranks[j] + 2 && !exhausted[t])) {
+                            request(top++, t, d.ranks[j] + 2);
+                            ready = false;
+                        }
+                    }
+                    if (!ready)
+                        continue;
+                    for (int j = 0; j < d.ranks.length; j++) {
+                        if (d.ranks[j] + 1 >= found[tail(u, d, j)].size())
+                            continue;
+                        int[] ranks = d.ranks.clone();
+                        ranks[j]++;
+                        addCandidate(u, new Derivation(d.edge, ranks, score(u, d, ranks)));
+                    }
+                    expandedLast[u] = true;
+                }
+
+                if (candidates[u].isEmpty()) {
+                    exhausted[u] = true;
+                    top--;
+                    continue;
+                }
+                found[u].add(candidates[u].poll());
+                expandedLast[u] = false;
+            }
+            return found[i].size() >= count;
+        }
+
+        // Call choose on each hyperedge of the derivation, in the same order
+        // as fetchBestHyperpath. The stack holds (rank, node) pairs with the
+        // node on top and chosen edges (encoded as -edge-1).
+        Widget choose(Derivation root, Widget widget) {
+            int top = 0;
+            push(found[startPos].indexOf(root), top++);
+            push(startPos, top++);
+            while (top > 0) {
+                int item = stack[--top];
+                if (item < 0) {
+                    widget = (Widget) infos[-item - 1].choose(widget);
+                    continue;
+                }
+                // Tails are only scored from the max pass until they are needed
+                int rank = stack[--top];
+                ensure(item, rank + 1);
+                Derivation d = found[item].get(rank);
+                if (item == endPos)
+                    continue;
+                // Push (tail2, tail1, edge) of each edge in reverse order
+                int begin, end;
+                if (types[item] == NodeType.sum) {
+                    begin = d.edge;
+                    end = d.edge + 1;
+                } else {
+                    begin = edgeOffsets[item];
+                    end = edgeOffsets[item + 1];
+                }
+                for (int e = end - 1, j = d.ranks.length - 1; e >= begin; e--, j -= 2) {
+                    push(d.ranks[j], top++);
+                    push(dests2[e], top++);
+                    push(d.ranks[j - 1], top++);
+                    push(dests1[e], top++);
+                    push(-e - 1, top++);
+                }
+            }
+            return widget;
+        }
+    }
+
+    private void push(int item, int top) {
+        if (top == stack.length) {
+            int[] newStack = new int[2 * top];
+            System.arraycopy(stack, 0, newStack, 0, top);
+            stack = newStack;
+        }
+        stack[top] = item;
+    }
+
     private class HyperpathChooser {
         boolean viterbi;
+        // With viterbi, the best edge of each sum node
+        int[] best = bestEdges;
         Widget widget;
         Random random;
         // Which function to call to return what was chosen
@@ -602,60 +2628,82 @@ public class Hypergraph<Widget> {
         boolean setPosterior;
         // Likelihood of the weight of the hyperpath chosen
         double logWeight;
-
-        private void recurse(NodeInfo nodeInfo) {
-            if (nodeInfo == endNodeInfo)
-                return;
-
-            switch (nodeInfo.nodeType) {
-                case sum:
-                    int n = nodeInfo.edges.size();
-                    // Compute scores
-                    double[] scores = new double[n];
-                    for (int i = 0; i < n; i++) {
-                        Hyperedge edge = nodeInfo.edges.get(i);
-                        if (viterbi)
-                            scores[i] = edge.weight + edge.dest1.maxScore
-                                    + edge.dest2.maxScore;
-                        else
-                            scores[i] = edge.weight + edge.dest1.insideScore
-                                    + edge.dest2.insideScore;
-                    }
-                    // Choose edge
-                    int chosenIndex;
-                    if (viterbi)
-                        chosenIndex = ListUtils.maxIndex(scores);
-                    else {
-                        NumUtils.expNormalize(scores);
-                        chosenIndex = SampleUtils.sampleMultinomial(random, scores);
-                    }
-                    if (chosenIndex == -1)
-                        throw new IllegalStateException("Unable to choose from: "
-                                + Arrays.toString(scores));
-                    Hyperedge chosenEdge = nodeInfo.edges.get(chosenIndex);
+        // If non-null, add the features of the chosen edges (times
+        // gradientScale)
+        double[] gradient;
+        double gradientScale;
+        // If non-null, record the ids of the chosen edges
+        int[] chosenEdges;
+        int numChosenEdges;
+
+        // Visits the chosen edges in the same (depth-first, left-to-right)
+        // order as a recursive walk. The stack holds node positions (>= 0)
+        // and chosen edges (encoded as -edge-1) that are still to be visited.
+        private void walk() {
+            int top = 0;
+            push(startPos, top++);
+            while (top > 0) {
+                int item = stack[--top];
+                if (item < 0) {
+                    int e = -item - 1;
                     if (choose)
-                        widget = (Widget) chosenEdge.info.choose(widget);
+                        widget = (Widget) infos[e].choose(widget);
                     // if(choose) dbg("Choose "+widget);
                     if (setPosterior)
-                        chosenEdge.info.setPosterior(1.0);
-                    logWeight += chosenEdge.weight;
-
-                    recurse(chosenEdge.dest1);
-                    recurse(chosenEdge.dest2);
-                    break;
-                case prod:
-                    // Recurse on each edge
-                    for (Hyperedge edge : nodeInfo.edges) {
-                        if (choose)
-                            widget = (Widget) edge.info.choose(widget);
-                        if (setPosterior)
-                            edge.info.setPosterior(1.0);
-                        logWeight += edge.weight;
-                        recurse(edge.dest1);
-                        recurse(edge.dest2);
+                        infos[e].setPosterior(1.0);
+                    if (gradient != null)
+                        addEdgeFeatures(edgeIds[e], gradient, gradientScale);
+                    logWeight += weights[e];
+                    if (chosenEdges != null) {
+                        if (numChosenEdges == chosenEdges.length)
+                            chosenEdges = grow(chosenEdges, 2 * numChosenEdges);
+                        chosenEdges[numChosenEdges++] = edgeIds[e];
                     }
-                    break;
+                    push(dests2[e], top++);
+                    push(dests1[e], top++);
+                    continue;
+                }
+                if (item == endPos)
+                    continue;
+
+                int begin = edgeOffsets[item], end = edgeOffsets[item + 1];
+                switch (types[item]) {
+                    case sum:
+                        push(-chooseEdge(item) - 1, top++);
+                        break;
+                    case prod:
+                        // Visit each edge
+                        for (int e = end - 1; e >= begin; e--)
+                            push(-e - 1, top++);
+                        break;
+                }
+            }
+        }
+
+        private int chooseEdge(int i) {
+            if (viterbi) {
+                if (best[i] == -1)
+                    throw new IllegalStateException("Unable to choose from: "
+                            + nodeToString(i));
+                return best[i];
+            }
+
+            int begin = edgeOffsets[i], end = edgeOffsets[i + 1];
+            double[] cdfs = sampleCdfs;
+            if (begin == end || Double.isNaN(cdfs[begin]))
+                throw new IllegalStateException("Unable to choose from: "
+                        + nodeToString(i));
+            // Choose the first edge whose running sum exceeds u
+            double u = random.nextDouble();
+            int lo = begin, hi = end - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (u < cdfs[mid])
+                    hi = mid;
+                else
+                    lo = mid + 1;
             }
+            return lo;
         }
     }
 }
@@ -0,0 +1,246 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+import java.util.*;
+
+/**
+ * Builds the part of a Hypergraph that is reachable from a root node and can
+ * be completed, by expanding nodes on demand instead of adding the whole
+ * search space up front.
+ *
+ * The Expander is called once per distinct node (memoized by key), from the
+ * root down, and adds that node's edges with addEdge(); children are given by
+ * key and expanded afterwards. A node is dead if it has no edges, is
+ * invalidNode, or its expander returned null; an edge is dead if one of its
+ * children is dead; a sum node is dead if all its edges are, and a prod node
+ * if any of its edges is. Once everything is expanded, only the live nodes
+ * that the root reaches through live edges are added (a live node whose
+ * parents all died is left out too), so the graph passes checkGraph() without
+ * allowEmptyNodes.
+ *
+ * Nodes are added to the graph in post-order (children before parents), so
+ * edge ids follow that order rather than the order of expansion. The root
+ * becomes the graph's start node. Expansion is iterative, so the graph can be
+ * arbitrarily deep.
+ *
+ * @author kedar
+ */
+public class HypergraphBuilder<Widget> {
+    public interface Expander<Widget> {
+        // Adds the edges of node with builder.addEdge() and returns its type
+        // (null if node turns out to be invalid)
+        public Hypergraph.NodeType expand(Object node, HypergraphBuilder<Widget> builder);
+    }
+
+    private static class PendingEdge {
+        final Object dest1, dest2;
+        final Hypergraph.AHyperedgeInfo info;
+
+        PendingEdge(Object dest1, Object dest2, Hypergraph.AHyperedgeInfo info) {
+            this.dest1 = dest1;
+            this.dest2 = dest2;
+            this.info = info;
+        }
+    }
+
+    // A node being expanded: its edges and the next child to visit
+    private static class Frame {
+        final Object node;
+        Hypergraph.NodeType type;
+        final List<PendingEdge> edges = new ArrayList<PendingEdge>();
+        int nextChild;
+        boolean reached; // from the root through live edges
+
+        Frame(Object node) {
+            this.node = node;
+        }
+    }
+
+    private static final byte EXPANDING = 0, ALIVE = 1, DEAD = 2;
+
+    private final Hypergraph<Widget> graph;
+    private final Expander<Widget> expander;
+    private final HashMap<Object, Byte> states = new HashMap<Object, Byte>();
+    // Live nodes in post-order, and by key
+    private final ArrayList<Frame> liveFrames = new ArrayList<Frame>();
+    private final HashMap<Object, Frame> liveFramesByNode = new HashMap<Object, Frame>();
+    private Frame current; // node whose expander is running
+    private Object root;
+    // Nodes and edges added to the graph, or left out of it
+    private int numAliveNodes, numDeadNodes, numDeadEdges;
+
+    public final Object endNode, invalidNode;
+
+    public HypergraphBuilder(Hypergraph<Widget> graph, Expander<Widget> expander) {
+        this.graph = graph;
+        this.expander = expander;
+        this.endNode = graph.endNode;
+        this.invalidNode = graph.invalidNode;
+    }
+
+    // Add edges of the node being expanded
+
+    public void addEdge(Hypergraph.AHyperedgeInfo<Widget> info) {
+        addEdge(endNode, endNode, info);
+    }
+
+    public void addEdge(Object dest1, Hypergraph.AHyperedgeInfo<Widget> info) {
+        addEdge(dest1, endNode, info);
+    }
+
+    public void addEdge(Object dest1, Object dest2, Hypergraph.AHyperedgeInfo<Widget> info) {
+        if (current == null)
+            throw new IllegalStateException("Edges can only be added while expanding a node");
+        current.edges.add(new PendingEdge(dest1, dest2, info));
+    }
+
+    /**
+     * Expands everything reachable from root and adds the nodes and edges
+     * that can be completed to the graph, with root as its start node.
+     * Returns false (and adds nothing) if root is dead.
+     */
+    public boolean build(Object root) {
+        if (this.root != null)
+            throw new IllegalStateException("Already built from: " + this.root);
+        this.root = root;
+        ArrayList<Frame> stack = new ArrayList<Frame>();
+        Frame frame = expand(root);
+        if (frame != null)
+            stack.add(frame);
+        while (!stack.isEmpty()) {
+            frame = stack.get(stack.size() - 1);
+            if (frame.nextChild < 2 * frame.edges.size()) {
+                PendingEdge edge = frame.edges.get(frame.nextChild / 2);
+                Object child = frame.nextChild % 2 == 0 ? edge.dest1 : edge.dest2;
+                frame.nextChild++;
+                if (child == endNode || child == invalidNode)
+                    continue;
+                Byte state = states.get(child);
+                if (state == null) {
+                    Frame childFrame = expand(child);
+                    if (childFrame != null)
+                        stack.add(childFrame);
+                } else if (state == EXPANDING)
+                    throw new IllegalStateException("Hypergraph has a cycle through node: " + child);
+                continue;
+            }
+            // All children are done
+            stack.remove(stack.size() - 1);
+            eliminateDeadEdges(frame);
+        }
+        if (!isAlive(root))
+            return false;
+        addReachableNodes();
+        return true;
+    }
+
+    // Calls the expander on node; null if it's already known to be dead
+    private Frame expand(Object node) {
+        Frame frame = new Frame(node);
+        states.put(node, EXPANDING);
+        current = frame;
+        try {
+            frame.type = expander.expand(node, this);
+        } finally {
+            current = null;
+        }
+        if (frame.type == null || frame.edges.isEmpty()) {
+            states.put(node, DEAD);
+            numDeadNodes++;
+            numDeadEdges += frame.edges.size();
+            return null;
+        }
+        return frame;
+    }
+
+    private boolean isAlive(Object node) {
+        if (node == endNode)
+            return true;
+        Byte state = states.get(node);
+        return state != null && state == ALIVE;
+    }
+
+    private boolean isAlive(PendingEdge edge) {
+        return isAlive(edge.dest1) && isAlive(edge.dest2);
+    }
+
+    // Decides whether the node is alive, once all its children are decided
+    private void eliminateDeadEdges(Frame frame) {
+        int numAliveEdges = 0;
+        for (PendingEdge edge : frame.edges)
+            if (isAlive(edge))
+                numAliveEdges++;
+        boolean alive = frame.type == Hypergraph.NodeType.sum ? numAliveEdges > 0
+                : numAliveEdges == frame.edges.size();
+        if (!alive) {
+            states.put(frame.node, DEAD);
+            numDeadNodes++;
+            numDeadEdges += frame.edges.size();
+            return;
+        }
+        states.put(frame.node, ALIVE);
+        liveFrames.add(frame);
+        liveFramesByNode.put(frame.node, frame);
+    }
+
+    // Marks the live nodes reached from the root through live edges (parents
+    // come before children in reverse post-order), then adds them to the
+    // graph with their live edges, children first
+    private void addReachableNodes() {
+        liveFramesByNode.get(root).reached = true;
+        for (int k = liveFrames.size() - 1; k >= 0; k--) {
+            Frame frame = liveFrames.get(k);
+            if (!frame.reached)
+                continue;
+            for (PendingEdge edge : frame.edges) {
+                if (!isAlive(edge))
+                    continue;
+                markReached(edge.dest1);
+                markReached(edge.dest2);
+            }
+        }
+        for (Frame frame : liveFrames) {
+            if (!frame.reached) {
+                numDeadNodes++;
+                numDeadEdges += frame.edges.size();
+                continue;
+            }
+            numAliveNodes++;
+            Object source = frame.node;
+            if (source == root)
+                source = frame.type == Hypergraph.NodeType.sum ? graph.sumStartNode() : graph.prodStartNode();
+            else if (frame.type == Hypergraph.NodeType.sum)
+                graph.addSumNode(source);
+            else
+                graph.addProdNode(source);
+            for (PendingEdge edge : frame.edges) {
+                if (!isAlive(edge)) {
+                    numDeadEdges++;
+                    continue;
+                }
+                if (edge.info == null)
+                    graph.addEdge(source, edge.dest1, edge.dest2);
+                else
+                    graph.addEdge(source, edge.dest1, edge.dest2, edge.info);
+            }
+        }
+        liveFrames.clear();
+        liveFramesByNode.clear();
+    }
+
+    private void markReached(Object node) {
+        if (node != endNode)
+            liveFramesByNode.get(node).reached = true;
+    }
+
+    public int numAliveNodes() {
+        return numAliveNodes;
+    }
+
+    public int numDeadNodes() {
+        return numDeadNodes;
+    }
+
+    public int numDeadEdges() {
+        return numDeadEdges;
+    }
+}
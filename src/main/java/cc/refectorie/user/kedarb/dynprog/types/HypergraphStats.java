@@ -0,0 +1,190 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+import org.apache.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and per-phase timers for all hypergraphs, off unless enabled is
+ * set. When off, each inference pass only reads the flag, so it can stay in
+ * place in production. Hypergraphs add to the global instance from any
+ * thread; per-iteration numbers are differences between snapshots (see
+ * minus()).
+ *
+ * Build time is the time from creating a hypergraph to compiling it, so it
+ * includes the caller's work (e.g., computing edge weights). Phases don't
+ * overlap: e.g., posteriors excludes the inside and outside passes it
+ * triggers. Bad posteriors are edge or node posteriors outside [0, 1]
+ * (the assertions only catch them with -ea); bad log Zs are NaN or
+ * infinite ones.
+ *
+ * @author kedar
+ */
+public class HypergraphStats implements HypergraphStatsMBean {
+    public enum Phase {
+        build, compile, inside, max, outside, posteriors, elogZEntropy, best, sample
+    }
+
+    private static final int NUM_PHASES = Phase.values().length;
+
+    public static volatile boolean enabled = false;
+    public static final HypergraphStats global = new HypergraphStats();
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(NUM_PHASES);
+    private final AtomicLongArray phaseCalls = new AtomicLongArray(NUM_PHASES);
+    private final AtomicLong numGraphs = new AtomicLong(), numNodes = new AtomicLong(),
+            numEdges = new AtomicLong(), numDeadNodes = new AtomicLong(),
+            numZeroPosteriorEdges = new AtomicLong(), numBadPosteriors = new AtomicLong(),
+            numBadLogZs = new AtomicLong();
+
+    // Updates (called by Hypergraph when enabled)
+
+    void addTime(Phase phase, long startNanos) {
+        phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - startNanos);
+        phaseCalls.incrementAndGet(phase.ordinal());
+    }
+
+    void addGraph(int numNodes, int numEdges) {
+        numGraphs.incrementAndGet();
+        this.numNodes.addAndGet(numNodes);
+        this.numEdges.addAndGet(numEdges);
+    }
+
+    void addDeadNodes(int n) {
+        if (n > 0) numDeadNodes.addAndGet(n);
+    }
+
+    void addZeroPosteriorEdges(int n) {
+        if (n > 0) numZeroPosteriorEdges.addAndGet(n);
+    }
+
+    void addBadPosteriors(int n) {
+        if (n > 0) numBadPosteriors.addAndGet(n);
+    }
+
+    void addLogZ(double logZ) {
+        if (Double.isNaN(logZ) || Double.isInfinite(logZ))
+            numBadLogZs.incrementAndGet();
+    }
+
+    // Reading
+
+    public long getNumGraphs() {
+        return numGraphs.get();
+    }
+
+    public long getNumNodes() {
+        return numNodes.get();
+    }
+
+    public long getNumEdges() {
+        return numEdges.get();
+    }
+
+    public long getNumDeadNodes() {
+        return numDeadNodes.get();
+    }
+
+    public long getNumZeroPosteriorEdges() {
+        return numZeroPosteriorEdges.get();
+    }
+
+    public long getNumBadPosteriors() {
+        return numBadPosteriors.get();
+    }
+
+    public long getNumBadLogZs() {
+        return numBadLogZs.get();
+    }
+
+    public String[] getPhaseNames() {
+        String[] names = new String[NUM_PHASES];
+        for (Phase phase : Phase.values())
+            names[phase.ordinal()] = phase.name();
+        return names;
+    }
+
+    public long[] getPhaseNanos() {
+        long[] nanos = new long[NUM_PHASES];
+        for (int i = 0; i < NUM_PHASES; i++)
+            nanos[i] = phaseNanos.get(i);
+        return nanos;
+    }
+
+    public long[] getPhaseCalls() {
+        long[] calls = new long[NUM_PHASES];
+        for (int i = 0; i < NUM_PHASES; i++)
+            calls[i] = phaseCalls.get(i);
+        return calls;
+    }
+
+    public String getSummary() {
+        return toString();
+    }
+
+    // Copy of the current values
+    public HypergraphStats snapshot() {
+        return minus(null);
+    }
+
+    // Values accumulated since earlier (a snapshot of this)
+    public HypergraphStats minus(HypergraphStats earlier) {
+        HypergraphStats diff = new HypergraphStats();
+        for (int i = 0; i < NUM_PHASES; i++) {
+            diff.phaseNanos.set(i, phaseNanos.get(i) - (earlier == null ? 0 : earlier.phaseNanos.get(i)));
+            diff.phaseCalls.set(i, phaseCalls.get(i) - (earlier == null ? 0 : earlier.phaseCalls.get(i)));
+        }
+        diff.numGraphs.set(numGraphs.get() - (earlier == null ? 0 : earlier.numGraphs.get()));
+        diff.numNodes.set(numNodes.get() - (earlier == null ? 0 : earlier.numNodes.get()));
+        diff.numEdges.set(numEdges.get() - (earlier == null ? 0 : earlier.numEdges.get()));
+        diff.numDeadNodes.set(numDeadNodes.get() - (earlier == null ? 0 : earlier.numDeadNodes.get()));
+        diff.numZeroPosteriorEdges.set(numZeroPosteriorEdges.get()
+                - (earlier == null ? 0 : earlier.numZeroPosteriorEdges.get()));
+        diff.numBadPosteriors.set(numBadPosteriors.get() - (earlier == null ? 0 : earlier.numBadPosteriors.get()));
+        diff.numBadLogZs.set(numBadLogZs.get() - (earlier == null ? 0 : earlier.numBadLogZs.get()));
+        return diff;
+    }
+
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append(String.format("%d graphs, %d nodes, %d edges, %d dead nodes, %d zero-posterior edges, "
+                + "%d bad posteriors, %d bad logZs;", getNumGraphs(), getNumNodes(), getNumEdges(),
+                getNumDeadNodes(), getNumZeroPosteriorEdges(), getNumBadPosteriors(), getNumBadLogZs()));
+        for (Phase phase : Phase.values())
+            buf.append(String.format(" %s=%.1fms/%d", phase, phaseNanos.get(phase.ordinal()) / 1e6,
+                    phaseCalls.get(phase.ordinal())));
+        return buf.toString();
+    }
+
+    /**
+     * Registers the global instance as an MBean (once) and, if periodMillis
+     * is positive, logs its totals every periodMillis on a daemon thread.
+     */
+    public static synchronized void enable(long periodMillis) {
+        enabled = true;
+        if (registered)
+            return;
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(global,
+                    new ObjectName("cc.refectorie.user.kedarb.dynprog:type=HypergraphStats"));
+        } catch (Exception e) {
+            logger.warn("Couldn't register HypergraphStats MBean: " + e);
+        }
+        if (periodMillis > 0) {
+            new Timer("HypergraphStats", true).schedule(new TimerTask() {
+                public void run() {
+                    logger.info(global);
+                }
+            }, periodMillis, periodMillis);
+        }
+    }
+
+    private static boolean registered = false;
+    private static final Logger logger = Logger.getLogger(HypergraphStats.class.getSimpleName());
+}
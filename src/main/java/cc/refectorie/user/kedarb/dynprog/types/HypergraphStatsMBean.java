@@ -0,0 +1,31 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+/**
+ * JMX view of HypergraphStats (totals since the start of the process).
+ *
+ * @author kedar
+ */
+public interface HypergraphStatsMBean {
+    public long getNumGraphs();
+
+    public long getNumNodes();
+
+    public long getNumEdges();
+
+    public long getNumDeadNodes();
+
+    public long getNumZeroPosteriorEdges();
+
+    public long getNumBadPosteriors();
+
+    public long getNumBadLogZs();
+
+    // Indexed by HypergraphStats.Phase
+    public String[] getPhaseNames();
+
+    public long[] getPhaseNanos();
+
+    public long[] getPhaseCalls();
+
+    public String getSummary();
+}
@@ -0,0 +1,119 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+import cc.refectorie.user.kedarb.tools.utils.NumUtils;
+
+/**
+ * Operations used to combine scores during an inside pass over a Hypergraph:
+ * plus at sum nodes, times along hyperedges and at prod nodes. Edge weights
+ * are log-weights and are mapped into the semiring by fromLogWeight().
+ *
+ * The semirings defined here have dedicated loops in Hypergraph; other
+ * semirings go through a generic one. The first-order expectation semiring (expected log
+ * weight and entropy) has pair-valued scores and is computed by
+ * Hypergraph.computeELogZEntropy().
+ *
+ * @author kedar
+ */
+public abstract class Semiring {
+    public abstract double zero();
+
+    public abstract double one();
+
+    public abstract double plus(double a, double b);
+
+    public abstract double times(double a, double b);
+
+    public abstract double fromLogWeight(double logWeight);
+
+    // Sum over hyperpaths in log-space: gives log Z
+    public static final Semiring LOG_SUM = new Semiring() {
+        public double zero() {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        public double one() {
+            return 0;
+        }
+
+        public double plus(double a, double b) {
+            return NumUtils.logAdd(a, b);
+        }
+
+        public double times(double a, double b) {
+            return a + b;
+        }
+
+        public double fromLogWeight(double logWeight) {
+            return logWeight;
+        }
+    };
+
+    // Best hyperpath in log-space: gives the viterbi score
+    public static final Semiring MAX_TIMES = new Semiring() {
+        public double zero() {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        public double one() {
+            return 0;
+        }
+
+        public double plus(double a, double b) {
+            return Math.max(a, b);
+        }
+
+        public double times(double a, double b) {
+            return a + b;
+        }
+
+        public double fromLogWeight(double logWeight) {
+            return logWeight;
+        }
+    };
+
+    // Log of the number of hyperpaths with non-zero weight
+    public static final Semiring COUNTING = new Semiring() {
+        public double zero() {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        public double one() {
+            return 0;
+        }
+
+        public double plus(double a, double b) {
+            return NumUtils.logAdd(a, b);
+        }
+
+        public double times(double a, double b) {
+            return a + b;
+        }
+
+        public double fromLogWeight(double logWeight) {
+            return logWeight == Double.NEGATIVE_INFINITY ? Double.NEGATIVE_INFINITY : 0;
+        }
+    };
+
+    // 1 if some hyperpath has non-zero weight, 0 otherwise
+    public static final Semiring BOOLEAN = new Semiring() {
+        public double zero() {
+            return 0;
+        }
+
+        public double one() {
+            return 1;
+        }
+
+        public double plus(double a, double b) {
+            return (a != 0 || b != 0) ? 1 : 0;
+        }
+
+        public double times(double a, double b) {
+            return (a != 0 && b != 0) ? 1 : 0;
+        }
+
+        public double fromLogWeight(double logWeight) {
+            return logWeight == Double.NEGATIVE_INFINITY ? 0 : 1;
+        }
+    };
+}
@@ -123,16 +123,30 @@ trait AHypergraphInferState[Widget, Example <: AExample[Widget], Params <: APara
   type Info = Hypergraph.HyperedgeInfo[Widget]
 
   // Soft inference
-  val hypergraph = new Hypergraph[Widget]
+  val hypergraph = newHypergraph
+  if (hypergraphExecutor != null) hypergraph.setExecutor(hypergraphExecutor, hypergraphNumThreads)
   // 1) create hypergraph
   createHypergraph(hypergraph)
-  // 2) update posteriors
-  hypergraph.computePosteriors(hardInfer)
-  // 3) (optionally) compute eLogZ and entropy
-  if (computeELogZEntropy) hypergraph.computeELogZEntropy(hardInfer)
+  // drop hyperpaths far below the best one (doesn't change the best one)
+  if (!hardInfer && !hypergraphPruneThreshold.isInfinite) {
+    val pruneStats = hypergraph.prune(hypergraphPruneThreshold, hypergraphPruneLogZLoss)
+    hypergraphPruneStats.synchronized { hypergraphPruneStats.add(pruneStats) }
+  }
+  // 2) update posteriors; for hard inference, best-first search finds the best hyperpath (used
+  // by bestWidget and updateCounts) without the max scores of all nodes
+  if (hardInfer && hypergraphBestFirst) hypergraph.computePosteriorsBestFirst
+  else hypergraph.computePosteriors(hardInfer)
   val logZ = hypergraph.getLogZ
-  val elogZ = hypergraph.getELogZ * temperature
-  val entropy = hypergraph.getEntropy
+  // 3) (optionally) compute eLogZ and entropy: lazily, since updateCounts gets them for free
+  // from the same sweep as the posteriors
+  lazy val elogZ = {
+    if (computeELogZEntropy) hypergraph.computeELogZEntropy(hardInfer)
+    hypergraph.getELogZ * temperature
+  }
+  lazy val entropy = {
+    if (computeELogZEntropy) hypergraph.computeELogZEntropy(hardInfer)
+    hypergraph.getEntropy
+  }
 
   // infer widget
   val (bestWidget, logVZ) = {
@@ -148,7 +162,8 @@ trait AHypergraphInferState[Widget, Example <: AExample[Widget], Params <: APara
   }
 
   def updateCounts {
-    counts.synchronized{
+    if (counts.lockFree) hypergraph.fetchPosteriors(hardInfer)
+    else counts.synchronized{
       hypergraph.fetchPosteriors(hardInfer)
     }
   }
@@ -156,6 +171,9 @@ trait AHypergraphInferState[Widget, Example <: AExample[Widget], Params <: APara
   // Main functions to override: specifies the entire model
   def createHypergraph(H: Hypergraph[Widget]): Unit
 
+  // Override to reuse the structure of hypergraphs (see Hypergraph.TemplateCache)
+  def newHypergraph: Hypergraph[Widget] = new Hypergraph[Widget]
+
   def newWidget: Widget
 
   def complexity = hypergraph.numNodes
@@ -3,12 +3,13 @@ package cc.refectorie.user.kedarb.dynprog
 import org.apache.log4j.Logger
 import utils.Utils._
 import collection.mutable.ArrayBuffer
-import la.ArrayFromVectors
+import la.{DenseVector, ArrayFromVectors}
 import optimization.gradientBasedMethods._
 import optimization.linesearch._
 import optimization.gradientBasedMethods.stats._
 import optimization.stopCriteria._
 import java.io.{FileOutputStream, PrintStream, File}
+import types.{WeightVec, ParamVec, HypergraphStats, Hypergraph}
 
 /**
  * @author kedarb
@@ -98,7 +99,38 @@ Model <: AModel[Widget, Example, Params, InferState]] {
     InferStateOutput(bestInferState.stats, bestInferState.bestWidget)
   }
 
+  // whether hypergraph edge weights are log-probabilities (<= 0), as best-first search needs
+  def supportsBestFirstDecoding = false
+
+  def initHypergraphs: Unit = {
+    if (lopts.parallelHypergraph && lopts.numThreads > 1 && hypergraphExecutor == null) {
+      hypergraphExecutor = Hypergraph.newExecutor(lopts.numThreads)
+      hypergraphNumThreads = lopts.numThreads
+    }
+    hypergraphPruneThreshold = lopts.pruneThreshold
+    hypergraphPruneLogZLoss = lopts.pruneLogZLoss
+    hypergraphPruneStats = new Hypergraph.PruneStats
+    if (lopts.bestFirstDecoding && !supportsBestFirstDecoding)
+      throw fail("bestFirstDecoding needs edge weights <= 0 (log-probabilities): only for generative models")
+    hypergraphBestFirst = lopts.bestFirstDecoding
+    if (lopts.hypergraphStats) HypergraphStats.enable(lopts.hypergraphStatsLogSeconds * 1000L)
+    lastHypergraphStats = HypergraphStats.global.snapshot
+  }
+
+  private var lastHypergraphStats: HypergraphStats = null
+
+  def logHypergraphStats: Unit = {
+    if (!lopts.pruneThreshold.isInfinite) info("Hypergraph pruning: " + hypergraphPruneStats)
+    hypergraphPruneStats = new Hypergraph.PruneStats
+    if (lopts.hypergraphStats) {
+      val stats = HypergraphStats.global.snapshot
+      info("Hypergraph stats: " + stats.minus(lastHypergraphStats))
+      lastHypergraphStats = stats
+    }
+  }
+
   def learn(name: String): Unit = {
+    initHypergraphs
     iteration = 0
     info("")
     info("Training %s (online=%s), #iterations=%s", name, fmt(lopts.online), fmt(lopts.numIters))
@@ -115,6 +147,7 @@ Model <: AModel[Widget, Example, Params, InferState]] {
       // run a single iteration of learning
       learnIteration
       info("After iteration %s, objective=%s", fmt(iteration + 1), fmt(objectives.last))
+      logHypergraphStats
 
       // run evaluators
       iteration += 1
@@ -235,6 +268,73 @@ Model <: AModel[Widget, Example, Params, InferState]] {
     outputPredictions("output.test.guess." + iteration, getTestExampleIterator, false)
   }
 
+  // Parallel E-step: splits the examples into numShards contiguous shards, each with its own
+  // counts and stats (so threads never share counts), runs the shards on numThreads threads and
+  // sums them up pairwise in a fixed tree order. With a fixed numShards, the result doesn't depend
+  // on numThreads; by default there is one shard per thread, so a single thread needs no copies.
+  def processExamplesSharded(examples: IndexedSeq[Example],
+                             process: (Int, Example, Params) => ProbStats): InferStatesOutput = {
+    val numShards = numShardsFor(examples.size)
+    val outputs = new ArrayBuffer[InferStatesOutput]
+    forIndex(numShards, {_: Int => outputs += InferStatesOutput(new ProbStats, model.newParams)})
+    foreachShard(Array.range(0, numShards), {
+      s: Int =>
+        val output = outputs(s)
+        forIndex(shardBegin(s, numShards, examples.size), shardBegin(s + 1, numShards, examples.size), {
+          i: Int => output.stats += process(i, examples(i), output.counts)
+        })
+    })
+    reduceShards(numShards, {
+      (s: Int, t: Int) =>
+        outputs(s).counts.add_!(outputs(t).counts, 1)
+        outputs(s).stats += outputs(t).stats
+    })
+    outputs(0)
+  }
+
+  def numShardsFor(numExamples: Int) = {
+    require(lopts.numShards >= 0, "numShards must not be negative")
+    val numShards = if (lopts.numShards == 0) lopts.numThreads else lopts.numShards
+    math.max(1, math.min(numShards, numExamples))
+  }
+
+  // First example of shard s (s = numShards: past the last example)
+  def shardBegin(s: Int, numShards: Int, numExamples: Int) = (numExamples.toLong * s / numShards).toInt
+
+  def foreachShard(shards: Array[Int], f: Int => Any) = {
+    if (lopts.numThreads > 1) parallel_foreach(lopts.numThreads, shards, {(i: Int, s: Int, log: Boolean) => f(s)})
+    else shards.foreach(f(_))
+  }
+
+  // Tree reduction: absorb(s, t) adds shard t to shard s, ending up with the total in shard 0
+  def reduceShards(numShards: Int, absorb: (Int, Int) => Any) = {
+    var stride = 1
+    while (stride < numShards) {
+      val step = stride
+      foreachShard(Array.range(0, numShards - step, 2 * step), {s: Int => absorb(s, s + step)})
+      stride *= 2
+    }
+  }
+
+  def collectExamples(exIter: Iterator[Example]): ArrayBuffer[Example] = {
+    val examples = new ArrayBuffer[Example]
+    examples ++= exIter
+    examples
+  }
+
+  // Examples for the sharded passes, in the order of their iterators. Learners that already hold
+  // their examples in arrays should return those, so that they aren't copied on every pass.
+  def getLabeledExamples: IndexedSeq[Example] = collectExamples(getLabeledExampleIterator)
+
+  def getUnlabeledExamples: IndexedSeq[Example] = collectExamples(getUnlabeledExampleIterator)
+
+  // a followed by b, without copying either
+  def concatExamples(a: IndexedSeq[Example], b: IndexedSeq[Example]): IndexedSeq[Example] = new IndexedSeq[Example] {
+    def length = a.length + b.length
+
+    def apply(i: Int) = if (i < a.length) a(i) else b(i - a.length)
+  }
+
   // method to implement
   def processLabeledExample(ex: Example, stepSize: Double, counts: Params): InferStateOutput
 
@@ -257,6 +357,8 @@ trait AGenerativeModelLearner[Widget, Example <: AExample[Widget], Params <: APa
 InferState <: AInferState[Widget, Example, Params],
 Model <: AModel[Widget, Example, Params, InferState]]
   extends AModelLearner[Widget, Example, Params, InferState, Model] {
+  override def supportsBestFirstDecoding = true
+
   def processLabeledExample(ex: Example, stepSize: Double, counts: Params) = {
     processExampleConstraints(ex, stepSize, counts, lopts.labeledWeight, true, false)
   }
@@ -270,26 +372,14 @@ Model <: AModel[Widget, Example, Params, InferState]]
   def processExamplesConstraints: InferStatesOutput = throw fail("Constraints not implemented for generative models!")
 
   def processExamplesExpectations = {
-    val counts = model.newParams
-    val stats = new ProbStats
-
     // E-step: gather expectations
-    if (lopts.numThreads > 1) {
-      parallel_iter_foreach(lopts.numThreads, getLabeledExampleIterator, {
-        (i: Int, ex: Example, log: Boolean) =>
-          val inferOutput = processLabeledExample(ex, 1, counts)
-          stats.synchronized(stats += inferOutput.stats)
-      })
-      parallel_iter_foreach(lopts.numThreads, getUnlabeledExampleIterator, {
-        (i: Int, ex: Example, log: Boolean) =>
-          val inferOutput = processUnlabeledExample(ex, 1, counts)
-          stats.synchronized(stats += inferOutput.stats)
-      })
-    } else {
-      getLabeledExampleIterator.foreach(ex => stats += processLabeledExample(ex, 1, counts).stats)
-      getUnlabeledExampleIterator.foreach(ex => stats += processUnlabeledExample(ex, 1, counts).stats)
-    }
-    InferStatesOutput(stats, counts)
+    val labeled = getLabeledExamples
+    val numLabeled = labeled.size
+    processExamplesSharded(concatExamples(labeled, getUnlabeledExamples), {
+      (i: Int, ex: Example, counts: Params) =>
+        if (i < numLabeled) processLabeledExample(ex, 1, counts).stats
+        else processUnlabeledExample(ex, 1, counts).stats
+    })
   }
 }
 
@@ -311,46 +401,23 @@ Model <: AModel[Widget, Example, Params, InferState]]
   }
 
   def processExamplesConstraints = {
-    val counts = model.newParams
-
     // C-step: gather constraint counts for labeled examples only
-    if (lopts.numThreads > 1) {
-      parallel_iter_foreach(lopts.numThreads, getLabeledExampleIterator, {
-        (i: Int, ex: Example, log: Boolean) =>
-          processExampleConstraints(ex, 1, counts, lopts.labeledWeight, false, true)
-      })
-    } else {
-      getLabeledExampleIterator.foreach {
-        ex => processExampleConstraints(ex, 1, counts, lopts.labeledWeight, false, true)
-      }
-    }
-
-    InferStatesOutput(new ProbStats, counts)
+    val output = processExamplesSharded(getLabeledExamples, {
+      (i: Int, ex: Example, counts: Params) =>
+        processExampleConstraints(ex, 1, counts, lopts.labeledWeight, false, true)
+        new ProbStats
+    })
+    InferStatesOutput(new ProbStats, output.counts)
   }
 
   def processExamplesExpectations = {
-    val counts = model.newParams
-    val stats = new ProbStats
-
-    if (lopts.numThreads > 1) {
-      parallel_iter_foreach(lopts.numThreads, getLabeledExampleIterator, {
-        (i: Int, ex: Example, log: Boolean) =>
-          val constraintStats = processExampleConstraints(ex, 0, counts, -lopts.labeledWeight, false, true, false)
-          val expectedStats = processExampleExpectations(ex, 1, counts, lopts.labeledWeight, false, true)
-          stats.synchronized {
-            stats += constraintStats.stats
-            stats += expectedStats.stats
-          }
-      })
-    } else {
-      getLabeledExampleIterator.foreach {
-        ex =>
-          stats += processExampleConstraints(ex, 0, counts, -lopts.labeledWeight, false, true, false).stats
-          stats += processExampleExpectations(ex, 1, counts, lopts.labeledWeight, false, true).stats
-      }
-    }
-
-    InferStatesOutput(stats, counts)
+    processExamplesSharded(getLabeledExamples, {
+      (i: Int, ex: Example, counts: Params) =>
+        val stats = new ProbStats
+        stats += processExampleConstraints(ex, 0, counts, -lopts.labeledWeight, false, true, false).stats
+        stats += processExampleExpectations(ex, 1, counts, lopts.labeledWeight, false, true).stats
+        stats
+    })
   }
 }
 
@@ -362,22 +429,46 @@ InferState <: AInferState[Widget, Example, Params],
 Model <: AModel[Widget, Example, Params, InferState]]
   extends AModelLearner[Widget, Example, Params, InferState, Model] {
   var numUpdates = 0
-
-  def learnIteration: Unit = {
-    def scaleParamsIfTooBig: Unit = {
-      if (suffStatsScale > 1e100) {
-        params.div_!(suffStatsScale)
-        suffStatsScale = 1
+  // Worker threads for mini-batches: created when first needed and kept until the end of learn()
+  private var miniBatchExecutor: java.util.concurrent.ExecutorService = null
+  // Whether mini-batch workers update params directly (hogwild and all weight vectors dense)
+  private var lockFreeUpdates = false
+  // Counts of each mini-batch worker, kept across mini-batches: sparse, so that adding them to
+  // params and clearing them only visits the entries the worker touched
+  private var workerCounts: ArrayBuffer[Params] = null
+
+  override def learn(name: String): Unit = {
+    try {
+      super.learn(name)
+    } finally {
+      if (miniBatchExecutor != null) {
+        miniBatchExecutor.shutdown
+        miniBatchExecutor = null
       }
+      workerCounts = null
     }
+  }
 
-    def stepSize = {
-      val alpha = 1.0 / math.pow(numUpdates + lopts.stepSizeOffset, lopts.stepSizeReductionPower)
-      if (lopts.convexCombUpdate) {
-        require(alpha < 1)
-        suffStatsScale /= (1 - alpha)
-      }
-      alpha * suffStatsScale
+  def scaleParamsIfTooBig: Unit = {
+    if (suffStatsScale > 1e100) {
+      params.div_!(suffStatsScale)
+      suffStatsScale = 1
+    }
+  }
+
+  def stepSize = {
+    val alpha = 1.0 / math.pow(numUpdates + lopts.stepSizeOffset, lopts.stepSizeReductionPower)
+    if (lopts.convexCombUpdate) {
+      require(alpha < 1)
+      suffStatsScale /= (1 - alpha)
+    }
+    alpha * suffStatsScale
+  }
+
+  def learnIteration: Unit = {
+    if (lopts.miniBatchSize > 1) {
+      learnIterationMiniBatches
+      return
     }
 
     val stats = new ProbStats
@@ -398,6 +489,99 @@ Model <: AModel[Widget, Example, Params, InferState]]
     objectives.append(stats.logZ)
     info("Objective = " + stats.logZ + " (iteration " + iteration + ")")
   }
+
+  // Mini-batches: the examples of a mini-batch are split into contiguous parts, one per worker
+  // thread, and all of them are scored with the params as of the start of the mini-batch. Each
+  // worker adds its updates to its own counts, which are added to params in a fixed order after the
+  // mini-batch, unless hogwild is set: then workers update params directly, without locks (see
+  // AParams.lockFree).
+  def learnIterationMiniBatches: Unit = {
+    lockFreeUpdates = lopts.hogwild && checkHogwild
+    val numWorkers = math.max(1, lopts.numThreads)
+    if (numWorkers > 1 && miniBatchExecutor == null)
+      miniBatchExecutor = java.util.concurrent.Executors.newFixedThreadPool(numWorkers)
+    val executor = miniBatchExecutor
+    val stats = new ProbStats
+    def processMiniBatches(exIter: Iterator[Example], process: (Example, Double, Params) => InferStateOutput) = {
+      val batch = new ArrayBuffer[Example]
+      while (exIter.hasNext) {
+        batch.clear
+        while (exIter.hasNext && batch.size < lopts.miniBatchSize) batch += exIter.next
+        stats += processMiniBatch(executor, numWorkers, batch, process)
+      }
+    }
+    // process labeled examples first, then unlabeled examples
+    processMiniBatches(getLabeledExampleIterator, processLabeledExample(_, _, _))
+    processMiniBatches(getUnlabeledExampleIterator, processUnlabeledExample(_, _, _))
+
+    objectives.append(stats.logZ)
+    info("Objective = " + stats.logZ + " (iteration " + iteration + ")")
+  }
+
+  def processMiniBatch(executor: java.util.concurrent.ExecutorService, numWorkers: Int, batch: IndexedSeq[Example],
+                       process: (Example, Double, Params) => InferStateOutput): ProbStats = {
+    scaleParamsIfTooBig
+    // same step sizes as one example at a time; until the updates are added, params are still at
+    // the scale of the start of the mini-batch
+    val startScale = suffStatsScale
+    val stepSizes = mapIndex(batch.size, {_: Int => val alpha = stepSize; numUpdates += 1; alpha})
+    val endScale = suffStatsScale
+    suffStatsScale = startScale
+
+    val n = math.min(numWorkers, batch.size)
+    val workerStats = mapIndex(n, {_: Int => new ProbStats})
+    if (!lockFreeUpdates && workerCounts == null) {
+      workerCounts = new ArrayBuffer[Params]
+      forIndex(numWorkers, {_: Int => workerCounts += model.newParams(false)})
+    }
+    def countsOf(w: Int) = if (lockFreeUpdates) params else workerCounts(w)
+    def runWorker(w: Int) = {
+      forIndex(batch.size * w / n, batch.size * (w + 1) / n, {
+        k: Int => workerStats(w) += process(batch(k), stepSizes(k), countsOf(w)).stats
+      })
+    }
+    params.lockFree = lockFreeUpdates
+    try {
+      if (executor == null || n == 1) forIndex(n, runWorker(_))
+      else {
+        val futures = new ArrayBuffer[java.util.concurrent.Future[_]]
+        forIndex(n, {w: Int => futures += executor.submit(new Runnable {def run = runWorker(w)})})
+        futures.foreach {
+          future => try {future.get} catch {case e: java.util.concurrent.ExecutionException => throw e.getCause}
+        }
+      }
+    } finally {
+      params.lockFree = false
+    }
+    suffStatsScale = endScale
+
+    val stats = new ProbStats
+    forIndex(n, {
+      w: Int =>
+        if (!lockFreeUpdates) {
+          params.add_!(workerCounts(w), 1)
+          workerCounts(w).clear_!
+        }
+        stats += workerStats(w)
+    })
+    stats
+  }
+
+  // Lock-free updates lose an increment now and then, which is fine for dense weights; but
+  // probability vectors also keep their sum, and sparse vectors are hash maps. Returns whether all
+  // vectors are dense weight vectors; if not, workers sum up their own counts as without hogwild.
+  def checkHogwild: Boolean = {
+    var allDense = true
+    params.foreachVec {
+      v: ParamVec => v match {
+        case WeightVec(_: DenseVector) =>
+        case _ => allDense = false
+      }
+    }
+    if (!allDense && numUpdates == 0)
+      info("hogwild needs dense weight vectors; merging the updates of each mini-batch instead")
+    allDense
+  }
 }
 
 trait ABatchGenLearner[Widget, Example <: AExample[Widget], Params <: AParams,
@@ -459,7 +643,65 @@ Model <: AModel[Widget, Example, Params, InferState]]
     constraintsOpt = Some(processExamplesConstraints.counts)
   }
 
-  def updateValueAndGradient: Unit = {
+  // Override flatGradient (with a val, fixed when the learner is created) and addExampleGradient to
+  // compute the labeled examples' terms straight from the flat parameters, e.g., with feature
+  // hyperedges, instead of going through Params counts
+  val flatGradient = false
+
+  // The flat gradient has no temperature (all scores at temperature 1) and only sees the labeled
+  // examples: call from the constructor of learners that set flatGradient
+  def checkFlatGradient: Unit = {
+    if (lopts.initTemperature != 1 || lopts.finalTemperature != 1)
+      throw fail("Flat gradients need initTemperature = finalTemperature = 1")
+    if (!getUnlabeledExamples.isEmpty)
+      throw fail("Flat gradients don't support unlabeled examples")
+  }
+
+  // Adds exWt * (expected - true features) of ex to gradient; returns exWt * (logZ - true logZ)
+  def addExampleGradient(ex: Example, parameters: Array[Double], gradient: Array[Double], exWt: Double): Double =
+    throw fail("Not implemented")
+
+  // Gradients of the shards of the labeled examples, kept across evaluations
+  private var shardGradients: Array[Array[Double]] = null
+
+  // Same sharding as processExamplesSharded: each shard sums its examples' terms into its own
+  // gradient, then the shards are summed up in a fixed tree order
+  def updateValueAndGradientFlat: Unit = {
+    val examples = getLabeledExamples
+    val numShards = numShardsFor(examples.size)
+    if (shardGradients == null || shardGradients.length != numShards)
+      shardGradients = Array.fill(numShards)(new Array[Double](gradient.length))
+    val values = new Array[Double](numShards)
+    foreachShard(Array.range(0, numShards), {
+      s: Int =>
+        val shardGradient = shardGradients(s)
+        java.util.Arrays.fill(shardGradient, 0.0)
+        forIndex(shardBegin(s, numShards, examples.size), shardBegin(s + 1, numShards, examples.size), {
+          i: Int => values(s) += addExampleGradient(examples(i), parameters, shardGradient, lopts.labeledWeight)
+        })
+    })
+    reduceShards(numShards, {
+      (s: Int, t: Int) =>
+        values(s) += values(t)
+        val sg = shardGradients(s)
+        val tg = shardGradients(t)
+        forIndex(sg.length, {j: Int => sg(j) += tg(j)})
+    })
+    objectiveValue = values(0)
+    Array.copy(shardGradients(0), 0, gradient, 0, gradient.length)
+    // add weights to objective and gradient
+    var normsq = 0.0
+    forIndex(parameters.length, {
+      j: Int =>
+        normsq += parameters(j) * parameters(j)
+        gradient(j) += parameters(j) * invVariance
+    })
+    objectiveValue += 0.5 * normsq * invVariance
+    // keep params in sync for evaluation and output
+    paramsArrayFromVectors.setVectorsFromArray(parameters)
+  }
+
+  def updateValueAndGradientCounts: Unit = {
     if (constraintsOpt == None) resetConstraints
     // set parameters as they may have changed
     paramsArrayFromVectors.setVectorsFromArray(parameters)
@@ -477,6 +719,34 @@ Model <: AModel[Widget, Example, Params, InferState]]
     new ArrayFromVectors(expectations.getWtVecs).getVectorsInArray(gradient)
   }
 
+  // Last point evaluated (and the temperature then), with its value and gradient: line searches
+  // often set the parameters back to a point they have already evaluated
+  private var lastParameters: Array[Double] = null
+  private var lastTemperature = Double.NaN
+  private var lastValue = Double.NaN
+  private var lastGradient: Array[Double] = null
+  var numReusedEvaluations = 0
+
+  def updateValueAndGradient: Unit = {
+    if (lastParameters != null && temperature == lastTemperature &&
+            java.util.Arrays.equals(parameters, lastParameters)) {
+      paramsArrayFromVectors.setVectorsFromArray(parameters)
+      objectiveValue = lastValue
+      Array.copy(lastGradient, 0, gradient, 0, gradient.length)
+      numReusedEvaluations += 1
+      return
+    }
+    if (flatGradient) updateValueAndGradientFlat
+    else updateValueAndGradientCounts
+    if (lastParameters == null) {
+      lastParameters = new Array[Double](parameters.length)
+      lastGradient = new Array[Double](gradient.length)
+    }
+    Array.copy(parameters, 0, lastParameters, 0, parameters.length)
+    Array.copy(gradient, 0, lastGradient, 0, gradient.length)
+    lastTemperature = temperature
+    lastValue = objectiveValue
+  }
 
   def getValue = {
     if (objectiveValue.isNaN) {
@@ -531,12 +801,15 @@ Model <: AModel[Widget, Example, Params, InferState]]
   def learnIteration = throw fail("Not implemented for direct optimization!")
 
   override def learn(name: String) = {
+    initHypergraphs
     info("")
     info("Training %s (online=%s), #iterations=%s", name, fmt(lopts.online), fmt(lopts.numIters))
     stats.reset
     optimizer.setMaxIterations(lopts.numIters)
     converged = optimizer.optimize(this, stats, stop)
     info("Ended optimization\n" + stats.prettyPrint(1))
+    if (numReusedEvaluations > 0) info("Reused the objective at a revisited point " + numReusedEvaluations + " times")
+    logHypergraphStats
     info("Solution: " + this.toString)
     iteration = optimizer.getCurrentIteration
 
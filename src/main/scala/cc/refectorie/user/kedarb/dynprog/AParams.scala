@@ -14,6 +14,10 @@ import ParamUtils._
  */
 
 trait AParams {
+  // Set while hogwild workers update these params directly: they skip the lock around updates
+  // (see AOnlineLearner)
+  var lockFree = false
+
   // *** METHODS TO BE IMPLEMENTED IN SUB-CLASSES ***
   def foreachVec(f: ParamVec => Any): Unit
 
@@ -34,6 +38,8 @@ trait AParams {
 
   def div_!(scale: Double) = foreachVec {_.div_!(scale)}
 
+  def clear_! = foreachVec {_.clear_!}
+
   def getVecs: Array[ParamVec] = createArray({add: (ParamVec => Any) => foreachVec(add(_))})
 
   def add_!(that: AParams, scale: Double) = {
@@ -62,6 +62,10 @@ class NaiveBayesProblem(val classify_opts: Options) extends ClassifyProblem {
 
     def getLabeledExampleIterator = labeledExamples.toIterator
 
+    override def getUnlabeledExamples: IndexedSeq[Example] = unlabeledExamples
+
+    override def getLabeledExamples: IndexedSeq[Example] = labeledExamples
+
     override def newEvaluators(name: String) = {
       Array(new LabelAccuracyEvaluator(name), new PerLabelAccuracyEvaluator(name, labels))
     }
@@ -1,6 +1,7 @@
 package cc.refectorie.user.kedarb.dynprog.data
 
 import cc.refectorie.user.kedarb.dynprog.fst.LbledTokSeq
+import cc.refectorie.user.kedarb.dynprog.types.FeatureHasher
 
 /**
  * From Leon Bottou's excellent sgd-1.3 package (see http://crfpp.sf.net for explanation of template)
@@ -45,31 +46,40 @@ object ConllChunkingFeatures {
   //
   //  # Bigram
   //  B
-  def processTokSeq(ts: LbledTokSeq, labelIndex: Int = 0, wordIndex: Int = 1): LbledTokSeq = {
+  val templates = Array(
     // token offset features
-    ts.foreachRow("U00:", Array((-2, 0)))
-    ts.foreachRow("U01:", Array((-1, 0)))
-    ts.foreachRow("U02:", Array((0, 0)))
-    ts.foreachRow("U03:", Array((1, 0)))
-    ts.foreachRow("U04:", Array((2, 0)))
-    ts.foreachRow("U05:", Array((-1, 0), (0, 0)))
-    ts.foreachRow("U06:", Array((0, 0), (1, 0)))
+    ("U00:", Array((-2, 0))),
+    ("U01:", Array((-1, 0))),
+    ("U02:", Array((0, 0))),
+    ("U03:", Array((1, 0))),
+    ("U04:", Array((2, 0))),
+    ("U05:", Array((-1, 0), (0, 0))),
+    ("U06:", Array((0, 0), (1, 0))),
 
     // POS tag offset bigram features
-    ts.foreachRow("U10:", Array((-2, 1)))
-    ts.foreachRow("U11:", Array((-1, 1)))
-    ts.foreachRow("U12:", Array((0, 1)))
-    ts.foreachRow("U13:", Array((1, 1)))
-    ts.foreachRow("U14:", Array((2, 1)))
-    ts.foreachRow("U15:", Array((-2, 1), (-1, 1)))
-    ts.foreachRow("U16:", Array((-1, 1), (0, 1)))
-    ts.foreachRow("U17:", Array((0, 1), (1, 1)))
-    ts.foreachRow("U18:", Array((1, 1), (2, 1)))
+    ("U10:", Array((-2, 1))),
+    ("U11:", Array((-1, 1))),
+    ("U12:", Array((0, 1))),
+    ("U13:", Array((1, 1))),
+    ("U14:", Array((2, 1))),
+    ("U15:", Array((-2, 1), (-1, 1))),
+    ("U16:", Array((-1, 1), (0, 1))),
+    ("U17:", Array((0, 1), (1, 1))),
+    ("U18:", Array((1, 1), (2, 1))),
 
     // POS tag offset trigram features
-    ts.foreachRow("U20:", Array((-2, 1), (-1, 1), (0, 1)))
-    ts.foreachRow("U21:", Array((-1, 1), (0, 1), (1, 1)))
-    ts.foreachRow("U22:", Array((0, 1), (1, 1), (2, 1)))
+    ("U20:", Array((-2, 1), (-1, 1), (0, 1))),
+    ("U21:", Array((-1, 1), (0, 1), (1, 1))),
+    ("U22:", Array((0, 1), (1, 1), (2, 1)))
+  )
+
+  // hash state after each template's prefix
+  val templateStates = templates.map(t => FeatureHasher.mixChars(FeatureHasher.SEED, t._1))
+
+  def processTokSeq(ts: LbledTokSeq, labelIndex: Int = 0, wordIndex: Int = 1): LbledTokSeq = {
+    templates.foreach {
+      case (prefix, offsets) => ts.foreachRow(prefix, offsets)
+    }
 
     // print labels
     if (debuglabels) {
@@ -83,4 +93,34 @@ object ConllChunkingFeatures {
     }
     ts
   }
-}
\ No newline at end of file
+
+  /**
+   * Hashes the features of processTokSeq into buffer (one token at a time)
+   * without building their Strings: each gets the hash of its String (see
+   * LbledTokSeq.foreachRow for the boundary cells).
+   */
+  def hashTokSeq(ts: LbledTokSeq, buffer: FeatureHasher#Buffer): Unit = {
+    val nrow = ts.nrow
+    var ii = 0
+    while (ii < nrow) {
+      var t = 0
+      while (t < templates.length) {
+        val offsets = templates(t)._2
+        var h = templateStates(t)
+        var k = 0
+        while (k < offsets.length) {
+          if (k > 0) h = FeatureHasher.mix(h, '/')
+          val i = ii + offsets(k)._1
+          if (i < 0) h = FeatureHasher.mixDecimal(FeatureHasher.mix(FeatureHasher.mix(h, '_'), 'B'), i)
+          else if (i >= nrow) h = FeatureHasher.mixDecimal(FeatureHasher.mix(FeatureHasher.mix(FeatureHasher.mix(h, '_'), 'B'), '+'), i - nrow + 1)
+          else h = FeatureHasher.mixChars(h, ts.cell(i, offsets(k)._2))
+          k += 1
+        }
+        buffer.add(FeatureHasher.finish(h))
+        t += 1
+      }
+      buffer.endToken
+      ii += 1
+    }
+  }
+}
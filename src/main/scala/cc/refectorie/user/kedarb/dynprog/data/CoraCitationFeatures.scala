@@ -1,6 +1,6 @@
 package cc.refectorie.user.kedarb.dynprog.data
 
-import cc.refectorie.user.kedarb.dynprog.types.{Dict, TrieDict}
+import cc.refectorie.user.kedarb.dynprog.types.{Dict, TrieDict, FeatureHasher}
 import collection.mutable.{ArrayBuffer, HashMap}
 import cc.refectorie.user.kedarb.dynprog.fst.{LbledTokSeq, TokFtrFns}
 
@@ -261,4 +261,153 @@ object CoraCitationFeatures {
     }
     ts
   }
-}
\ No newline at end of file
+
+  // hashed features (see FeatureHasher): the same features as
+  // processTokSeq, each with the hash of its String, except for
+  // conjunctions of several offsets, whose hash combines the hashes of
+  // their parts (in the order of the offsets)
+
+  // hash states of the function features of a word (they only depend on
+  // the word), conjoinable ones (without '@') first
+  class WordStates(val states: Array[Int], val numConjoinable: Int)
+
+  // each feature function with the hash state of its prefix, so that the
+  // state of a feature is its prefix's state mixed with the chars of the name
+  class FtrFnState(val fn: String => Option[String], val state: Int, val prefixHasAt: Boolean)
+
+  lazy val ftrFnStates = prefixToFtrFns.keys.toArray.map({
+    prefix: String => new FtrFnState(prefixToFtrFns(prefix), FeatureHasher.mixChars(FeatureHasher.SEED, prefix),
+      prefix.contains("@"))
+  })
+
+  // cache of the states of distinct words, dropped when it reaches maxCachedWords
+  var maxCachedWords = 1 << 18
+  val wordStates = new java.util.concurrent.ConcurrentHashMap[String, WordStates]
+
+  def wordStatesOf(w: String): WordStates = {
+    var ws = wordStates.get(w)
+    if (ws == null) {
+      val conjoinable = new ArrayBuffer[Int]
+      val others = new ArrayBuffer[Int]
+      for (fs <- ftrFnStates; name <- fs.fn(w)) {
+        val state = FeatureHasher.mixChars(fs.state, name)
+        (if (fs.prefixHasAt || name.contains("@")) others else conjoinable) += state
+      }
+      ws = new WordStates((conjoinable ++ others).toArray, conjoinable.size)
+      if (wordStates.size >= maxCachedWords) wordStates.clear
+      wordStates.put(w, ws)
+    }
+    ws
+  }
+
+  lazy val trieNames = prefixToTrieLexicon.keys.toArray
+  lazy val trieStates = trieNames.map(FeatureHasher.mixChars(FeatureHasher.SEED, _))
+
+  // per-sequence arrays of a thread
+  class Scratch {
+    var words = new Array[WordStates](64)
+    var trieMasks = new Array[Int](64)
+  }
+
+  val scratches = new ThreadLocal[Scratch] {
+    override def initialValue = new Scratch
+  }
+
+  def hashTokSeq(ts: LbledTokSeq, buffer: FeatureHasher#Buffer, conjunctions: Array[Array[Int]] = null,
+                 wordIndex: Int = 1): Unit = {
+    val nrow = ts.nrow
+    val words = ts.column(wordIndex)
+    val scratch = scratches.get
+    if (scratch.words.length < nrow) {
+      scratch.words = new Array[WordStates](2 * nrow)
+      scratch.trieMasks = new Array[Int](2 * nrow)
+    }
+    val wss = scratch.words
+    val trieMasks = scratch.trieMasks
+    var i = 0
+    while (i < nrow) {
+      wss(i) = wordStatesOf(words(i))
+      trieMasks(i) = 0
+      i += 1
+    }
+    // bit p of trieMasks(i) is set if token i is in a match of trie p
+    if (usetriefeatures) {
+      require(trieNames.length <= 32, "Too many tries: " + trieNames.length)
+      val wordSeq: Seq[String] = words
+      var p = 0
+      while (p < trieNames.length) {
+        val trie = prefixToTrieLexicon(trieNames(p))
+        var begin = 0
+        while (begin < nrow) {
+          val end = trie.endIndexOf(wordSeq, begin)
+          if (end >= begin) {
+            i = begin
+            while (i <= end) {
+              trieMasks(i) |= 1 << p
+              i += 1
+            }
+            begin = end + 1
+          } else {
+            begin += 1
+          }
+        }
+        p += 1
+      }
+    }
+
+    // hash of component (state c at offset o) of a conjunction
+    def component(c: Int, o: Int) = FeatureHasher.finish(if (o == 0) c else FeatureHasher.mixDecimal(FeatureHasher.mix(c, '@'), o))
+
+    // adds the conjunctions of conj(k..) to h
+    def conjoin(ii: Int, conj: Array[Int], k: Int, h: Int): Unit = {
+      if (k == conj.length) {
+        buffer.add(FeatureHasher.finish(h))
+        return
+      }
+      def next(c: Int) = {
+        if (conj.length == 1) buffer.add(component(c, conj(k)))
+        else conjoin(ii, conj, k + 1, FeatureHasher.mix(h, component(c, conj(k))))
+      }
+      val i = ii + conj(k)
+      if (i < 0) next(FeatureHasher.mixDecimal(FeatureHasher.mix(FeatureHasher.mix(FeatureHasher.SEED, '_'), 'B'), i))
+      else if (i >= nrow) next(FeatureHasher.mixDecimal(FeatureHasher.mix(FeatureHasher.mix(FeatureHasher.mix(FeatureHasher.SEED, '_'), 'B'), '+'), i - nrow + 1))
+      else {
+        val ws = wss(i)
+        var j = 0
+        while (j < ws.numConjoinable) {
+          next(ws.states(j))
+          j += 1
+        }
+        var p = 0
+        while (p < trieNames.length) {
+          if ((trieMasks(i) & (1 << p)) != 0) next(trieStates(p))
+          p += 1
+        }
+      }
+    }
+
+    var ii = 0
+    while (ii < nrow) {
+      val ws = wss(ii)
+      var j = 0
+      while (j < ws.states.length) {
+        buffer.add(FeatureHasher.finish(ws.states(j)))
+        j += 1
+      }
+      var p = 0
+      while (p < trieNames.length) {
+        if ((trieMasks(ii) & (1 << p)) != 0) buffer.add(FeatureHasher.finish(trieStates(p)))
+        p += 1
+      }
+      if (conjunctions != null) {
+        var c = 0
+        while (c < conjunctions.length) {
+          conjoin(ii, conjunctions(c), 0, FeatureHasher.SEED)
+          c += 1
+        }
+      }
+      buffer.endToken
+      ii += 1
+    }
+  }
+}
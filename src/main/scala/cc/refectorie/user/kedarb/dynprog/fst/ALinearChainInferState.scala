@@ -0,0 +1,104 @@
+package cc.refectorie.user.kedarb.dynprog.fst
+
+import cc.refectorie.user.kedarb.dynprog._
+
+/**
+ * Drop-in replacement for ATaggingInferState (same scoring and update hooks)
+ * that runs inference on a dense LinearChain trellis instead of building a
+ * Hypergraph. Starts and transitions that aren't allowed get a score of
+ * -Infinity, which leaves log Z, the best widget and the samples unchanged.
+ *
+ * @author kedarb
+ */
+
+trait ALinearChainInferState[Features, Example <: ATaggingExample[Features], Params <: AParams]
+  extends AInferState[LblSeq, Example, Params] {
+  type Widget = LblSeq
+
+  def features = ex.features
+
+  def N = ex.numTokens
+
+  def L: Int
+
+  def newWidget = new Widget(N)
+
+  def scoreTransition(a: Int, b: Int, i: Int): Double
+
+  def updateTransition(a: Int, b: Int, i: Int, x: Double): Unit
+
+  def scoreStart(a: Int): Double
+
+  def updateStart(a: Int, x: Double): Unit
+
+  def allowedTransition(i: Int, prev_a: Int, a: Int): Boolean
+
+  def allowedStart(a: Int): Boolean
+
+  // Override to reuse a chain across examples (e.g., one per thread, with
+  // LinearChain.setAllowed() for sparse transitions); it only has to stay
+  // valid until the next infer state is created on the same thread
+  def newLinearChain: LinearChain = new LinearChain(L, N)
+
+  val chain = newLinearChain
+  chain.setLength(N)
+  // 1) fill in the scores of the starts and transitions the chain allows (it never reads the others)
+  private val starts = chain.getStarts
+  private val nextOffsets = chain.getNextOffsets
+  private val nexts = chain.getNexts
+  for (a <- starts)
+    chain.startScores(a) = if (allowedStart(a)) scoreStart(a) else Double.NegativeInfinity
+  for (i <- 1 until N; a <- 0 until L; e <- nextOffsets(a) until nextOffsets(a + 1)) {
+    val b = nexts(e)
+    chain.transitionScores(chain.transitionIndex(i, a, b)) =
+      if (allowedTransition(i, a, b)) scoreTransition(a, b, i) else Double.NegativeInfinity
+  }
+  chain.invalidate()
+  // 2) forward-backward (or max)
+  val logZ = if (hardInfer) chain.computeMax else chain.computeInside
+  // 3) (optionally) compute eLogZ and entropy: lazily, since updateCounts gets them for free
+  lazy val elogZ = {
+    if (hardInfer) logZ * temperature
+    else {
+      if (computeELogZEntropy && chain.getELogZ.isNaN) chain.fetchPosteriors(null)
+      chain.getELogZ * temperature
+    }
+  }
+  lazy val entropy = {
+    if (hardInfer) 0.0
+    else {
+      if (computeELogZEntropy && chain.getEntropy.isNaN) chain.fetchPosteriors(null)
+      chain.getEntropy
+    }
+  }
+
+  // infer widget
+  val (bestWidget, logVZ) = {
+    if (ispec.bestUpdate) {
+      val widget = newWidget
+      (widget, chain.fetchBestLabels(widget))
+    } else if (ispec.sampleUpdate) {
+      val widget = newWidget
+      (widget, chain.fetchSampleLabels(sampleRandom, widget))
+    } else {
+      (newWidget, Double.NaN)
+    }
+  }
+
+  def updateCounts {
+    val sink = new LinearChain.PosteriorSink {
+      def setStartPosterior(a: Int, prob: Double) = updateStart(a, prob)
+
+      def setTransitionPosterior(i: Int, a: Int, b: Int, prob: Double) = updateTransition(a, b, i, prob)
+    }
+    if (counts.lockFree) {
+      if (hardInfer) chain.fetchBestPosteriors(sink)
+      else chain.fetchPosteriors(sink)
+    } else counts.synchronized {
+      if (hardInfer) chain.fetchBestPosteriors(sink)
+      else chain.fetchPosteriors(sink)
+    }
+  }
+
+  def complexity = N * L
+}
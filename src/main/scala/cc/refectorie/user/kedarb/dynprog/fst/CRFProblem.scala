@@ -6,8 +6,10 @@ import types.ParamUtils._
 import types.IndexerUtils._
 import org.apache.log4j.Logger
 import data.{CoraCitationFeatures, ConllChunkingFeatures}
-import types.{ParamVec, FtrVec}
-import collection.mutable.HashMap
+import types.{WeightVec, ParamVec, FtrVec, FeatureHasher, Hypergraph}
+import la.DenseVector
+import collection.mutable.{ArrayBuffer, HashMap, HashSet}
+import java.io._
 
 /**
  * @author kedarb
@@ -19,6 +21,12 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
 
   val hasOrder0 = seqtag_opts.orders.contains(0)
   val hasOrder1 = seqtag_opts.orders.contains(1)
+  // orders above 1: a weight per label (n+1)-gram, with inference on a HigherOrderChain of the
+  // highest order
+  val higherOrders = seqtag_opts.orders.filter(_ > 1).distinct.sorted
+  val maxOrder = if (higherOrders.isEmpty) 1 else higherOrders.last
+  if (higherOrders.nonEmpty && seqtag_opts.featureEdges)
+    throw fail("featureEdges only supports orders 0 and 1")
   val hashedFeatures = seqtag_opts.useHashing
   var featureCounts: HashMap[String, Int] = null
 
@@ -32,11 +40,63 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
     else super.fstr(i)
   }
 
+  lazy val featureHasher = new FeatureHasher(F, seqtag_opts.signedHashing, seqtag_opts.hashingStats)
+
+  val coraConjunctions = Array(Array(-2), Array(-1), Array(1), Array(2))
+
+  def processTokSeq(ts: LbledTokSeq): Unit = {
+    seqtag_opts.featureMethod match {
+      case TagOptions.FeatureMethod.cora =>
+        CoraCitationFeatures.processTokSeq(ts, coraConjunctions, seqtag_opts.labelIndex, seqtag_opts.wordIndex)
+      case TagOptions.FeatureMethod.conllchunk =>
+        ConllChunkingFeatures.processTokSeq(ts, seqtag_opts.labelIndex, seqtag_opts.wordIndex)
+      case _ => throw fail("Unknown feature method: " + seqtag_opts.featureMethod)
+    }
+  }
+
+  // hashed features of ts, without building the feature Strings
+  def hashedFeatureVectorSequence(ts: LbledTokSeq): Array[FtrVec] = {
+    val buffer = featureHasher.buffer
+    seqtag_opts.featureMethod match {
+      case TagOptions.FeatureMethod.cora =>
+        CoraCitationFeatures.hashTokSeq(ts, buffer, coraConjunctions, seqtag_opts.wordIndex)
+      case TagOptions.FeatureMethod.conllchunk =>
+        ConllChunkingFeatures.hashTokSeq(ts, buffer)
+      case _ => throw fail("Unknown feature method: " + seqtag_opts.featureMethod)
+    }
+    // binary (and signed) features share their (f, value) pairs
+    Array.tabulate(ts.nrow)({
+      i: Int =>
+        val fv = new FtrVec
+        val end = buffer.end(i)
+        var k = buffer.begin(i)
+        fv.sizeHint(end - k)
+        while (k < end) {
+          val value = buffer.values(k)
+          fv += {
+            if (value == 1) unitFeature(buffer.ids(k))
+            else if (value == -1) negativeUnitFeature(buffer.ids(k))
+            else buffer.ids(k) -> value.toDouble
+          }
+          k += 1
+        }
+        fv
+    })
+  }
+
+  def logFeatureHashingStats(logger: Logger) = {
+    if (hashedFeatures && seqtag_opts.hashingStats) logger.info("Feature hashing: " + featureHasher.statsString)
+  }
+
   class Example(val words: Array[Int], val features: Array[Features], val trueWidget: Widget)
     extends ATaggingExample[Features]
 
-  case class InferState(ex: Example, params: Params, counts: Params, ispec: InferSpec)
-    extends ASeqTagInferState[Features, Example](ex, params, counts, ispec) {
+  type InferState = AInferState[Widget, Example, Params]
+
+  // Scores shared by the hypergraph and linear-chain inferencers
+  trait Scoring extends InferState {
+    def features: Array[Features]
+
     def scoreStart(a: Int) = {
       score(params.starts, a) + {
         if (hasOrder0) score(params.emits0(a), features(0)) else 0.0
@@ -66,18 +126,349 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
     }
   }
 
-  class FeatureCountReader(val filename: String) extends ASeqTagDictReader(filename) {
-    def fromTokSeq(ts: LbledTokSeq): Unit = {
-      seqtag_opts.featureMethod match {
-        case TagOptions.FeatureMethod.cora =>
-          CoraCitationFeatures.processTokSeq(ts, Array(Array(-2), Array(-1), Array(1), Array(2)),
-            seqtag_opts.labelIndex, seqtag_opts.wordIndex)
-        case TagOptions.FeatureMethod.conllchunk =>
-          ConllChunkingFeatures.processTokSeq(ts, seqtag_opts.labelIndex, seqtag_opts.wordIndex)
-        case _ =>
-          throw fail("Unknown feature method: " + seqtag_opts.featureMethod)
+  case class HypergraphInferState(ex: Example, params: Params, counts: Params, ispec: InferSpec)
+    extends ASeqTagInferState[Features, Example](ex, params, counts, ispec) with Scoring
+
+  case class LinearChainInferState(ex: Example, params: Params, counts: Params, ispec: InferSpec)
+    extends ASeqTagChainInferState[Features, Example](ex, params, counts, ispec) with Scoring
+
+  // With sparseTransitions: the (maxOrder + 1)-grams (BOS before the start) whose first label is
+  // an allowed start and whose label pairs are allowed transitions
+  lazy val allowedGrams = {
+    val grams = new HashSet[List[Int]]
+    def extend(gram: List[Int], n: Int): Unit = {
+      if (n == 0) grams += gram.reverse
+      else gram match {
+        case Nil => forIndex(L, {b: Int => extend(List(b), n - 1)})
+        case a :: _ if a == HigherOrderChain.BOS =>
+          if (n > 1) extend(HigherOrderChain.BOS :: gram, n - 1)
+          allowedStarts.foreach(b => extend(b :: gram, n - 1))
+        case a :: _ => allowedTransitions.foreach({
+          p: (Int, Int) => if (p._1 == a) extend(p._2 :: gram, n - 1)
+        })
+      }
+    }
+    extend(Nil, maxOrder + 1)
+    extend(List(HigherOrderChain.BOS), maxOrder)
+    grams
+  }
+
+  // One chain per thread (all of them with the same transitions)
+  val higherOrderChains = new ThreadLocal[HigherOrderChain] {
+    override def initialValue = {
+      val grams = {
+        if (!seqtag_opts.sparseTransitions) null
+        else {
+          val list = new java.util.ArrayList[Array[Int]]
+          allowedGrams.foreach(gram => list.add(gram.toArray))
+          list
+        }
+      }
+      new HigherOrderChain(L, maxOrder, grams)
+    }
+  }
+
+  // For each transition of the chains: the label before it (BOS at the start) and, for each order
+  // above 1, the index of its last labels among those of all transitions (its weight in Params.grams)
+  class GramIndex(chain: HigherOrderChain) {
+    val prevs = new Array[Int](chain.numTransitions)
+    val gramIds = Array.ofDim[Int](higherOrders.length, chain.numTransitions)
+    val grams = higherOrders.map(_ => new ArrayBuffer[List[Int]])
+
+    private val ids = higherOrders.map(_ => new HashMap[List[Int], Int])
+    private val gram = new Array[Int](maxOrder + 1)
+    forIndex(chain.numTransitions, {
+      e: Int =>
+        chain.getGram(e, gram)
+        prevs(e) = gram(maxOrder - 1)
+        foreachIndex(higherOrders, {
+          (k: Int, n: Int) =>
+            val suffix = gram.drop(maxOrder - n).toList
+            gramIds(k)(e) = ids(k).getOrElseUpdate(suffix, {
+              grams(k) += suffix
+              grams(k).size - 1
+            })
+        })
+    })
+
+    def numGrams(k: Int) = grams(k).size
+  }
+
+  lazy val gramIndex = new GramIndex(higherOrderChains.get)
+
+  override def gramstr(k: Int, g: Int) = {
+    gramIndex.grams(k)(g).map(a => if (a == HigherOrderChain.BOS) "<s>" else lstr(a)).mkString(" ")
+  }
+
+  // Orders above 1: the scores of Scoring for the last two labels of each transition, plus the
+  // weights of its n-grams
+  case class HigherOrderInferState(ex: Example, params: Params, counts: Params, ispec: InferSpec)
+    extends Scoring {
+    def features = ex.features
+
+    def N = ex.numTokens
+
+    def newWidget = new Widget(N)
+
+    val index = gramIndex
+    val chain = higherOrderChains.get
+    chain.setLength(N)
+    // 1) fill in the scores; transitions that share their last two labels share those scores
+    private val pairScores = new Array[Double](L * L)
+    forIndex(N, {
+      i: Int =>
+        java.util.Arrays.fill(pairScores, Double.NaN)
+        forIndex(chain.transitionsBegin(i), chain.transitionsEnd(i), {
+          e: Int =>
+            val a = index.prevs(e)
+            val b = chain.labelOf(e)
+            chain.scores(chain.scoreIndex(i, e)) = {
+              if (trueInfer && ex.trueWidget(i) != b) Double.NegativeInfinity
+              else {
+                val pair = if (i == 0) a + 1 + b * L else a * L + b // a is BOS at i == 0
+                if (pairScores(pair).isNaN) pairScores(pair) = if (i == 0) scoreStart(b) else scoreTransition(a, b, i)
+                var total = pairScores(pair)
+                var k = 0
+                while (k < higherOrders.length) {
+                  total += score(params.grams(k), index.gramIds(k)(e))
+                  k += 1
+                }
+                total
+              }
+            }
+        })
+    })
+    chain.invalidate
+    // 2) forward-backward (or max)
+    val logZ = if (hardInfer) chain.computeMax else chain.computeInside
+    // 3) (optionally) compute eLogZ and entropy
+    lazy val elogZ = {
+      if (hardInfer) logZ * temperature
+      else {
+        if (computeELogZEntropy && chain.getELogZ.isNaN) chain.fetchPosteriors(null)
+        chain.getELogZ * temperature
+      }
+    }
+    lazy val entropy = {
+      if (hardInfer) 0.0
+      else {
+        if (computeELogZEntropy && chain.getEntropy.isNaN) chain.fetchPosteriors(null)
+        chain.getEntropy
+      }
+    }
+
+    // infer widget
+    val (bestWidget, logVZ) = {
+      if (ispec.bestUpdate) {
+        val widget = newWidget
+        (widget, chain.fetchBestLabels(widget, null))
+      } else if (ispec.sampleUpdate) {
+        val widget = newWidget
+        (widget, chain.fetchSampleLabels(sampleRandom, widget, null))
+      } else {
+        (newWidget, Double.NaN)
+      }
+    }
+
+    // Posteriors of the pairs of a position are summed before updating their features
+    private def updatePosteriors: Unit = {
+      val pairPosteriors = new Array[Double](L * L)
+      var position = -1
+      def flush: Unit = {
+        forIndex(pairPosteriors.length, {
+          pair: Int => if (pairPosteriors(pair) != 0) {
+            if (position == 0) updateStart(pair / L, pairPosteriors(pair))
+            else updateTransition(pair / L, pair % L, position, pairPosteriors(pair))
+            pairPosteriors(pair) = 0
+          }
+        })
+      }
+      val sink = new HigherOrderChain.PosteriorSink {
+        def setTransitionPosterior(i: Int, e: Int, prob: Double) = {
+          if (i != position) {
+            flush
+            position = i
+          }
+          val b = chain.labelOf(e)
+          pairPosteriors(if (i == 0) b * L else index.prevs(e) * L + b) += prob
+          foreachIndex(higherOrders, {(k: Int, n: Int) => update(counts.grams(k), index.gramIds(k)(e), prob)})
+        }
+      }
+      if (hardInfer) {
+        val transitions = new Array[Int](N)
+        chain.fetchBestLabels(newWidget, transitions)
+        forIndex(N, {i: Int => sink.setTransitionPosterior(i, transitions(i), 1.0)})
+      } else chain.fetchPosteriors(sink)
+      flush
+    }
+
+    def updateCounts {
+      if (counts.lockFree) updatePosteriors
+      else counts.synchronized {
+        updatePosteriors
+      }
+    }
+
+    def complexity = N * L
+  }
+
+  // Feature hyperedges (see TagOptions.featureEdges): each edge carries the indices of its features
+  // in the flat parameter array of the batch learner, which lays out the weight vectors of params one
+  // after another in the order of foreachVec (see ArrayFromVectors). The offset of each vector comes
+  // from that same walk. Only dense vectors have all of their entries in the array.
+  class FlatLayout(params: Params) {
+    private val offsets = new java.util.IdentityHashMap[ParamVec, java.lang.Integer]
+    private var numParams = 0
+    params.foreachVec {
+      v: ParamVec => v match {
+        case WeightVec(_: DenseVector) =>
+          offsets.put(v, java.lang.Integer.valueOf(numParams))
+          numParams += v.size
+        case _ => throw fail("Feature hyperedges need dense weight vectors, not " + v.getClass.getSimpleName)
+      }
+    }
+
+    def size = numParams
+
+    def offset(v: ParamVec): Int = offsets.get(v).intValue
+
+    val starts = offset(params.starts)
+    val transitions = params.transitions.map(offset(_))
+    val emits0 = params.emits0.map(offset(_))
+    val emitsStart = params.emitsStart.map(offset(_))
+    val emits1 = params.emits1.map(_.map(offset(_)))
+  }
+
+  // Structure of the feature hypergraphs, keyed like hypergraphTemplates. Kept apart from those: a
+  // feature hypergraph has no node for the last position, so the two shapes differ for the same key.
+  val featureHypergraphTemplates = new Hypergraph.TemplateCache
+
+  // features of the edge being added (reused by each thread)
+  class EdgeFeatures {
+    var ids = new Array[Int](64)
+    var values = new Array[Double](64)
+    var size = 0
+
+    def add(id: Int, value: Double): Unit = {
+      if (size == ids.length) {
+        val newIds = new Array[Int](2 * size)
+        Array.copy(ids, 0, newIds, 0, size)
+        ids = newIds
+        val newValues = new Array[Double](2 * size)
+        Array.copy(values, 0, newValues, 0, size)
+        values = newValues
+      }
+      ids(size) = id
+      values(size) = value
+      size += 1
+    }
+
+    def add(offset: Int, fv: FtrVec): Unit = {
+      var k = 0
+      while (k < fv.size) {
+        add(offset + fv(k)._1, fv(k)._2)
+        k += 1
+      }
+    }
+  }
+
+  val edgeFeatures = new ThreadLocal[EdgeFeatures] {
+    override def initialValue = new EdgeFeatures
+  }
+
+  class LabelInfo(i: Int, a: Int) extends Hypergraph.FeatureHyperedgeInfo[Widget] {
+    def setPosterior(v: Double) = {}
+
+    def choose(widget: Widget) = {
+      widget(i) = a
+      widget
+    }
+  }
+
+  // Same structure as ATaggingInferState.createHypergraph, with the features of Scoring. Node
+  // i * L + a is label a at position i < N - 1 (edges to the labels at N - 1 go to the end node).
+  // The nodes reachable from the start are marked first, then added position by position from the
+  // end, so that the children of each node are already there.
+  def newFeatureHypergraph(layout: FlatLayout, ex: Example, trueInfer: Boolean): Hypergraph[Widget] = {
+    val N = ex.numTokens
+    val H = {
+      if (trueInfer || !seqtag_opts.reuseHypergraphs) new Hypergraph[Widget]
+      else featureHypergraphTemplates.newHypergraph[Widget]((N, L))
+    }
+    val fs = edgeFeatures.get
+    def allowedStart(a: Int) = {
+      if (trueInfer) ex.trueWidget(0) == a
+      else !seqtag_opts.sparseTransitions || allowedStarts.contains(a)
+    }
+    def allowedTransition(i: Int, a: Int, b: Int) = {
+      if (trueInfer) ex.trueWidget(i) == b
+      else !seqtag_opts.sparseTransitions || allowedTransitions.contains(a -> b)
+    }
+    def setFeatures(e: Int) = if (e >= 0) H.setEdgeFeatures(e, fs.ids, fs.values, fs.size)
+
+    val reachable = new Array[Boolean]((N - 1) * L)
+    if (N > 1) forIndex(L, {a: Int => if (allowedStart(a)) reachable(a) = true})
+    forIndex(1, N - 1, {
+      i: Int => forIndex(L, {
+        a: Int => if (reachable((i - 1) * L + a)) forIndex(L, {
+          b: Int => if (allowedTransition(i, a, b)) reachable(i * L + b) = true
+        })
+      })
+    })
+
+    H.setMaxKey((N - 1) * L)
+    forIndex(N - 1, {
+      k: Int =>
+        val i = N - 2 - k
+        forIndex(L, {
+          a: Int => if (reachable(i * L + a)) {
+            val node = (i * L + a).toLong
+            H.addSumNode(node)
+            forIndex(L, {
+              b: Int => if (allowedTransition(i + 1, a, b)) {
+                fs.size = 0
+                fs.add(layout.transitions(a) + b, 1.0)
+                if (hasOrder0) fs.add(layout.emits0(b), ex.features(i + 1))
+                if (hasOrder1) fs.add(layout.emits1(a)(b), ex.features(i + 1))
+                val info = new LabelInfo(i + 1, b)
+                setFeatures(if (i + 1 == N - 1) H.addEdge(node, info)
+                else H.addEdge(node, ((i + 1) * L + b).toLong, info))
+              }
+            })
+          }
+        })
+    })
+    forIndex(L, {
+      a: Int => if (allowedStart(a)) {
+        fs.size = 0
+        fs.add(layout.starts + a, 1.0)
+        if (hasOrder0) fs.add(layout.emits0(a), ex.features(0))
+        if (hasOrder1) fs.add(layout.emitsStart(a), ex.features(0))
+        val info = new LabelInfo(0, a)
+        setFeatures(if (N == 1) H.addEdge(H.sumStartNode, H.endNode, info)
+        else H.addEdge(H.sumStartNode, a.toLong, info))
       }
+    })
+    H
+  }
+
+  // Adds exWt * (expected - true features) of ex to gradient, returns exWt * (logZ - true logZ)
+  def addExampleGradient(ex: Example, layout: FlatLayout, parameters: Array[Double], gradient: Array[Double],
+                         exWt: Double, viterbi: Boolean): Double = {
+    val trueH = newFeatureHypergraph(layout, ex, true)
+    trueH.computeFeatureWeights(parameters)
+    trueH.computePosteriors(viterbi)
+    trueH.addFeatureExpectations(viterbi, gradient, -exWt)
+    val H = newFeatureHypergraph(layout, ex, false)
+    H.computeFeatureWeights(parameters)
+    H.computePosteriors(viterbi)
+    H.addFeatureExpectations(viterbi, gradient, exWt)
+    exWt * (H.getLogZ - trueH.getLogZ)
+  }
 
+  class FeatureCountReader(val filename: String) extends ASeqTagDictReader(filename) {
+    def fromTokSeq(ts: LbledTokSeq): Unit = {
+      processTokSeq(ts)
       ts.features.foreach(_.foreach({
         f: String => featureCounts(f) += 1
       }))
@@ -86,16 +477,8 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
 
   class DictReader(val filename: String) extends ASeqTagDictReader(filename) {
     def fromTokSeq(ts: LbledTokSeq): Unit = {
-      seqtag_opts.featureMethod match {
-        case TagOptions.FeatureMethod.cora =>
-          CoraCitationFeatures.processTokSeq(ts, Array(Array(-2), Array(-1), Array(1), Array(2)),
-            seqtag_opts.labelIndex, seqtag_opts.wordIndex)
-        case TagOptions.FeatureMethod.conllchunk =>
-          ConllChunkingFeatures.processTokSeq(ts, seqtag_opts.labelIndex, seqtag_opts.wordIndex)
-        case _ =>
-          throw fail("Unknown feature method: " + seqtag_opts.featureMethod)
-      }
-
+      // hashed features need no dictionary
+      if (!hashedFeatures) processTokSeq(ts)
       ts.columnIndices(seqtag_opts.wordIndex, words.indexOf_!(_))
       val ls = {
         if (seqtag_opts.bioEncoding) ts.columnToBIOIndices(seqtag_opts.labelIndex, labels.indexOf_!(_))
@@ -115,19 +498,13 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
 
   class ExampleReader(val filename: String) extends ASeqTagExampleReader[Features, Example](filename) {
     def fromTokSeq(ts: LbledTokSeq): Example = {
-      seqtag_opts.featureMethod match {
-        case TagOptions.FeatureMethod.cora =>
-          CoraCitationFeatures.processTokSeq(ts, Array(Array(-2), Array(-1), Array(1), Array(2)),
-            seqtag_opts.labelIndex, seqtag_opts.wordIndex)
-        case TagOptions.FeatureMethod.conllchunk =>
-          ConllChunkingFeatures.processTokSeq(ts, seqtag_opts.labelIndex, seqtag_opts.wordIndex)
-        case _ => throw fail("Unknown feature method: " + seqtag_opts.featureMethod)
-      }
-
       val ws = ts.columnIndices(seqtag_opts.wordIndex, words.indexOf_?(_))
       val fvs = {
-        if (hashedFeatures) ts.featureVectorSequence(_.hashCode % F)
-        else ts.featureVectorSequence(features.indexOf_?(_))
+        if (hashedFeatures) hashedFeatureVectorSequence(ts)
+        else {
+          processTokSeq(ts)
+          ts.featureVectorSequence(features.indexOf_?(_))
+        }
       }
       val ls = {
         if (seqtag_opts.bioEncoding) ts.columnToBIOIndices(seqtag_opts.labelIndex, labels.indexOf_?(_))
@@ -148,10 +525,15 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
       if (hasOrder1) newWtVecArray(dense, L, F) else Array[ParamVec]()
     }, {
       if (hasOrder1) newWtVecArray2(dense, L, L, F) else Array[Array[ParamVec]]()
-    }
+    },
+      higherOrders.indices.map(k => newWtVec(dense, gramIndex.numGrams(k))).toArray
     )
 
-    def newInferState(ex: Example, counts: Params, ispec: InferSpec) = InferState(ex, params, counts, ispec)
+    def newInferState(ex: Example, counts: Params, ispec: InferSpec): InferState = {
+      if (maxOrder > 1) HigherOrderInferState(ex, params, counts, ispec)
+      else if (seqtag_opts.linearChain) LinearChainInferState(ex, params, counts, ispec)
+      else HypergraphInferState(ex, params, counts, ispec)
+    }
 
     def widgetToFullString(ex: Example, widget: Widget) = {
       var wwStr = ">>\n"
@@ -170,7 +552,11 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
       wwStr
     }
 
-    def createDictionary = {
+    def createDictionary: Unit = {
+      if (useCorpusCache && loadCachedDictionary) {
+        logger.info("Loaded dictionaries from " + dictionaryCacheFile)
+        return
+      }
       if (!hashedFeatures) {
         featureCounts = new HashMap[String, Int] {
           override def default(key: String): Int = {
@@ -203,6 +589,7 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
       addToDict(opts.testFile)
       logger.info("Allowed starts: " + allowedStarts)
       logger.info("Allowed transitions: " + allowedTransitions)
+      if (useCorpusCache) saveCachedDictionary
     }
 
     override def preInit = {
@@ -227,6 +614,7 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
       serializeParamsArray2(puts, params.emits1)
       puts(allowedStarts.mkString(" "))
       puts(allowedTransitions.map(p => p._1 + "," + p._2).mkString(" "))
+      if (maxOrder > 1) serializeParamsArray(puts, params.grams)
     }
 
     def deserialize(gets: => String) = {
@@ -242,7 +630,8 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
       allowedTransitions ++= gets.split(" ").map({
         s: String => val p = s.split(",").map(_.toInt); p(0) -> p(1)
       })
-      params = new Params(starts, transitions, emits0, emitsStart, emits1)
+      val grams = if (maxOrder > 1) deserializeParamsArray(gets) else Array[ParamVec]()
+      params = new Params(starts, transitions, emits0, emitsStart, emits1, grams)
     }
   }
 
@@ -250,7 +639,129 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
 
   def addToDict(filename: String) = new DictReader(filename).addToDict
 
-  def getExampleIterator(filename: String): Iterator[Example] = new ExampleReader(filename).exampleIterator
+  def getExampleIterator(filename: String): Iterator[Example] = {
+    if (useCorpusCache && filename != null) cachedExampleIterator(filename)
+    else new ExampleReader(filename).exampleIterator
+  }
+
+  // binary corpus cache: the dictionaries and, per data file, its featurized
+  // examples; both are written on the first run and valid while the options
+  // and data files that went into them are unchanged
+  // (feature values are all 1, so not with signed hashing)
+  def useCorpusCache = seqtag_opts.corpusCache != null && !(hashedFeatures && seqtag_opts.signedHashing)
+
+  lazy val corpusCacheKey = {
+    val parts = new collection.mutable.ArrayBuffer[String]
+    parts ++= Seq(seqtag_opts.featureMethod, seqtag_opts.featureCutoff, hashedFeatures, seqtag_opts.numFeatures,
+      seqtag_opts.dataFormat, seqtag_opts.lineGroupRegex, seqtag_opts.lineSplitRegex,
+      seqtag_opts.wordIndex, seqtag_opts.labelIndex, seqtag_opts.bioEncoding).map(_.toString)
+    for (filename <- Seq(gen_opts.labeledFile, gen_opts.unlabeledFile, gen_opts.devFile, gen_opts.testFile)) {
+      if (filename == null) parts += "null"
+      else {
+        val file = new File(filename)
+        parts ++= Seq(file.getAbsolutePath, file.length.toString, file.lastModified.toString)
+      }
+    }
+    CorpusCache.key(parts: _*)
+  }
+
+  def dictionaryCacheFile = new File(seqtag_opts.corpusCache, "dictionary")
+
+  def exampleCacheFile(filename: String) = {
+    val file = new File(filename)
+    new File(seqtag_opts.corpusCache, "%s-%016x.bin".format(file.getName, CorpusCache.key(file.getAbsolutePath)))
+  }
+
+  def loadCachedDictionary: Boolean = {
+    if (!dictionaryCacheFile.isFile) return false
+    val in = new BufferedReader(new FileReader(dictionaryCacheFile))
+    def gets = in.readLine
+    try {
+      if (gets != "%016x".format(corpusCacheKey)) return false
+      deserializeToIndexerString(gets, features)
+      deserializeToIndexerString(gets, words)
+      deserializeToIndexerString(gets, labels)
+      allowedStarts ++= gets.split(" ").filter(_.nonEmpty).map(_.toInt)
+      allowedTransitions ++= gets.split(" ").filter(_.nonEmpty).map({
+        s: String => val p = s.split(",").map(_.toInt); p(0) -> p(1)
+      })
+      true
+    } finally {
+      in.close
+    }
+  }
+
+  def saveCachedDictionary = {
+    dictionaryCacheFile.getParentFile.mkdirs
+    val out = new PrintStream(new FileOutputStream(dictionaryCacheFile))
+    def puts(s: String) = out.println(s)
+    puts("%016x".format(corpusCacheKey))
+    serializeIndexer(puts, features)
+    serializeIndexer(puts, words)
+    serializeIndexer(puts, labels)
+    puts(allowedStarts.mkString(" "))
+    puts(allowedTransitions.map(p => p._1 + "," + p._2).mkString(" "))
+    out.close
+  }
+
+  // (f, 1.0) pairs of binary features: the tokens of cached and hashed examples share them
+  lazy val unitFeatures = new Array[(Int, Double)](F)
+
+  def unitFeature(f: Int) = {
+    if (f >= unitFeatures.length) f -> 1.0
+    else {
+      if (unitFeatures(f) == null) unitFeatures(f) = f -> 1.0
+      unitFeatures(f)
+    }
+  }
+
+  // (f, -1.0) pairs of signed hashed features
+  lazy val negativeUnitFeatures = new Array[(Int, Double)](if (seqtag_opts.signedHashing) F else 0)
+
+  def negativeUnitFeature(f: Int) = {
+    if (f >= negativeUnitFeatures.length) f -> -1.0
+    else {
+      if (negativeUnitFeatures(f) == null) negativeUnitFeatures(f) = f -> -1.0
+      negativeUnitFeatures(f)
+    }
+  }
+
+  // featurizes filename into its cache file the first time, then decodes the
+  // examples from the mapped file (feature values are all 1); each token gets
+  // a feature vector of the right size, filled with the shared unit features
+  def cachedExampleIterator(filename: String): Iterator[Example] = {
+    val file = exampleCacheFile(filename)
+    if (!CorpusCache.isValid(file, corpusCacheKey)) {
+      val writer = new CorpusCache.Writer(file, corpusCacheKey)
+      for (ex <- new ExampleReader(filename).exampleIterator)
+        writer.add(ex.words, ex.trueWidget, ex.features.map(_.map(_._1).toArray))
+      writer.close
+    }
+    val reader = new CorpusCache.Reader(file, corpusCacheKey)
+    new Iterator[Example] {
+      def hasNext = reader.hasNext
+
+      def next() = {
+        reader.next
+        val N = reader.length
+        val fvs = new Array[FtrVec](N)
+        var i = 0
+        while (i < N) {
+          val n = reader.numFeatures(i)
+          val fv = new FtrVec
+          fv.sizeHint(n)
+          var k = 0
+          while (k < n) {
+            fv += unitFeature(reader.feature(i, k))
+            k += 1
+          }
+          fvs(i) = fv
+          i += 1
+        }
+        new Example(Array.tabulate(N)(reader.word(_)), fvs, Array.tabulate(N)(reader.label(_)))
+      }
+    }
+  }
 
   // model learners
   class OnlineModelLearner(val model: Model, val lopts: LearnOptions)
@@ -262,6 +773,7 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
     val validationExamples = createArrayFromIterator(getExampleIterator(gen_opts.devFile))
     val unlabeledExamples = createArrayFromIterator(getExampleIterator(gen_opts.unlabeledFile))
     val labeledExamples = createArrayFromIterator(getExampleIterator(gen_opts.labeledFile))
+    logFeatureHashingStats(logger)
 
     def getTestExampleIterator = testExamples.iterator
 
@@ -282,6 +794,7 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
     val validationExamples = createArrayFromIterator(getExampleIterator(gen_opts.devFile))
     val unlabeledExamples = createArrayFromIterator(getExampleIterator(gen_opts.unlabeledFile))
     val labeledExamples = createArrayFromIterator(getExampleIterator(gen_opts.labeledFile))
+    logFeatureHashingStats(logger)
 
     def getTestExampleIterator = testExamples.iterator
 
@@ -291,6 +804,20 @@ class CRFProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
 
     def getLabeledExampleIterator = labeledExamples.toIterator
 
+    override def getUnlabeledExamples: IndexedSeq[Example] = unlabeledExamples
+
+    override def getLabeledExamples: IndexedSeq[Example] = labeledExamples
+
+    override val flatGradient = seqtag_opts.featureEdges
+    if (flatGradient) checkFlatGradient
+
+    lazy val flatLayout = new FlatLayout(params)
+
+    override def addExampleGradient(ex: Example, parameters: Array[Double], gradient: Array[Double], exWt: Double) = {
+      require(parameters.length == flatLayout.size, "Unexpected parameter layout")
+      CRFProblem.this.addExampleGradient(ex, flatLayout, parameters, gradient, exWt, hardInfer)
+    }
+
     override def newEvaluators(name: String) = getEvaluators(name)
   }
 
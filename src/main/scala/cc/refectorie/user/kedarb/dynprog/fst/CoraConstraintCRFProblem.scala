@@ -617,6 +617,10 @@ class CoraConstraintCRFProblem(val gen_opts: Options, val seqtag_opts: TagOption
 
     def getLabeledExampleIterator = labeledExamples.toIterator
 
+    override def getUnlabeledExamples: IndexedSeq[Example] = unlabeledExamples
+
+    override def getLabeledExamples: IndexedSeq[Example] = labeledExamples
+
     override def processExampleBest(ex: Example) = {
       if (!lopts.constraintInfer) super.processExampleBest(ex)
       else {
@@ -18,8 +18,12 @@ class HMMProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
   class Example(val words: Array[Int], val features: Array[Features], val trueWidget: Widget)
           extends ATaggingExample[Features]
 
-  case class InferState(ex: Example, params: Params, counts: Params, ispec: InferSpec)
-          extends ASeqTagInferState[Features, Example](ex, params, counts, ispec) {
+  type InferState = AInferState[Widget, Example, Params]
+
+  // Scores shared by the hypergraph and linear-chain inferencers
+  trait Scoring extends InferState {
+    def features: Array[Features]
+
     def scoreStart(a: Int) = {
       score(params.starts, a) + score(params.emits0(a), features(0))
     }
@@ -37,16 +41,38 @@ class HMMProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
     }
   }
 
+  case class HypergraphInferState(ex: Example, params: Params, counts: Params, ispec: InferSpec)
+          extends ASeqTagInferState[Features, Example](ex, params, counts, ispec) with Scoring
+
+  case class LinearChainInferState(ex: Example, params: Params, counts: Params, ispec: InferSpec)
+          extends ASeqTagChainInferState[Features, Example](ex, params, counts, ispec) with Scoring
+
 
   class DictReader(val filename: String) extends ASeqTagDictReader(filename) {
+    val featureIndexer = new TokenIndexer(features, true)
+    val wordIndexer = new TokenIndexer(words, true)
+    val labelIndexer = new TokenIndexer(labels, true)
+
     def fromTokSeq(ts: LbledTokSeq) = {
       val fs = ts.columnIndices(seqtag_opts.wordIndex, features.indexOf_!(_))
       val ws = ts.columnIndices(seqtag_opts.wordIndex, words.indexOf_!(_))
-      var prevl = -1
       val ls = {
         if (seqtag_opts.bioEncoding) ts.columnToBIOIndices(seqtag_opts.labelIndex, labels.indexOf_!(_))
         else ts.columnIndices(seqtag_opts.labelIndex, labels.indexOf_!(_))
       }
+      addTransitions(ls)
+    }
+
+    override def readsColumnsOnly = true
+
+    override def fromColumns(ws: Array[Int], ls: Array[Int]) = {
+      featureIndexer(ws)
+      wordIndexer(ws)
+      addTransitions(labelIndices(ls, labelIndexer))
+    }
+
+    def addTransitions(ls: Array[Int]) = {
+      var prevl = -1
       foreachIndex(ls, {
         (i: Int, currl: Int) =>
         // initialize the allowed starts/transitions
@@ -68,6 +94,15 @@ class HMMProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
       }
       new Example(ws, ftrs, trueWidget)
     }
+
+    val featureIndexer = new TokenIndexer(features, false)
+    val wordIndexer = new TokenIndexer(words, false)
+    val labelIndexer = new TokenIndexer(labels, false)
+
+    override def readsColumnsOnly = true
+
+    override def fromColumns(ws: Array[Int], ls: Array[Int]) =
+      new Example(wordIndexer(ws), featureIndexer(ws), labelIndices(ls, labelIndexer))
   }
 
   class Model extends AModel[Widget, Example, Params, InferState] {
@@ -78,7 +113,10 @@ class HMMProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
     def newParams(dense: Boolean) = new Params(newPrVec(dense, L), newPrVecArray(dense, L, L),
       newPrVecArray(dense, L, F), Array[ParamVec](), Array[Array[ParamVec]]())
 
-    def newInferState(ex: Example, counts: Params, ispec: InferSpec) = InferState(ex, params, counts, ispec)
+    def newInferState(ex: Example, counts: Params, ispec: InferSpec): InferState = {
+      if (seqtag_opts.linearChain) LinearChainInferState(ex, params, counts, ispec)
+      else HypergraphInferState(ex, params, counts, ispec)
+    }
 
     def widgetToFullString(ex: Example, widget: Widget) = {
       var wwStr = ">>\n"
@@ -186,6 +224,10 @@ class HMMProblem(val gen_opts: Options, val seqtag_opts: TagOptions) extends Seq
 
     def getLabeledExampleIterator = labeledExamples.toIterator
 
+    override def getUnlabeledExamples: IndexedSeq[Example] = unlabeledExamples
+
+    override def getLabeledExamples: IndexedSeq[Example] = labeledExamples
+
     override def newEvaluators(name: String) = getEvaluators(name)
   }
 
@@ -5,6 +5,7 @@ import data._
 import types._
 import utils.Utils._
 import collection.mutable.{ArrayBuffer, HashSet}
+import java.io.File
 
 /**
  * @author kedarb
@@ -23,6 +24,8 @@ trait SequenceTaggingProblem extends AProblem {
   val labels = new Indexer[String]
   val allowedStarts = new HashSet[Int]
   val allowedTransitions = new HashSet[(Int, Int)]
+  // Structure of the hypergraphs, keyed by sequence length and number of labels
+  val hypergraphTemplates = new Hypergraph.TemplateCache
 
   def F = features.size
 
@@ -36,6 +39,48 @@ trait SequenceTaggingProblem extends AProblem {
 
   def lstr(i: Int) = labels(i)
 
+  // Tokens read by MappedCorpusReader: a String is only made once per distinct token
+  val tokens = new ByteIndexer
+
+  // The default line group and split regexes are the ones MappedCorpusReader understands
+  def useMappedReader = seqtag_opts.mappedReader && seqtag_opts.dataFormat != TagOptions.DataFormat.corasgml &&
+          seqtag_opts.lineGroupRegex == "^\\s*$" && seqtag_opts.lineSplitRegex == "\\s+" && !seqtag_opts.owplDebug
+
+  // Word and label columns (ids of tokens) of each sequence in filename
+  def mappedColumnIterator(filename: String): Iterator[Array[Array[Int]]] = {
+    val reader = new MappedCorpusReader(new File(filename), seqtag_opts.dataFormat,
+      Array(seqtag_opts.wordIndex, seqtag_opts.labelIndex), tokens, true)
+    new Iterator[Array[Array[Int]]] {
+      def hasNext = reader.hasNext
+
+      def next() = reader.next
+    }
+  }
+
+  // Maps ids of tokens to indices of indexer, looking up each distinct token once
+  class TokenIndexer(val indexer: Indexer[String], add: Boolean) {
+    private var indices = new Array[Int](0)
+
+    def indexOf(s: String) = if (add) indexer.indexOf_!(s) else indexer.indexOf_?(s)
+
+    def apply(token: Int): Int = {
+      if (token >= indices.length) {
+        val newIndices = Array.fill(math.max(2 * indices.length, token + 1))(-2)
+        Array.copy(indices, 0, newIndices, 0, indices.length)
+        indices = newIndices
+      }
+      if (indices(token) == -2) indices(token) = indexOf(tokens.get(token))
+      indices(token)
+    }
+
+    def apply(ts: Array[Int]): Array[Int] = ts.map(apply(_))
+  }
+
+  def labelIndices(ls: Array[Int], labelIndexer: TokenIndexer): Array[Int] = {
+    if (seqtag_opts.bioEncoding) Labels2BIO(ls.map(tokens.get(_))).map(labelIndexer.indexOf(_))
+    else labelIndexer(ls)
+  }
+
   def getEvaluators(name: String): Array[APerformance[Widget]] = {
     val evals = new ArrayBuffer[APerformance[Widget]]
     if (seqtag_opts.accuracyEval) evals += new SeqLabelAccuracyEvaluator(name)
@@ -47,7 +92,8 @@ trait SequenceTaggingProblem extends AProblem {
   class Params(val starts: ParamVec, val transitions: Array[ParamVec],
                val emits0: Array[ParamVec], // 0th order emissions: may be empty
                val emitsStart: Array[ParamVec], // 1st order start emissions: may be empty array
-               val emits1: Array[Array[ParamVec]]) // 1st order emissions: may be empty
+               val emits1: Array[Array[ParamVec]], // 1st order emissions: may be empty
+               val grams: Array[ParamVec] = Array[ParamVec]()) // label n-grams of orders > 1: may be empty
           extends AParams {
     def foreachVec(f: (ParamVec) => Any) = {
       f(starts)
@@ -55,6 +101,7 @@ trait SequenceTaggingProblem extends AProblem {
       emits0.foreach(f(_))
       emitsStart.foreach(f(_))
       emits1.foreach(arr => arr.foreach(f(_)))
+      grams.foreach(f(_))
     }
 
     def output(puts: (String) => Any) = {
@@ -92,30 +139,93 @@ trait SequenceTaggingProblem extends AProblem {
         })
       })
       puts("")
+
+      foreachIndex(grams, {
+        (k: Int, pr: ParamVec) => foreachIndex(getValues(pr), {
+          (g: Int, v: Double) => puts("G %s\t%s".format(gramstr(k, g), fmt(v)))
+        })
+      })
+      if (grams.nonEmpty) puts("")
     }
   }
 
+  // n-gram g of the k-th order above 1 (see Params.grams)
+  def gramstr(k: Int, g: Int) = k + ":" + g
+
+  // Allowed starts and transitions of both kinds of infer states: only the true labels with
+  // trueInfer, else (with sparseTransitions) those seen in the labeled data
+  def isAllowedTransition(ex: ATaggingExample[_], trueInfer: Boolean, i: Int, prev_a: Int, a: Int) = {
+    if (trueInfer) ex.trueWidget(i) == a // check that widget at true position matches current state
+    else !seqtag_opts.sparseTransitions || allowedTransitionMask(prev_a)(a)
+  }
+
+  def isAllowedStart(ex: ATaggingExample[_], trueInfer: Boolean, a: Int) = {
+    if (trueInfer) ex.trueWidget(0) == a
+    else !seqtag_opts.sparseTransitions || allowedStartMask(a)
+  }
+
   abstract class ASeqTagInferState[Features,
   Example <: ATaggingExample[Features]](ex: Example, params: Params, counts: Params, ispec: InferSpec)
           extends ATaggingInferState[Features, Example, Params] {
     def L = labels.size
 
-    def allowedTransition(i: Int, prev_a: Int, a: Int): Boolean = {
-      if (trueInfer) ex.trueWidget(i) == a // check that widget at true position matches current state
-      else !seqtag_opts.sparseTransitions || allowedTransitions.contains(prev_a -> a)
+    def allowedTransition(i: Int, prev_a: Int, a: Int) = isAllowedTransition(ex, trueInfer, i, prev_a, a)
+
+    def allowedStart(a: Int) = isAllowedStart(ex, trueInfer, a)
+
+    // Unless constrained to the true labels, the structure only depends on N and L
+    override def newHypergraph = {
+      if (trueInfer || !seqtag_opts.reuseHypergraphs) super.newHypergraph
+      else hypergraphTemplates.newHypergraph[Widget]((N, L))
     }
+  }
 
-    def allowedStart(a: Int): Boolean = {
-      if (trueInfer) ex.trueWidget(0) == a
-      else !seqtag_opts.sparseTransitions || allowedStarts.contains(a)
+  // Allowed starts and transitions as masks for LinearChain.setAllowed (built once the labels are known)
+  lazy val allowedStartMask = Array.tabulate(L)(allowedStarts.contains(_))
+  lazy val allowedTransitionMask = Array.tabulate(L, L)((a, b) => allowedTransitions.contains(a -> b))
+
+  // One chain per thread for all transitions and one for the allowed ones, reused across examples
+  private val linearChains = new ThreadLocal[Array[LinearChain]] {
+    override def initialValue = new Array[LinearChain](2)
+  }
+
+  def linearChain(sparse: Boolean): LinearChain = {
+    val chains = linearChains.get
+    val k = if (sparse) 1 else 0
+    if (chains(k) == null || chains(k).numLabels != L) {
+      chains(k) = new LinearChain(L, 1)
+      if (sparse) chains(k).setAllowed(allowedStartMask, allowedTransitionMask)
     }
+    chains(k)
+  }
+
+  abstract class ASeqTagChainInferState[Features,
+  Example <: ATaggingExample[Features]](ex: Example, params: Params, counts: Params, ispec: InferSpec)
+          extends ALinearChainInferState[Features, Example, Params] {
+    def L = labels.size
+
+    def allowedTransition(i: Int, prev_a: Int, a: Int) = isAllowedTransition(ex, trueInfer, i, prev_a, a)
+
+    def allowedStart(a: Int) = isAllowedStart(ex, trueInfer, a)
+
+    // Skip the transitions that are never allowed altogether
+    override def newLinearChain = linearChain(!trueInfer && seqtag_opts.sparseTransitions)
   }
 
   abstract class ASeqTagDictReader(filename: String) extends ADictReader {
     def fromTokSeq(ts: LbledTokSeq): Unit
 
+    // Override (with readsColumnsOnly) if only the word and label columns are needed
+    def fromColumns(ws: Array[Int], ls: Array[Int]): Unit = throw fail("Not implemented")
+
+    def readsColumnsOnly = false
+
     def addToDict: Unit = {
       if (filename == null) return
+      if (readsColumnsOnly && useMappedReader) {
+        mappedColumnIterator(filename).foreach(columns => fromColumns(columns(0), columns(1)))
+        return
+      }
       seqtag_opts.dataFormat match {
         case TagOptions.DataFormat.owpl =>
           new DataFileReader(filename).forLineGroup(seqtag_opts.lineGroupRegex, {
@@ -147,8 +257,15 @@ trait SequenceTaggingProblem extends AProblem {
           extends AExampleReader[Widget, Example] {
     def fromTokSeq(ts: LbledTokSeq): Example
 
+    // Override (with readsColumnsOnly) if only the word and label columns are needed
+    def fromColumns(ws: Array[Int], ls: Array[Int]): Example = throw fail("Not implemented")
+
+    def readsColumnsOnly = false
+
     def exampleIterator: Iterator[Example] = {
       if (filename == null) return Iterator[Example]()
+      if (readsColumnsOnly && useMappedReader)
+        return mappedColumnIterator(filename).map(columns => fromColumns(columns(0), columns(1)))
       seqtag_opts.dataFormat match {
         case TagOptions.DataFormat.owpl =>
           new DataFileReader(filename).forLazyLineGroup(seqtag_opts.lineGroupRegex, {
@@ -28,6 +28,8 @@ class SparseHashVector(theLength:Int) extends Vector {
   override def forActiveDomain(f: (Int)=>Unit): Unit = h.keys.foreach(f(_))
   override def update(index:Int, value:Double) = h(index) = value // TODO Should we assert(index < length) ?
   override def increment(index:Int, incr:Double): Unit = h(index) = h(index) + incr // TODO Should we assert(index < length) ?
+  /** Removes all non-zeros (back to default everywhere), in time proportional to their number. */
+  def clear: Unit = h.clear
   def dot(v:Vector): Double = v match {
     case dv:DenseVector => {
       var result = 0.0
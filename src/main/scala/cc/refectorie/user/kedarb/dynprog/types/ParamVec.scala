@@ -145,6 +145,9 @@ trait ParamVec {
 
   def zero_! = set_!(0)
 
+  // Same as zero_!, but only visits the active entries of sparse vectors
+  def clear_! : ParamVec = zero_!
+
   def size: Int
 
   def toArray: Array[Double]
@@ -255,6 +258,11 @@ case class ProbVec(val counts: Vector, var sum: Double) extends ParamVec {
     }); computeSum_!
   }
 
+  override def clear_! = counts match {
+    case sparse: SparseHashVector => sparse.clear; sum = 0; this
+    case _ => zero_!
+  }
+
   def normalize_! = {
     counts /= {if (sum == 0) size else sum}; sum = 1; this
   }
@@ -356,6 +364,11 @@ case class WeightVec(val weights: Vector) extends ParamVec {
     }); this
   }
 
+  override def clear_! = weights match {
+    case sparse: SparseHashVector => sparse.clear; this
+    case _ => zero_!
+  }
+
   def dot(v: Vector): Double = weights.dot(v)
 
   def dot(fv: FtrVec): Double = {
@@ -1,6 +1,8 @@
 package cc.refectorie.user.kedarb
 
 import java.util.Random
+import java.util.concurrent.ExecutorService
+import dynprog.types.Hypergraph
 
 package object dynprog {
   // seed for sampling during inference
@@ -8,4 +10,13 @@ package object dynprog {
   implicit lazy val sampleRandom = if (sampleSeed < 0) new Random() else new Random(sampleSeed)
   // whether to compute quantities such as entropy etc. during inference
   var computeELogZEntropy = false
+  // threads used within the inference of each hypergraph (null for sequential)
+  var hypergraphExecutor: ExecutorService = null
+  var hypergraphNumThreads = 1
+  // prune hyperpaths more than this below the best one before summing (infinity: no pruning)
+  var hypergraphPruneThreshold = Double.PositiveInfinity
+  var hypergraphPruneLogZLoss = false
+  var hypergraphPruneStats = new Hypergraph.PruneStats
+  // find best hyperpaths with best-first search in hard inference (Hypergraph.computePosteriorsBestFirst)
+  var hypergraphBestFirst = false
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package cc.refectorie.user.kedarb.dynprog.fst;
+
+import cc.refectorie.user.kedarb.dynprog.types.Hypergraph;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kedar
+ */
+public class LinearChainTest {
+    static class LabelInfo implements Hypergraph.HyperedgeInfo<int[]> {
+        final int i, a;
+        final double weight;
+
+        LabelInfo(int i, int a, double weight) {
+            this.i = i;
+            this.a = a;
+            this.weight = weight;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public void setPosterior(double prob) {
+        }
+
+        public int[] choose(int[] widget) {
+            widget[i] = a;
+            return widget;
+        }
+    }
+
+    // Random scores over the allowed starts and transitions (null: all)
+    static LinearChain newChain(int T, int K, boolean[] allowedStarts, boolean[][] allowedTransitions,
+                                Random random) {
+        LinearChain chain = new LinearChain(K, T);
+        if (allowedStarts != null)
+            chain.setAllowed(allowedStarts, allowedTransitions);
+        for (int a = 0; a < K; a++)
+            chain.startScores[a] = random.nextGaussian();
+        for (int k = 0; k < (T - 1) * K * K; k++)
+            chain.transitionScores[k] = 2 * random.nextGaussian();
+        return chain;
+    }
+
+    // Same hypergraph as ATaggingInferState.createHypergraph (nodes added
+    // depth-first), over the given starts and transitions (null: all)
+    static Hypergraph<int[]> newHypergraph(LinearChain chain, boolean[] allowedStarts,
+                                           boolean[][] allowedTransitions) {
+        Hypergraph<int[]> H = new Hypergraph<int[]>();
+        int K = chain.numLabels();
+        for (int a = 0; a < K; a++)
+            if (allowedStarts == null || allowedStarts[a])
+                H.addEdge(H.sumStartNode(), gen(H, chain, allowedTransitions, 0, a),
+                        new LabelInfo(0, a, chain.startScores[a]));
+        return H;
+    }
+
+    static Object gen(Hypergraph<int[]> H, LinearChain chain, boolean[][] allowedTransitions, int i, int a) {
+        if (i == chain.length() - 1)
+            return H.endNode;
+        String node = i + "," + a;
+        if (H.addSumNode(node)) {
+            for (int b = 0; b < chain.numLabels(); b++)
+                if (allowedTransitions == null || allowedTransitions[a][b])
+                    H.addEdge(node, gen(H, chain, allowedTransitions, i + 1, b), new LabelInfo(i + 1, b,
+                            chain.transitionScores[chain.transitionIndex(i + 1, a, b)]));
+        }
+        return node;
+    }
+
+    private void checkSameAsHypergraph(int T, int K, boolean sparse, long seed) {
+        Random random = new Random(seed);
+        boolean[] allowedStarts = null;
+        boolean[][] allowedTransitions = null;
+        if (sparse) {
+            allowedStarts = new boolean[K];
+            allowedTransitions = new boolean[K][K];
+            for (int a = 0; a < K; a++) {
+                allowedStarts[a] = a != 1;
+                for (int b = 0; b < K; b++)
+                    allowedTransitions[a][b] = b == a || random.nextInt(3) != 0;
+            }
+        }
+        LinearChain chain = newChain(T, K, allowedStarts, allowedTransitions, random);
+        Hypergraph<int[]> H = newHypergraph(chain, allowedStarts, allowedTransitions);
+
+        H.computePosteriors(false);
+        assertEquals(H.getLogZ(), chain.computeInside(), 1e-9);
+
+        int[] labels = new int[T];
+        Hypergraph.HyperpathResult<int[]> best = H.fetchBestHyperpath(new int[T]);
+        assertEquals(best.logWeight, chain.fetchBestLabels(labels), 1e-9);
+        assertTrue(Arrays.equals(best.widget, labels));
+
+        Random random1 = new Random(seed + 1), random2 = new Random(seed + 1);
+        for (int n = 0; n < 20; n++) {
+            Hypergraph.HyperpathResult<int[]> sample = H.fetchSampleHyperpath(random1, new int[T]);
+            assertEquals(sample.logWeight, chain.fetchSampleLabels(random2, labels), 1e-9);
+            assertTrue(Arrays.equals(sample.widget, labels));
+        }
+    }
+
+    @Test
+    public void sameAsHypergraph() {
+        for (long seed = 1; seed <= 10; seed++) {
+            checkSameAsHypergraph(9, 4, false, seed);
+            checkSameAsHypergraph(1, 3, false, seed);
+        }
+    }
+
+    @Test
+    public void sameAsHypergraphWithSparseTransitions() {
+        for (long seed = 1; seed <= 10; seed++)
+            checkSameAsHypergraph(12, 5, true, seed);
+    }
+
+    @Test
+    public void reusedChainMatchesNewOne() {
+        Random random = new Random(1);
+        boolean[] allowedStarts = {true, false, true, true};
+        boolean[][] allowedTransitions = new boolean[4][4];
+        for (int a = 0; a < 4; a++)
+            for (int b = 0; b < 4; b++)
+                allowedTransitions[a][b] = (a + b) % 3 != 0;
+        LinearChain reused = new LinearChain(4, 1);
+        reused.setAllowed(allowedStarts, allowedTransitions);
+        for (int T : new int[]{9, 3, 1, 14, 5}) {
+            LinearChain chain = new LinearChain(4, T);
+            chain.setAllowed(allowedStarts, allowedTransitions);
+            reused.setLength(T);
+            // Only the allowed scores are filled in the reused chain
+            for (int a : reused.getStarts())
+                chain.startScores[a] = reused.startScores[a] = random.nextGaussian();
+            for (int i = 1; i < T; i++)
+                for (int a = 0; a < 4; a++)
+                    for (int e = reused.getNextOffsets()[a]; e < reused.getNextOffsets()[a + 1]; e++) {
+                        int k = chain.transitionIndex(i, a, reused.getNexts()[e]);
+                        chain.transitionScores[k] = reused.transitionScores[k] = random.nextGaussian();
+                    }
+            reused.invalidate();
+            assertEquals(chain.computeInside(), reused.computeInside(), 0);
+            int[] labels1 = new int[T], labels2 = new int[T];
+            assertEquals(chain.fetchBestLabels(labels1), reused.fetchBestLabels(labels2), 0);
+            assertTrue(Arrays.equals(labels1, labels2));
+        }
+    }
+
+    @Test
+    public void prunedHypergraphKeepsBestLabels() {
+        for (long seed = 1; seed <= 10; seed++) {
+            LinearChain chain = newChain(15, 6, null, null, new Random(seed));
+            Hypergraph<int[]> H = newHypergraph(chain, null, null);
+            Hypergraph.PruneStats stats = H.prune(1, false);
+            assertTrue(stats.numPrunedEdges > 0);
+            int[] labels = new int[15];
+            double logWeight = chain.fetchBestLabels(labels);
+            Hypergraph.HyperpathResult<int[]> best = H.fetchBestHyperpath(new int[15]);
+            assertEquals(logWeight, best.logWeight, 1e-9);
+            assertTrue(Arrays.equals(labels, best.widget));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package cc.refectorie.user.kedarb.dynprog.fst;
+
+import cc.refectorie.user.kedarb.dynprog.types.ByteIndexer;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kedar
+ */
+public class MappedCorpusReaderTest {
+    private static File write(byte[] bytes) throws IOException {
+        File file = File.createTempFile("corpus", ".owpl");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        return file;
+    }
+
+    private static byte[] latin1(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < s.length(); i++)
+            bytes[i] = (byte) s.charAt(i);
+        return bytes;
+    }
+
+    @Test
+    public void readsOwplColumns() throws IOException {
+        File file = write(latin1("a X\nb Y\n\n\n c  X \n"));
+        ByteIndexer indexer = new ByteIndexer();
+        MappedCorpusReader reader = new MappedCorpusReader(file, TagOptions.DataFormat.owpl,
+                new int[]{0, -1}, indexer, true);
+        int[][] first = reader.next();
+        assertEquals(2, first[0].length);
+        assertEquals("a", indexer.get(first[0][0]));
+        assertEquals("Y", indexer.get(first[1][1]));
+        int[][] second = reader.next();
+        assertEquals(1, second[0].length);
+        // Leading whitespace: empty first field, as with String.split()
+        assertEquals("", indexer.get(second[0][0]));
+        assertEquals("X", indexer.get(second[1][0]));
+        assertFalse(reader.hasNext());
+    }
+
+    @Test
+    public void splitsFieldsAsStringSplit() throws IOException {
+        String[] lines = {"a b", "  a\tb  ", "\ta", "a \f b\r"};
+        StringBuilder text = new StringBuilder();
+        for (String line : lines)
+            text.append(line).append("\n  \n");
+        File file = write(latin1(text.toString()));
+        ByteIndexer indexer = new ByteIndexer();
+        MappedCorpusReader reader = new MappedCorpusReader(file, TagOptions.DataFormat.uiuc,
+                new int[]{0}, indexer, true);
+        for (String line : lines) {
+            String[] expected = line.split("\\s+");
+            int[] fields = reader.next()[0];
+            assertEquals(expected.length, fields.length);
+            for (int i = 0; i < fields.length; i++)
+                assertEquals(expected[i], indexer.get(fields[i]));
+        }
+        assertFalse(reader.hasNext());
+    }
+
+    @Test
+    public void closeStopsEarly() throws IOException {
+        File file = write(latin1("a X\n\nb Y\n"));
+        MappedCorpusReader reader = new MappedCorpusReader(file, TagOptions.DataFormat.owpl,
+                new int[]{0}, new ByteIndexer(), true);
+        assertTrue(reader.hasNext());
+        reader.close();
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    // 0xff and 0xfe bytes used to read as the end of the file and the
+    // pushed back sentinel
+    @Test
+    public void readsHighBytes() throws IOException {
+        File file = write(latin1("\u00ff X\n\u00fe Y\n\nb\u00ff Z\n"));
+        for (int windowSize : new int[]{1, 3, MappedCorpusReader.DEFAULT_WINDOW_SIZE}) {
+            ByteIndexer indexer = new ByteIndexer();
+            MappedCorpusReader reader = new MappedCorpusReader(file, TagOptions.DataFormat.owpl,
+                    new int[]{1}, indexer, true, windowSize);
+            int[][] first = reader.next();
+            assertEquals(2, first[0].length);
+            assertEquals("X", indexer.get(first[0][0]));
+            assertEquals("Y", indexer.get(first[0][1]));
+            assertTrue(reader.hasNext());
+            assertEquals("Z", indexer.get(reader.next()[0][0]));
+            assertFalse(reader.hasNext());
+        }
+    }
+}
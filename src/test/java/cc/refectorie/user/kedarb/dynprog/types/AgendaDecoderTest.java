@@ -0,0 +1,161 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kedar
+ */
+public class AgendaDecoderTest {
+    static class EdgeInfo implements Hypergraph.HyperedgeInfo<List<Integer>> {
+        final int id;
+        final double weight;
+        double posterior = 0;
+
+        EdgeInfo(int id, double weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public void setPosterior(double prob) {
+            posterior += prob;
+        }
+
+        public List<Integer> choose(List<Integer> widget) {
+            widget.add(id);
+            return widget;
+        }
+    }
+
+    // Build the same random graph (same seed) from a template cache
+    static Hypergraph<List<Integer>> newRandomGraph(long seed, int n, Hypergraph.TemplateCache templates,
+                                                    List<EdgeInfo> infos) {
+        Random random = new Random(seed);
+        Hypergraph<List<Integer>> H = templates.newHypergraph(n);
+        boolean[] prod = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            prod[i] = i > 0 && i % 4 == 0;
+            if (prod[i]) H.addProdNode((long) i);
+            else H.addSumNode((long) i);
+        }
+        for (int i = 0; i < n; i++) {
+            EdgeInfo info = new EdgeInfo(infos.size(), -5 - random.nextDouble());
+            infos.add(info);
+            H.addEdge(H.sumStartNode(), (long) i, info);
+        }
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < 2; k++) {
+                EdgeInfo info = new EdgeInfo(infos.size(), -random.nextDouble() * 3);
+                infos.add(info);
+                if (i + 2 >= n)
+                    H.addEdge((long) i, info);
+                else
+                    H.addEdge((long) i, (long) (i + 1 + k), info);
+            }
+        }
+        return H;
+    }
+
+    // Random DAG over n nodes (some of them prod nodes), with log-probability
+    // weights; edges go from a node to nodes after it or the end node
+    static Hypergraph<List<Integer>> newRandomGraph(Random random, int n) {
+        Hypergraph<List<Integer>> H = new Hypergraph<List<Integer>>();
+        boolean[] prod = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            prod[i] = i > 0 && random.nextInt(4) == 0;
+            if (prod[i]) H.addProdNode((long) i);
+            else H.addSumNode((long) i);
+        }
+        int id = 0;
+        for (int i = 0; i < n; i++)
+            H.addEdge(H.sumStartNode(), (long) i, new EdgeInfo(id++, -5 - random.nextDouble()));
+        for (int i = 0; i < n; i++) {
+            int numEdges = prod[i] ? 1 + random.nextInt(2) : 1 + random.nextInt(4);
+            for (int k = 0; k < numEdges; k++) {
+                EdgeInfo info = new EdgeInfo(id++, -random.nextDouble() * 3);
+                int numChildren = i + 1 < n ? random.nextInt(3) : 0;
+                if (numChildren == 0)
+                    H.addEdge((long) i, info);
+                else if (numChildren == 1)
+                    H.addEdge((long) i, (long) (i + 1 + random.nextInt(n - i - 1)), info);
+                else {
+                    int d1 = i + 1 + random.nextInt(n - i - 1), d2 = i + 1 + random.nextInt(n - i - 1);
+                    if (d1 == d2)
+                        H.addEdge((long) i, (long) d1, info);
+                    else
+                        H.addEdge((long) i, (long) d1, (long) d2, info);
+                }
+            }
+        }
+        return H;
+    }
+
+    @Test
+    public void bestFirstMatchesMaxScores() {
+        Random random = new Random(1);
+        for (int t = 0; t < 200; t++) {
+            Hypergraph<List<Integer>> H = newRandomGraph(random, 2 + random.nextInt(30));
+            Hypergraph.HyperpathResult<List<Integer>> bestFirst =
+                    H.fetchBestHyperpathBestFirst(new ArrayList<Integer>());
+            H.computePosteriors(true);
+            Hypergraph.HyperpathResult<List<Integer>> best = H.fetchBestHyperpath(new ArrayList<Integer>());
+            assertEquals(H.getLogZ(), bestFirst.logWeight, 1e-9);
+            assertEquals(best.logWeight, bestFirst.logWeight, 1e-9);
+            assertEquals(best.widget, bestFirst.widget);
+        }
+    }
+
+    @Test
+    public void posteriorsAfterBestFirstMatchMaxPass() {
+        Random random = new Random(2);
+        for (int t = 0; t < 100; t++) {
+            long seed = random.nextLong();
+            int n = 2 + random.nextInt(30);
+            Hypergraph<List<Integer>> H1 = newRandomGraph(new Random(seed), n);
+            Hypergraph<List<Integer>> H2 = newRandomGraph(new Random(seed), n);
+            H1.computePosteriorsBestFirst();
+            H1.fetchPosteriors(true);
+            H2.computePosteriors(true);
+            H2.fetchPosteriors(true);
+            assertEquals(H2.getLogZ(), H1.getLogZ(), 1e-9);
+            assertEquals(H2.fetchBestHyperpath(new ArrayList<Integer>()).widget,
+                    H1.fetchBestHyperpath(new ArrayList<Integer>()).widget);
+        }
+    }
+
+    @Test
+    public void bestFirstOnReplayedGraphs() {
+        Hypergraph.TemplateCache templates = new Hypergraph.TemplateCache();
+        for (long seed = 0; seed < 20; seed++) {
+            List<EdgeInfo> infos1 = new ArrayList<EdgeInfo>(), infos2 = new ArrayList<EdgeInfo>();
+            Hypergraph<List<Integer>> H1 = newRandomGraph(seed, 12, templates, infos1);
+            Hypergraph<List<Integer>> H2 = newRandomGraph(seed, 12, new Hypergraph.TemplateCache(), infos2);
+            H1.computePosteriorsBestFirst();
+            H1.fetchPosteriors(true);
+            H2.computePosteriors(true);
+            H2.fetchPosteriors(true);
+            assertEquals(H2.getLogZ(), H1.getLogZ(), 1e-9);
+            for (int k = 0; k < infos1.size(); k++)
+                assertEquals(infos2.get(k).posterior, infos1.get(k).posterior, 0);
+        }
+        assertEquals(1, templates.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPositiveWeights() {
+        Hypergraph<List<Integer>> H = new Hypergraph<List<Integer>>();
+        H.addSumNode(0L);
+        H.addEdge(H.sumStartNode(), 0L, new EdgeInfo(0, -1));
+        H.addEdge(0L, new EdgeInfo(1, 0.5));
+        H.fetchBestHyperpathBestFirst(new ArrayList<Integer>());
+    }
+}
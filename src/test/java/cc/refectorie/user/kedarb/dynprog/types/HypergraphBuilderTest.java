@@ -0,0 +1,161 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kedar
+ */
+public class HypergraphBuilderTest {
+    static class WeightInfo implements Hypergraph.HyperedgeInfo<int[]> {
+        final double weight;
+
+        WeightInfo(double weight) {
+            this.weight = weight;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public void setPosterior(double prob) {
+        }
+
+        public int[] choose(int[] widget) {
+            return widget;
+        }
+    }
+
+    // Expands nodes from a table: node -> type and children of each edge
+    // ("END" for the end node); nodes missing from the table have no edges
+    static class TableExpander implements HypergraphBuilder.Expander<int[]> {
+        final HashMap<String, Hypergraph.NodeType> types = new HashMap<String, Hypergraph.NodeType>();
+        final HashMap<String, String[][]> edges = new HashMap<String, String[][]>();
+        int numExpanded = 0;
+
+        TableExpander node(String node, Hypergraph.NodeType type, String[]... children) {
+            types.put(node, type);
+            edges.put(node, children);
+            return this;
+        }
+
+        public Hypergraph.NodeType expand(Object node, HypergraphBuilder<int[]> builder) {
+            numExpanded++;
+            if (!types.containsKey(node))
+                return Hypergraph.NodeType.sum;
+            for (String[] children : edges.get(node)) {
+                Object dest1 = children.length > 0 ? child(children[0], builder) : builder.endNode;
+                Object dest2 = children.length > 1 ? child(children[1], builder) : builder.endNode;
+                builder.addEdge(dest1, dest2, new WeightInfo(0));
+            }
+            return types.get(node);
+        }
+
+        private Object child(String node, HypergraphBuilder<int[]> builder) {
+            return node.equals("END") ? builder.endNode : node;
+        }
+    }
+
+    static String[] to(String... children) {
+        return children;
+    }
+
+    static final Hypergraph.NodeType sum = Hypergraph.NodeType.sum, prod = Hypergraph.NodeType.prod;
+
+    @Test
+    public void liveChildOfDeadParentIsLeftOut() {
+        // A dies (prod node with the dead child D), which leaves C, a live
+        // node, without a live parent
+        TableExpander expander = new TableExpander()
+                .node("root", sum, to("A"), to("B"))
+                .node("A", prod, to("C"), to("D"))
+                .node("B", sum, to("END"))
+                .node("C", sum, to("END"));
+        Hypergraph<int[]> H = new Hypergraph<int[]>();
+        HypergraphBuilder<int[]> builder = new HypergraphBuilder<int[]>(H, expander);
+        assertTrue(builder.build("root"));
+        assertEquals(5, expander.numExpanded);
+        assertEquals(2, builder.numAliveNodes()); // root, B
+        assertEquals(3, builder.numDeadNodes()); // A, C, D
+        assertEquals(4, builder.numDeadEdges()); // root->A, A->C, A->D, C->END
+        assertEquals(3, H.numNodes()); // start (root), B, end
+        H.computePosteriors(false);
+        assertEquals(0, H.getLogZ(), 1e-12);
+    }
+
+    @Test
+    public void deadEdgesOfLiveSumNodeAreLeftOut() {
+        // Each node has a dead edge (to X, Y) besides its live ones; the dead
+        // ones share children with live nodes
+        TableExpander expander = new TableExpander()
+                .node("root", sum, to("A"), to("B"), to("X"))
+                .node("A", sum, to("C"), to("Y"))
+                .node("B", prod, to("C", "C"), to("END"))
+                .node("X", prod, to("C"), to("Y"))
+                .node("C", sum, to("END"), to("END"), to("Y"));
+        Hypergraph<int[]> H = new Hypergraph<int[]>();
+        HypergraphBuilder<int[]> builder = new HypergraphBuilder<int[]>(H, expander);
+        assertTrue(builder.build("root"));
+        assertEquals(4, builder.numAliveNodes()); // root, A, B, C
+        assertEquals(2, builder.numDeadNodes()); // X, Y
+        assertEquals(5, builder.numDeadEdges()); // root->X, A->Y, X->C, X->Y, C->Y
+        assertEquals(2, H.numEdges(H.sumStartNode()));
+        assertEquals(1, H.numEdges("A"));
+        assertEquals(2, H.numEdges("B"));
+        assertEquals(2, H.numEdges("C"));
+        // C has 2 paths, A as many, and B (prod) 2 * 2 * 1
+        H.computePosteriors(false);
+        assertEquals(Math.log(6), H.getLogZ(), 1e-12);
+    }
+
+    @Test
+    public void deadRootAddsNothing() {
+        TableExpander expander = new TableExpander()
+                .node("root", sum, to("A"))
+                .node("A", prod, to("B"), to("END"));
+        Hypergraph<int[]> H = new Hypergraph<int[]>();
+        HypergraphBuilder<int[]> builder = new HypergraphBuilder<int[]>(H, expander);
+        assertFalse(builder.build("root"));
+        assertEquals(0, builder.numAliveNodes());
+        assertEquals(2, H.numNodes());
+    }
+
+    @Test
+    public void deepChain() {
+        final int n = 200000;
+        HypergraphBuilder.Expander<int[]> expander = new HypergraphBuilder.Expander<int[]>() {
+            public Hypergraph.NodeType expand(Object node, HypergraphBuilder<int[]> builder) {
+                int i = (Integer) node;
+                if (i == n)
+                    builder.addEdge(new WeightInfo(0));
+                else
+                    builder.addEdge(i + 1, new WeightInfo(-1));
+                return Hypergraph.NodeType.sum;
+            }
+        };
+        Hypergraph<int[]> H = new Hypergraph<int[]>();
+        HypergraphBuilder<int[]> builder = new HypergraphBuilder<int[]>(H, expander);
+        assertTrue(builder.build(0));
+        assertEquals(n + 1, builder.numAliveNodes());
+        H.computePosteriors(false);
+        assertEquals(-n, H.getLogZ(), 1e-6);
+    }
+
+    @Test
+    public void cycleIsReported() {
+        TableExpander expander = new TableExpander()
+                .node("root", sum, to("A"))
+                .node("A", sum, to("B"), to("END"))
+                .node("B", sum, to("A"));
+        HypergraphBuilder<int[]> builder = new HypergraphBuilder<int[]>(new Hypergraph<int[]>(), expander);
+        try {
+            builder.build("root");
+            fail("expected a cycle");
+        } catch (IllegalStateException e) {
+            assertEquals("Hypergraph has a cycle through node: A", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package cc.refectorie.user.kedarb.dynprog.types;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kedar
+ */
+public class HypergraphTest {
+    static class LabelInfo implements Hypergraph.HyperedgeInfo<int[]> {
+        final int i, a;
+        final double weight;
+
+        LabelInfo(int i, int a, double weight) {
+            this.i = i;
+            this.a = a;
+            this.weight = weight;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public void setPosterior(double prob) {
+        }
+
+        public int[] choose(int[] widget) {
+            if (i >= 0)
+                widget[i] = a;
+            return widget;
+        }
+    }
+
+    // Label chain: node (i, a) is label a at position i; weights drawn from seed
+    static Hypergraph<int[]> newChain(Hypergraph.TemplateCache cache, int N, int L, long seed) {
+        return newChain(cache, N, L, chainWeights(N, L, seed));
+    }
+
+    // Edge weights of a chain, in the order its edges are added: starts,
+    // transitions (i, a, b), then the edges to the end node
+    static double[] chainWeights(int N, int L, long seed) {
+        Random random = new Random(seed);
+        double[] weights = new double[L + (N - 1) * L * L + L];
+        int k = 0;
+        for (int a = 0; a < L; a++)
+            weights[k++] = random.nextGaussian();
+        for (int i = 1; i < N; i++)
+            for (int a = 0; a < L; a++)
+                for (int b = 0; b < L; b++)
+                    weights[k++] = 2 * random.nextGaussian();
+        return weights;
+    }
+
+    static Hypergraph<int[]> newChain(Hypergraph.TemplateCache cache, int N, int L, double[] weights) {
+        Hypergraph<int[]> H = cache != null ? cache.<int[]>newHypergraph(N * 1000 + L)
+                : new Hypergraph<int[]>();
+        H.setMaxKey(N * L);
+        for (int i = 0; i < N; i++)
+            for (int a = 0; a < L; a++)
+                H.addSumNode((long) (i * L + a));
+        int k = 0;
+        for (int a = 0; a < L; a++)
+            H.addEdge(H.sumStartNode(), (long) a, new LabelInfo(0, a, weights[k++]));
+        for (int i = 1; i < N; i++)
+            for (int a = 0; a < L; a++)
+                for (int b = 0; b < L; b++)
+                    H.addEdge((long) ((i - 1) * L + a), (long) (i * L + b),
+                            new LabelInfo(i, b, weights[k++]));
+        for (int a = 0; a < L; a++)
+            H.addEdge((long) ((N - 1) * L + a), new LabelInfo(-1, 0, weights[k++]));
+        return H;
+    }
+
+    // Log weight of the hyperpath of a chain that picks labels
+    static double logWeight(double[] weights, int L, int[] labels) {
+        double logWeight = weights[labels[0]];
+        for (int i = 1; i < labels.length; i++)
+            logWeight += weights[L + ((i - 1) * L + labels[i - 1]) * L + labels[i]];
+        return logWeight + weights[weights.length - L + labels[labels.length - 1]];
+    }
+
+    // All L^N label sequences, the first label most significant
+    static int[][] allLabels(int N, int L) {
+        int n = (int) Math.pow(L, N);
+        int[][] all = new int[n][N];
+        for (int s = 0; s < n; s++)
+            for (int i = N - 1, r = s; i >= 0; i--, r /= L)
+                all[s][i] = r % L;
+        return all;
+    }
+
+    static Hypergraph.WidgetFactory<int[]> newWidgets(final int N) {
+        return new Hypergraph.WidgetFactory<int[]>() {
+            public int[] newWidget() {
+                return new int[N];
+            }
+        };
+    }
+
+    @Test
+    public void templateReplayMatchesFreshGraph() {
+        Hypergraph.TemplateCache cache = new Hypergraph.TemplateCache();
+        newChain(cache, 12, 4, 1).compile();
+        Hypergraph<int[]> replayed = newChain(cache, 12, 4, 2);
+        Hypergraph<int[]> fresh = newChain(null, 12, 4, 2);
+        assertEquals(1, cache.size());
+        replayed.computePosteriors(false);
+        fresh.computePosteriors(false);
+        assertEquals(fresh.getLogZ(), replayed.getLogZ(), 0);
+        int[] best1 = replayed.fetchBestHyperpath(new int[12]).widget;
+        int[] best2 = fresh.fetchBestHyperpath(new int[12]).widget;
+        assertTrue(Arrays.equals(best2, best1));
+    }
+
+    @Test
+    public void numEdgesOfTemplateReplayedGraph() {
+        Hypergraph.TemplateCache cache = new Hypergraph.TemplateCache();
+        newChain(cache, 6, 3, 1).compile();
+        Hypergraph<int[]> replayed = newChain(cache, 6, 3, 2);
+        Hypergraph<int[]> fresh = newChain(null, 6, 3, 2);
+        assertEquals(fresh.numEdges(fresh.sumStartNode()), replayed.numEdges(replayed.sumStartNode()));
+        for (int k = 0; k < 6 * 3; k++) {
+            assertEquals(fresh.numEdges((long) k), replayed.numEdges((long) k));
+            replayed.assertNonEmpty((long) k);
+        }
+        assertEquals(0, replayed.numEdges(replayed.endNode));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void startNodeTypeMustMatchTemplate() {
+        Hypergraph.TemplateCache cache = new Hypergraph.TemplateCache();
+        newChain(cache, 4, 2, 1).compile();
+        cache.<int[]>newHypergraph(4 * 1000 + 2).prodStartNode();
+    }
+
+    @Test
+    public void rejectsKeysOutsideMaxKey() {
+        Hypergraph<int[]> H = new Hypergraph<int[]>();
+        H.setMaxKey(10);
+        H.addSumNode(9L);
+        long[] badKeys = {10, -1, 1L << 32};
+        for (long key : badKeys) {
+            try {
+                H.addSumNode(key);
+                fail("Accepted key " + key);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                H.numEdges(key);
+                fail("Looked up key " + key);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void semiringInsidePasses() {
+        Hypergraph<int[]> H = newChain(null, 7, 3, 4);
+        double logZ = H.computeInside(Semiring.LOG_SUM);
+        assertEquals(7 * Math.log(3), H.computeInside(Semiring.COUNTING), 1e-9);
+        assertEquals(1.0, H.computeInside(Semiring.BOOLEAN), 0);
+        // Same operations as LOG_SUM, but through the generic loop
+        Semiring logSum = new Semiring() {
+            public double zero() {
+                return Semiring.LOG_SUM.zero();
+            }
+
+            public double one() {
+                return Semiring.LOG_SUM.one();
+            }
+
+            public double plus(double a, double b) {
+                return Semiring.LOG_SUM.plus(a, b);
+            }
+
+            public double times(double a, double b) {
+                return Semiring.LOG_SUM.times(a, b);
+            }
+
+            public double fromLogWeight(double logWeight) {
+                return logWeight;
+            }
+        };
+        assertEquals(logZ, H.computeInside(logSum), 1e-9);
+    }
+
+    @Test
+    public void pruneTemplateReplayedGraph() {
+        Hypergraph.TemplateCache cache = new Hypergraph.TemplateCache();
+        newChain(cache, 15, 5, 1).compile();
+        Hypergraph<int[]> replayed = newChain(cache, 15, 5, 3);
+        Hypergraph<int[]> fresh = newChain(null, 15, 5, 3);
+        Hypergraph.PruneStats stats1 = replayed.prune(3, true);
+        Hypergraph.PruneStats stats2 = fresh.prune(3, true);
+        assertTrue(stats1.numPrunedEdges > 0);
+        assertEquals(stats2.numPrunedNodes, stats1.numPrunedNodes);
+        assertEquals(stats2.numPrunedEdges, stats1.numPrunedEdges);
+        assertEquals(stats2.logZAfter, stats1.logZAfter, 0);
+        Hypergraph.HyperpathResult<int[]> best1 = replayed.fetchBestHyperpath(new int[15]);
+        Hypergraph.HyperpathResult<int[]> best2 = fresh.fetchBestHyperpath(new int[15]);
+        assertTrue(Arrays.equals(best2.widget, best1.widget));
+        assertEquals(best2.logWeight, best1.logWeight, 0);
+    }
+
+    @Test
+    public void pruningKeepsBestHyperpath() {
+        for (long seed = 1; seed <= 20; seed++) {
+            Hypergraph<int[]> full = newChain(null, 20, 6, seed);
+            Hypergraph<int[]> pruned = newChain(null, 20, 6, seed);
+            Hypergraph.PruneStats stats = pruned.prune(1, false);
+            assertTrue(stats.numPrunedNodes > 0);
+            Hypergraph.HyperpathResult<int[]> best1 = full.fetchBestHyperpath(new int[20]);
+            Hypergraph.HyperpathResult<int[]> best2 = pruned.fetchBestHyperpath(new int[20]);
+            assertTrue(Arrays.equals(best1.widget, best2.widget));
+            assertEquals(best1.logWeight, best2.logWeight, 1e-9);
+        }
+    }
+
+    @Test
+    public void kBestHyperpathsInOrder() {
+        int N = 4, L = 3;
+        double[] weights = chainWeights(N, L, 5);
+        int[][] all = allLabels(N, L);
+        double[] expected = new double[all.length];
+        for (int s = 0; s < all.length; s++)
+            expected[s] = logWeight(weights, L, all[s]);
+        Arrays.sort(expected);
+        // Asking for more than there are returns each hyperpath once
+        List<Hypergraph.HyperpathResult<int[]>> kBest =
+                newChain(null, N, L, weights).fetchKBestHyperpaths(all.length + 10, newWidgets(N));
+        assertEquals(all.length, kBest.size());
+        HashSet<String> seen = new HashSet<String>();
+        for (int r = 0; r < kBest.size(); r++) {
+            Hypergraph.HyperpathResult<int[]> result = kBest.get(r);
+            assertTrue(seen.add(Arrays.toString(result.widget)));
+            assertEquals(logWeight(weights, L, result.widget), result.logWeight, 1e-9);
+            assertEquals(expected[all.length - 1 - r], result.logWeight, 1e-9);
+        }
+        // The first k are the same for a smaller k, and the best one is the best hyperpath
+        Hypergraph<int[]> H = newChain(null, N, L, weights);
+        List<Hypergraph.HyperpathResult<int[]>> top = H.fetchKBestHyperpaths(5, newWidgets(N));
+        assertEquals(5, top.size());
+        for (int r = 0; r < 5; r++)
+            assertTrue(Arrays.equals(kBest.get(r).widget, top.get(r).widget));
+        assertTrue(Arrays.equals(H.fetchBestHyperpath(new int[N]).widget, top.get(0).widget));
+    }
+
+    // Labels of a chain hyperpath from the ids of its edges (ids are in order
+    // of addEdge, as in chainWeights)
+    static int[] labelsOfEdges(int N, int L, int[] edges, int numEdges) {
+        int[] labels = new int[N];
+        for (int j = 0; j < numEdges; j++) {
+            int k = edges[j];
+            if (k < L)
+                labels[0] = k;
+            else if (k < L + (N - 1) * L * L)
+                labels[(k - L) / (L * L) + 1] = (k - L) % L;
+        }
+        return labels;
+    }
+
+    @Test
+    public void batchedSamplesFollowPosterior() {
+        final int N = 3, L = 3, n = 30000;
+        final double[] weights = chainWeights(N, L, 7);
+        int[][] all = allLabels(N, L);
+        Hypergraph<int[]> H = newChain(null, N, L, weights);
+        H.computePosteriors(false);
+        final double logZ = H.getLogZ();
+        final int[] counts = new int[all.length];
+        final int[] numSamples = new int[1];
+        H.fetchSampleHyperpaths(new Random(3), n, new Hypergraph.HyperpathSampleSink() {
+            public void sample(int index, int[] edges, int numEdges, double logWeight) {
+                assertEquals(numSamples[0]++, index);
+                assertEquals(N + 1, numEdges);
+                int[] labels = labelsOfEdges(N, L, edges, numEdges);
+                assertEquals(logWeight(weights, L, labels), logWeight, 1e-9);
+                int s = 0;
+                for (int i = 0; i < N; i++)
+                    s = s * L + labels[i];
+                counts[s]++;
+            }
+        });
+        assertEquals(n, numSamples[0]);
+        for (int s = 0; s < all.length; s++) {
+            double p = Math.exp(logWeight(weights, L, all[s]) - logZ);
+            assertEquals(Arrays.toString(all[s]), p, (double) counts[s] / n, 0.015);
+        }
+    }
+
+    @Test
+    public void sampleSinkMatchesWidgets() {
+        final int N = 6, L = 4;
+        Hypergraph<int[]> H = newChain(null, N, L, 8);
+        List<Hypergraph.HyperpathResult<int[]>> samples = H.fetchSampleHyperpaths(new Random(9), 50, newWidgets(N));
+        final List<int[]> sunk = new ArrayList<int[]>();
+        H.fetchSampleHyperpaths(new Random(9), 50, new Hypergraph.HyperpathSampleSink() {
+            public void sample(int index, int[] edges, int numEdges, double logWeight) {
+                sunk.add(labelsOfEdges(N, L, edges, numEdges));
+            }
+        });
+        assertEquals(50, sunk.size());
+        for (int s = 0; s < 50; s++)
+            assertTrue(Arrays.equals(samples.get(s).widget, sunk.get(s)));
+    }
+
+    @Test
+    public void deepChainOnSmallStack() throws InterruptedException {
+        final int n = 200000;
+        final double[] logZ = {Double.NaN};
+        final Throwable[] error = new Throwable[1];
+        // Far less stack than a recursive walk down the chain would need
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    Hypergraph<int[]> H = new Hypergraph<int[]>();
+                    H.setMaxKey(n);
+                    for (int i = 0; i < n; i++)
+                        H.addSumNode((long) i);
+                    H.addEdge(H.sumStartNode(), 0L, new LabelInfo(-1, 0, 0));
+                    for (int i = 0; i + 1 < n; i++)
+                        H.addEdge((long) i, (long) (i + 1), new LabelInfo(-1, 0, -1));
+                    H.addEdge((long) (n - 1), new LabelInfo(-1, 0, 0));
+                    H.computePosteriors(false);
+                    logZ[0] = H.getLogZ();
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        }, "deep", 1 << 17);
+        thread.start();
+        thread.join();
+        assertNull(error[0]);
+        assertEquals(-(n - 1), logZ[0], 1e-6);
+    }
+
+    @Test
+    public void cycleIsReported() {
+        Hypergraph<int[]> H = new Hypergraph<int[]>();
+        H.addSumNode("A");
+        H.addSumNode("B");
+        H.addEdge(H.sumStartNode(), "A");
+        H.addEdge("A", "B");
+        H.addEdge("A", H.endNode);
+        H.addEdge("B", "A");
+        try {
+            H.computePosteriors(false);
+            fail("expected a cycle");
+        } catch (IllegalStateException e) {
+            assertEquals("Hypergraph has a cycle through node: A", e.getMessage());
+        }
+    }
+
+    // Posterior of each edge, by id
+    static double[] edgePosteriors(Hypergraph<int[]> H, int numEdges) {
+        final double[] posteriors = new double[numEdges];
+        H.fetchPosteriors(new Hypergraph.EdgePosteriorSink() {
+            public void setPosterior(int edge, double prob) {
+                posteriors[edge] = prob;
+            }
+        }, 0);
+        return posteriors;
+    }
+
+    @Test
+    public void updatedEdgeWeightsMatchFreshGraph() {
+        int N = 10, L = 4;
+        double[] weights = chainWeights(N, L, 1);
+        Hypergraph<int[]> H = newChain(null, N, L, weights);
+        H.computePosteriors(false);
+        H.computePosteriors(true);
+        Random random = new Random(2);
+        for (int round = 0; round < 10; round++) {
+            // a few edges anywhere, including the starts and the edges to the end node
+            for (int j = 0; j < 1 + round % 4; j++) {
+                int edge = random.nextInt(weights.length);
+                weights[edge] = 3 * random.nextGaussian();
+                H.updateEdgeWeight(edge, weights[edge]);
+            }
+            Hypergraph<int[]> fresh = newChain(null, N, L, weights);
+            boolean viterbi = round % 2 == 1;
+            H.computePosteriors(viterbi);
+            fresh.computePosteriors(viterbi);
+            assertEquals(fresh.getLogZ(), H.getLogZ(), 0);
+            Hypergraph.HyperpathResult<int[]> best1 = H.fetchBestHyperpath(new int[N]);
+            Hypergraph.HyperpathResult<int[]> best2 = fresh.fetchBestHyperpath(new int[N]);
+            assertTrue(Arrays.equals(best2.widget, best1.widget));
+            assertEquals(best2.logWeight, best1.logWeight, 0);
+            if (!viterbi)
+                assertTrue(Arrays.equals(edgePosteriors(fresh, weights.length), edgePosteriors(H, weights.length)));
+        }
+    }
+
+    @Test
+    public void parallelPassesMatchSequential() {
+        int N = 30, L = 8;
+        double[] weights = chainWeights(N, L, 4);
+        ExecutorService executor = Hypergraph.newExecutor(4);
+        try {
+            for (boolean viterbi : new boolean[]{false, true}) {
+                Hypergraph<int[]> sequential = newChain(null, N, L, weights);
+                Hypergraph<int[]> parallel = newChain(null, N, L, weights);
+                parallel.setExecutor(executor, 4, 1);
+                sequential.computePosteriors(viterbi);
+                parallel.computePosteriors(viterbi);
+                assertEquals(sequential.getLogZ(), parallel.getLogZ(), 0);
+                assertTrue(Arrays.equals(sequential.fetchBestHyperpath(new int[N]).widget,
+                        parallel.fetchBestHyperpath(new int[N]).widget));
+                if (!viterbi)
+                    assertTrue(Arrays.equals(edgePosteriors(sequential, weights.length),
+                            edgePosteriors(parallel, weights.length)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void fusedELogZEntropyMatchesSeparatePass() {
+        int N = 5, L = 3;
+        double[] weights = chainWeights(N, L, 6);
+        Hypergraph<int[]> separate = newChain(null, N, L, weights);
+        separate.computePosteriors(false);
+        separate.computeELogZEntropy(false);
+        Hypergraph<int[]> fusedSink = newChain(null, N, L, weights);
+        fusedSink.computePosteriors(false);
+        edgePosteriors(fusedSink, weights.length);
+        Hypergraph<int[]> fusedInfos = newChain(null, N, L, weights);
+        fusedInfos.computePosteriors(false);
+        fusedInfos.fetchPosteriors(false);
+        // E_q[log weight] and entropy of q by enumeration
+        double logZ = separate.getLogZ(), elogZ = 0, entropy = 0;
+        for (int[] labels : allLabels(N, L)) {
+            double logWeight = logWeight(weights, L, labels);
+            double p = Math.exp(logWeight - logZ);
+            elogZ += p * logWeight;
+            entropy -= p * (logWeight - logZ);
+        }
+        assertEquals(elogZ, separate.getELogZ(), 1e-9);
+        assertEquals(entropy, separate.getEntropy(), 1e-9);
+        for (Hypergraph<int[]> H : Arrays.asList(fusedSink, fusedInfos)) {
+            assertEquals(separate.getELogZ(), H.getELogZ(), 1e-9);
+            assertEquals(separate.getEntropy(), H.getEntropy(), 1e-9);
+        }
+    }
+}
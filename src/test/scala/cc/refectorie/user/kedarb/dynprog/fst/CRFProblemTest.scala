@@ -0,0 +1,240 @@
+package cc.refectorie.user.kedarb.dynprog.fst
+
+import cc.refectorie.user.kedarb.dynprog.{Options, LearnOptions}
+import org.junit.Test
+import org.junit.Assert._
+import java.io.{File, PrintStream}
+import java.util.Random
+
+/**
+ * Batch CRF objective: the same value and gradient however the labeled
+ * examples are sharded, and whether it is computed from feature hyperedges
+ * on the flat parameters or through Params counts.
+ * The same with linear chains instead of hypergraphs. Online mini-batches:
+ * the same weights however many threads share them. Label trigrams: with
+ * zero weights, the same objective as first-order chains.
+ *
+ * @author kedar
+ */
+class CRFProblemTest {
+  // A few short citations in owpl format: label and word on each line
+  def newDataFile: File = {
+    val file = File.createTempFile("crf", ".owpl")
+    file.deleteOnExit
+    val out = new PrintStream(file)
+    val random = new Random(1)
+    val labels = Array("author", "title", "date")
+    val words = Array("smith", "j.", "learning", "models", "of", "text", "1999", "(2001)")
+    for (s <- 0 until 12) {
+      for (i <- 0 until 2 + random.nextInt(6))
+        out.println(labels(math.min(i / 2, 2)) + " " + words(random.nextInt(words.length)))
+      out.println
+    }
+    out.close
+    file
+  }
+
+  def newProblem(sparseTransitions: Boolean, orders: Int*) = {
+    val gen_opts = new Options
+    gen_opts.labeledFile = newDataFile.getPath
+    val seqtag_opts = new TagOptions
+    seqtag_opts.sparseTransitions = sparseTransitions
+    if (orders.nonEmpty) seqtag_opts.orders = orders.toArray
+    new CRFProblem(gen_opts, seqtag_opts)
+  }
+
+  def randomParameters(n: Int, seed: Long) = {
+    val random = new Random(seed)
+    Array.fill(n)(random.nextGaussian)
+  }
+
+  def assertClose(expected: (Double, Array[Double]), actual: (Double, Array[Double])): Unit = {
+    assertEquals(expected._1, actual._1, 1e-8 * math.max(1, math.abs(expected._1)))
+    assertTrue(expected._2.length == actual._2.length)
+    for (j <- 0 until expected._2.length)
+      assertEquals("gradient(" + j + ")", expected._2(j), actual._2(j), 1e-8)
+  }
+
+  // Both kinds of hypergraphs are built (and their templates reused) for the same lengths on one
+  // problem, in either order
+  def checkFlatGradient(sparseTransitions: Boolean): Unit = {
+    val problem = newProblem(sparseTransitions)
+    val model = problem.newModel
+    model.createDictionary
+    model.preInit
+    model.init(Options.InitType.random, new Random(1))
+    val opts = problem.seqtag_opts
+    def evaluate(featureEdges: Boolean, parameters: Array[Double]) = {
+      opts.featureEdges = featureEdges
+      val learner = new problem.BatchModelLearner(model, new LearnOptions)
+      learner.setParameters(parameters)
+      (learner.getValue, learner.getGradient.clone)
+    }
+    for (seed <- 1 to 3) {
+      val parameters = randomParameters(new problem.BatchModelLearner(model, new LearnOptions).getNumParameters, seed)
+      val expected = evaluate(false, parameters)
+      assertClose(expected, evaluate(true, parameters))
+      assertClose(expected, evaluate(false, parameters))
+    }
+    assertTrue(problem.hypergraphTemplates.size > 0)
+    assertTrue(problem.featureHypergraphTemplates.size > 0)
+  }
+
+  @Test def flatGradientMatchesParamsGradient: Unit = checkFlatGradient(false)
+
+  @Test def flatGradientMatchesParamsGradientWithSparseTransitions: Unit = checkFlatGradient(true)
+
+  // The labeled examples split into 5 shards (summed up in a fixed order) give the same objective
+  // as a single shard, with and without feature hyperedges
+  def checkShards(featureEdges: Boolean): Unit = {
+    val problem = newProblem(false)
+    val model = problem.newModel
+    model.createDictionary
+    model.preInit
+    model.init(Options.InitType.random, new Random(1))
+    problem.seqtag_opts.featureEdges = featureEdges
+    def newLearner(numShards: Int) = {
+      val lopts = new LearnOptions
+      lopts.numShards = numShards
+      new problem.BatchModelLearner(model, lopts)
+    }
+    val unsharded = newLearner(1)
+    val sharded = newLearner(5)
+    assertTrue(unsharded.flatGradient == featureEdges)
+    def evaluate(learner: problem.BatchModelLearner, parameters: Array[Double]) = {
+      learner.setParameters(parameters)
+      (learner.getValue, learner.getGradient.clone)
+    }
+    for (seed <- 1 to 3) {
+      val parameters = randomParameters(unsharded.getNumParameters, seed)
+      assertClose(evaluate(unsharded, parameters), evaluate(sharded, parameters))
+    }
+  }
+
+  @Test def shardedGradientMatchesUnsharded: Unit = checkShards(false)
+
+  @Test def shardedFlatGradientMatchesUnsharded: Unit = checkShards(true)
+
+  // Flat gradients have no temperature: a learner that would anneal is rejected
+  @Test def flatGradientRejectsTemperature: Unit = {
+    val problem = newProblem(false)
+    val model = problem.newModel
+    model.createDictionary
+    model.preInit
+    model.init(Options.InitType.random, new Random(1))
+    problem.seqtag_opts.featureEdges = true
+    val lopts = new LearnOptions
+    lopts.initTemperature = 2
+    try {
+      new problem.BatchModelLearner(model, lopts)
+      fail("expected an error")
+    } catch {
+      case e: RuntimeException => assertTrue(e.getMessage.contains("Temperature"))
+    }
+  }
+
+  // The dense chains (one per thread, reused across sequences of all lengths) give the same
+  // objective as the hypergraphs
+  def checkLinearChain(sparseTransitions: Boolean): Unit = {
+    val problem = newProblem(sparseTransitions)
+    val model = problem.newModel
+    model.createDictionary
+    model.preInit
+    model.init(Options.InitType.random, new Random(1))
+    val opts = problem.seqtag_opts
+    def evaluate(linearChain: Boolean, parameters: Array[Double]) = {
+      opts.linearChain = linearChain
+      val learner = new problem.BatchModelLearner(model, new LearnOptions)
+      learner.setParameters(parameters)
+      (learner.getValue, learner.getGradient.clone)
+    }
+    for (seed <- 1 to 3) {
+      val parameters = randomParameters(new problem.BatchModelLearner(model, new LearnOptions).getNumParameters, seed)
+      assertClose(evaluate(false, parameters), evaluate(true, parameters))
+    }
+  }
+
+  @Test def linearChainMatchesHypergraph: Unit = checkLinearChain(false)
+
+  @Test def linearChainMatchesHypergraphWithSparseTransitions: Unit = checkLinearChain(true)
+
+  // Value and gradient of a batch learner on a problem over the same data
+  def newBatchObjective(sparseTransitions: Boolean, orders: Int*) = {
+    val problem = newProblem(sparseTransitions, orders: _*)
+    val model = problem.newModel
+    model.createDictionary
+    model.preInit
+    model.init(Options.InitType.random, new Random(1))
+    val learner = new problem.BatchModelLearner(model, new LearnOptions)
+    (learner.getNumParameters, {
+      parameters: Array[Double] =>
+        learner.setParameters(parameters)
+        (learner.getValue, learner.getGradient.clone)
+    })
+  }
+
+  // Trigram weights come after all the others: set to zero, they leave the objective and the
+  // other coordinates of the gradient as they are; their gradient matches finite differences
+  def checkTrigrams(sparseTransitions: Boolean): Unit = {
+    val (n1, evaluate1) = newBatchObjective(sparseTransitions, 0, 1)
+    val (n2, evaluate2) = newBatchObjective(sparseTransitions, 0, 1, 2)
+    assertTrue(n2 > n1)
+    for (seed <- 1 to 2) {
+      val parameters = randomParameters(n1, seed)
+      val expected = evaluate1(parameters)
+      val actual = evaluate2(parameters ++ new Array[Double](n2 - n1))
+      assertEquals(expected._1, actual._1, 1e-8 * math.max(1, math.abs(expected._1)))
+      for (j <- 0 until n1)
+        assertEquals("gradient(" + j + ")", expected._2(j), actual._2(j), 1e-8)
+    }
+    val parameters = randomParameters(n2, 3)
+    val gradient = evaluate2(parameters)._2
+    val h = 1e-5
+    for (j <- n1 until n2) {
+      val plus = parameters.clone
+      plus(j) += h
+      val minus = parameters.clone
+      minus(j) -= h
+      val difference = (evaluate2(plus)._1 - evaluate2(minus)._1) / (2 * h)
+      assertEquals("gradient(" + j + ")", difference, gradient(j), 1e-4 * math.max(1, math.abs(difference)))
+    }
+  }
+
+  @Test def trigramsMatchFirstOrder: Unit = checkTrigrams(false)
+
+  @Test def trigramsMatchFirstOrderWithSparseTransitions: Unit = checkTrigrams(true)
+
+  // Weights after numIters online iterations with mini-batches of 4 examples
+  def learnOnline(numIters: Int, numThreads: Int, hogwild: Boolean): Array[Double] = {
+    val problem = newProblem(false)
+    val model = problem.newModel
+    model.createDictionary
+    model.preInit
+    model.init(Options.InitType.random, new Random(1))
+    val lopts = new LearnOptions
+    lopts.online = true
+    lopts.numIters = numIters
+    lopts.miniBatchSize = 4
+    lopts.numThreads = numThreads
+    lopts.hogwild = hogwild
+    new problem.OnlineModelLearner(model, lopts).learn("online")
+    model.params.getWts.flatMap(_.getWeights)
+  }
+
+  @Test def miniBatchesDontDependOnNumThreads: Unit = {
+    val expected = learnOnline(2, 1, false)
+    for (numThreads <- Seq(2, 3)) {
+      val actual = learnOnline(2, numThreads, false)
+      for (j <- 0 until expected.length)
+        assertEquals("weight(" + j + ")", expected(j), actual(j), 1e-10)
+    }
+  }
+
+  @Test def hogwildMiniBatches: Unit = {
+    val initial = learnOnline(0, 1, false)
+    val weights = learnOnline(2, 3, true)
+    assertTrue(weights.length == initial.length)
+    assertTrue(weights.forall(w => !w.isNaN && !w.isInfinite))
+    assertTrue((0 until weights.length).exists(j => weights(j) != initial(j)))
+  }
+}